@@ -21,52 +21,451 @@ import ixa.kaflib.Term;
 import ixa.kaflib.WF;
 
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import opennlp.tools.chunker.ChunkSample;
 import opennlp.tools.util.Span;
 
+import com.google.common.io.Files;
+
 /**
+ * Annotates NAF documents with chunks. As a {@link NAFStage} it adds the
+ * chunks layer and its linguistic processor header to a document parsed by
+ * the host application, so that it can be chained with other stages in the
+ * same JVM. The model is kept loaded until the annotator is closed.
+ *
  * @author ragerri
  *
  */
-public class Annotate {
+public class Annotate implements NAFStage, Closeable {
+
+  /**
+   * The layer of the linguistic processor header, as recorded by the tag
+   * command.
+   */
+  public static final String LAYER = "terms";
+  /**
+   * Get dynamically the version of ixa-pipe-chunk by looking at the MANIFEST
+   * file.
+   */
+  private final String version = CLI.class.getPackage()
+      .getImplementationVersion();
+  /**
+   * Get the git commit of the ixa-pipe-chunk compiled by looking at the
+   * MANIFEST file.
+   */
+  private final String commit = CLI.class.getPackage()
+      .getSpecificationVersion();
+  /**
+   * The name of the linguistic processor, after the model and the version.
+   */
+  private final String processorName;
 
   private ChunkTagger chunker;
+  /**
+   * The fingerprints of the sentences chunked so far in incremental mode,
+   * null otherwise.
+   */
+  private final SentenceFingerprints fingerprints;
+  /**
+   * Threads decoding the sentences of a document, 1 to decode them in the
+   * calling thread.
+   */
+  private final int sentenceThreads;
+  /**
+   * The properties of the taggers of the sentence pool.
+   */
+  private final Properties properties;
+  /**
+   * Every tagger of this annotator, closed with it.
+   */
+  private final List<ChunkTagger> taggers = new ArrayList<ChunkTagger>();
+  /**
+   * The chunks of the sentence being annotated, reused for every sentence.
+   */
+  private final ChunkSpans chunkBuffer = new ChunkSpans();
+  /**
+   * The pool decoding the sentences of a document, created on first use and
+   * shut down with the annotator.
+   */
+  private ForkJoinPool sentencePool;
 
 
   public Annotate(Properties properties) throws IOException {
-    chunker = new ChunkTagger(properties);
+    this(properties, Boolean.parseBoolean(properties.getProperty(
+        "incremental", "false")) ? new SentenceFingerprints(
+        SentenceFingerprints.DEFAULT_MAX_SENTENCES) : null);
+  }
+
+  /**
+   * Construct an annotator sharing the sentence fingerprints with others.
+   * @param properties the annotation properties
+   * @param fingerprints the fingerprints for incremental annotation, or null
+   * to chunk every sentence
+   * @throws IOException if the model cannot be loaded
+   */
+  public Annotate(final Properties properties, SentenceFingerprints fingerprints)
+      throws IOException {
+    final String model = properties.getProperty("model");
+    if (model == null) {
+      throw new IllegalArgumentException("The model property is required");
+    }
+    this.properties = properties;
+    chunker = newTagger();
+    processorName = "ixa-pipe-chunk-" + Files.getNameWithoutExtension(model)
+        + version + "-" + commit;
+    this.fingerprints = fingerprints;
+    sentenceThreads = Integer.parseInt(properties.getProperty(
+        "sentenceThreads", "1"));
+  }
+
+  private ChunkTagger newTagger() {
+    ChunkTagger tagger = new ChunkTagger(properties);
+    synchronized (taggers) {
+      taggers.add(tagger);
+    }
+    return tagger;
+  }
+
+  /**
+   * Close a tagger unless the annotator has already closed it.
+   */
+  private void closeTagger(ChunkTagger tagger) {
+    synchronized (taggers) {
+      if (taggers.remove(tagger)) {
+        tagger.close();
+      }
+    }
+  }
+
+  /**
+   * Shut down the sentence pool and close the taggers of this annotator, so
+   * that its model may be evicted.
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (sentencePool != null) {
+        sentencePool.shutdown();
+      }
+    }
+    synchronized (taggers) {
+      for (ChunkTagger tagger : taggers) {
+        tagger.close();
+      }
+      taggers.clear();
+    }
+  }
+
+  /**
+   * Get the sentence fingerprints of the incremental mode.
+   * @return the fingerprints, or null if not in incremental mode
+   */
+  public SentenceFingerprints getFingerprints() {
+    return fingerprints;
+  }
+
+  /**
+   * Add the chunks layer to a NAF document with the linguistic processor
+   * header of ixa-pipe-chunk, timed around the annotation.
+   * @param kaf the document with text and terms layers
+   * @return the linguistic processor added, e.g., to extract a delta of the
+   * new chunks with {@link NAFDelta}
+   * @throws IOException if the annotation is interrupted
+   */
+  public KAFDocument.LinguisticProcessor annotateNAF(KAFDocument kaf)
+      throws IOException {
+    KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
+        LAYER, processorName);
+    newLp.setBeginTimestamp();
+    addChunksToKAF(kaf);
+    newLp.setEndTimestamp();
+    return newLp;
+  }
+
+  /**
+   * Add the chunks layer and its linguistic processor header to a document.
+   * @param kaf the document with text and terms layers
+   * @return the same document
+   * @throws IOException if the annotation is interrupted
+   */
+  @Override
+  public KAFDocument process(KAFDocument kaf) throws IOException {
+    annotateNAF(kaf);
+    return kaf;
   }
 
   public String chunkToKAF(KAFDocument kaf) throws IOException {
+    addChunksToKAF(kaf);
+    return kaf.toString();
+  }
+
+  /**
+   * Add the chunks layer to a NAF document without serializing it. In
+   * incremental mode the sentences which already have chunks are skipped
+   * and the chunks of sentences with the same tokens and POS tags as a
+   * sentence chunked before are reused. With sentenceThreads the sentences
+   * are decoded in parallel, and the chunks are still created in sentence
+   * order, giving the same document as the sequential annotation.
+   * @param kaf the document with text and terms layers
+   * @throws IOException if the annotation is interrupted
+   */
+  public void addChunksToKAF(KAFDocument kaf) throws IOException {
     List<List<WF>> sentences = kaf.getSentences();
+    if (sentenceThreads <= 1) {
+      // one buffer for every sentence of the document
+      for (List<WF> sentence : sentences) {
+        checkInterrupted();
+        Sentence pending = prepare(kaf, sentence, chunkBuffer);
+        if (pending == null) {
+          continue;
+        }
+        if (!pending.reused) {
+          chunker.chunk(pending.tokens, pending.posTags, pending.chunks);
+        }
+        addChunks(kaf, pending);
+      }
+      return;
+    }
+    List<Sentence> pending = new ArrayList<Sentence>();
     for (List<WF> sentence : sentences) {
-      /* Get an array of token forms from a list of WF objects. */
-      String posTags[] = new String[sentence.size()];
-      String tokens[] = new String[sentence.size()];
-      String[] tokenIds = new String[sentence.size()];
-      for (int i = 0; i < sentence.size(); i++) {
-        tokens[i] = sentence.get(i).getForm();
-        tokenIds[i] = sentence.get(i).getId();
-        List<Term> terms = kaf.getTermsBySent(sentence.get(i).getSent());
-        posTags[i] = terms.get(i).getMorphofeat();
+      checkInterrupted();
+      Sentence pendingSentence = prepare(kaf, sentence, new ChunkSpans());
+      if (pendingSentence != null) {
+        pending.add(pendingSentence);
       }
-      Span[] chunks = chunker.chunk(tokens, posTags);
-      for (int i = 0; i < chunks.length; i++) {
-        String type = chunks[i].getType();
-        Integer start_index = chunks[i].getStart();
-        Integer end_index = chunks[i].getEnd();
-        // TODO use new functions and proper heads
-        List<Term> chunkTerms = kaf.getTermsFromWFs(Arrays.asList(Arrays.copyOfRange(tokenIds, start_index, end_index)));
-        kaf.createChunk(chunkTerms.get(chunkTerms.size()-1), type, chunkTerms);        
+    }
+    decode(pending);
+    // chunks are created in sentence order whatever the decoding order
+    for (Sentence sentence : pending) {
+      addChunks(kaf, sentence);
+    }
+  }
+
+  /**
+   * Get the tokens and POS tags of a sentence to chunk, and in incremental
+   * mode its chunks if the sentence was chunked before.
+   * @param kaf the document
+   * @param sentence the words of the sentence
+   * @param chunks the buffer for the chunks of the sentence
+   * @return the sentence, or null if it does not need chunking
+   */
+  private Sentence prepare(KAFDocument kaf, List<WF> sentence,
+      ChunkSpans chunks) {
+    if (sentence.isEmpty()) {
+      return null;
+    }
+    Integer sent = sentence.get(0).getSent();
+    if (fingerprints != null && !kaf.getChunksBySent(sent).isEmpty()) {
+      fingerprints.skipped();
+      return null;
+    }
+    /* Get an array of token forms from a list of WF objects. */
+    String posTags[] = new String[sentence.size()];
+    String tokens[] = new String[sentence.size()];
+    List<Term> terms = kaf.getTermsBySent(sent);
+    for (int i = 0; i < sentence.size(); i++) {
+      tokens[i] = sentence.get(i).getForm();
+      posTags[i] = terms.get(i).getMorphofeat();
+    }
+    Sentence pending = new Sentence(sentence, terms, tokens, posTags, chunks);
+    if (fingerprints != null) {
+      pending.fingerprint = SentenceFingerprints.fingerprint(tokens, posTags);
+      Span[] known = fingerprints.get(pending.fingerprint);
+      if (known != null) {
+        chunks.set(known);
+        pending.reused = true;
+      }
+    }
+    return pending;
+  }
+
+  /**
+   * Create the chunks of a decoded sentence in the document.
+   * @param kaf the document
+   * @param sentence the sentence
+   */
+  private void addChunks(KAFDocument kaf, Sentence sentence) {
+    if (fingerprints != null) {
+      if (sentence.reused) {
+        fingerprints.reused();
+      } else {
+        fingerprints.put(sentence.fingerprint, sentence.chunks.toSpans());
+        fingerprints.chunked();
+      }
+    }
+    ChunkSpans chunks = sentence.chunks;
+    // with one term per word the terms of a chunk are a view of the sentence
+    boolean wordTerms = sentence.terms.size() == sentence.words.size();
+    for (int i = 0; i < chunks.size(); i++) {
+      List<Term> chunkTerms;
+      if (wordTerms) {
+        chunkTerms = sentence.terms.subList(chunks.getStart(i), chunks.getEnd(i));
+      } else {
+        List<String> wfIds = new ArrayList<String>();
+        for (WF wf : sentence.words.subList(chunks.getStart(i), chunks.getEnd(i))) {
+          wfIds.add(wf.getId());
+        }
+        chunkTerms = kaf.getTermsFromWFs(wfIds);
+      }
+      // TODO use new functions and proper heads
+      kaf.createChunk(chunkTerms.get(chunkTerms.size()-1), chunks.getTypeName(i), chunkTerms);
+    }
+  }
+
+  /**
+   * Decode the sentences without chunks in parallel.
+   * @param sentences the sentences
+   * @throws IOException if the annotation is interrupted
+   */
+  private void decode(List<Sentence> sentences) throws IOException {
+    List<Sentence> toDecode = new ArrayList<Sentence>();
+    for (Sentence sentence : sentences) {
+      if (!sentence.reused) {
+        toDecode.add(sentence);
+      }
+    }
+    if (toDecode.size() < 2) {
+      for (Sentence sentence : toDecode) {
+        checkInterrupted();
+        chunker.chunk(sentence.tokens, sentence.posTags, sentence.chunks);
+      }
+      return;
+    }
+    int grain = Math.max(1, toDecode.size() / (sentenceThreads * 4));
+    AtomicBoolean cancelled = new AtomicBoolean(false);
+    ForkJoinTask<Void> task = getSentencePool().submit(
+        new DecodeRange(toDecode, 0, toDecode.size(), grain, cancelled));
+    try {
+      task.get();
+    } catch (InterruptedException e) {
+      cancelled.set(true);
+      task.cancel(true);
+      throw new InterruptedIOException("Annotation interrupted");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * Get the pool decoding the sentences of a document, creating it on first
+   * use.
+   * @return the pool
+   */
+  private synchronized ForkJoinPool getSentencePool() {
+    if (sentencePool == null) {
+      sentencePool = new ForkJoinPool(sentenceThreads,
+          new ForkJoinPool.ForkJoinWorkerThreadFactory() {
+            @Override
+            public ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+              return new DecoderThread(pool);
+            }
+          }, null, false);
+    }
+    return sentencePool;
+  }
+
+  /**
+   * A thread of the sentence pool, with its own decoder created on first use
+   * and closed when the pool retires the thread.
+   */
+  private final class DecoderThread extends ForkJoinWorkerThread {
+    private ChunkTagger decoder;
+
+    private DecoderThread(ForkJoinPool pool) {
+      super(pool);
+    }
+
+    private ChunkTagger getDecoder() {
+      if (decoder == null) {
+        decoder = newTagger();
+      }
+      return decoder;
+    }
+
+    @Override
+    protected void onTermination(Throwable exception) {
+      if (decoder != null) {
+        closeTagger(decoder);
+      }
+      super.onTermination(exception);
+    }
+  }
+
+  /**
+   * A sentence of a document being chunked.
+   */
+  private static final class Sentence {
+    private final List<WF> words;
+    private final List<Term> terms;
+    private final String[] tokens;
+    private final String[] posTags;
+    private final ChunkSpans chunks;
+    private String fingerprint;
+    private boolean reused = false;
+
+    private Sentence(List<WF> words, List<Term> terms, String[] tokens,
+        String[] posTags, ChunkSpans chunks) {
+      this.words = words;
+      this.terms = terms;
+      this.tokens = tokens;
+      this.posTags = posTags;
+      this.chunks = chunks;
+    }
+  }
+
+  /**
+   * Decodes a range of sentences, splitting it in halves down to the grain
+   * size. Every pool thread uses its own decoder; a task run by the waiting
+   * annotator thread uses the decoder of the annotator.
+   */
+  private final class DecodeRange extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final List<Sentence> sentences;
+    private final int from;
+    private final int to;
+    private final int grain;
+    private final AtomicBoolean cancelled;
+
+    private DecodeRange(List<Sentence> sentences, int from, int to, int grain,
+        AtomicBoolean cancelled) {
+      this.sentences = sentences;
+      this.from = from;
+      this.to = to;
+      this.grain = grain;
+      this.cancelled = cancelled;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > grain) {
+        int middle = (from + to) >>> 1;
+        invokeAll(new DecodeRange(sentences, from, middle, grain, cancelled),
+            new DecodeRange(sentences, middle, to, grain, cancelled));
+        return;
+      }
+      Thread thread = Thread.currentThread();
+      ChunkTagger decoder = thread instanceof DecoderThread
+          ? ((DecoderThread) thread).getDecoder() : chunker;
+      for (int i = from; i < to && !cancelled.get(); i++) {
+        Sentence sentence = sentences.get(i);
+        decoder.chunk(sentence.tokens, sentence.posTags, sentence.chunks);
       }
     }
-    return kaf.toString();
   }
   
   private List<ChunkSample> getChunks(KAFDocument kaf)
@@ -74,6 +473,7 @@ public class Annotate {
     List<ChunkSample> chunkList = new ArrayList<ChunkSample>();
     List<List<WF>> sentences = kaf.getSentences();
     for (List<WF> sentence : sentences) {
+      checkInterrupted();
       /* Get an array of token forms from a list of WF objects. */
       String posTags[] = new String[sentence.size()];
       String tokens[] = new String[sentence.size()];
@@ -99,6 +499,17 @@ public class Annotate {
     return sb.toString();
   }
 
+  /**
+   * Stop the annotation of a document if the thread has been interrupted,
+   * e.g., because the server deadline for the document expired.
+   * @throws InterruptedIOException if the thread has been interrupted
+   */
+  private static void checkInterrupted() throws InterruptedIOException {
+    if (Thread.interrupted()) {
+      throw new InterruptedIOException("Annotation interrupted");
+    }
+  }
+
   public String annotateChunksToCoNLL(KAFDocument kaf) throws IOException {
     List<ChunkSample> chunkList = getChunks(kaf);
     StringBuilder sb = new StringBuilder();
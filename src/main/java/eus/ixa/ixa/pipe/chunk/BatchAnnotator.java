@@ -0,0 +1,283 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import ixa.kaflib.Chunk;
+import ixa.kaflib.KAFDocument;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom2.JDOMException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Annotates every NAF document of a directory concurrently, writing the
+ * results with the same file names to an output directory. Documents are
+ * read, parsed and written on their own threads, while the decoding is
+ * bounded by a pool of threads annotators, so the CPU is never
+ * oversubscribed. With virtualThreads on Java 21 or later every document
+ * gets a virtual thread; otherwise a pool of threads platform threads is
+ * used. At most maxInFlight documents (defaults to four per annotator) are
+ * held in memory at the same time.
+ * <p>
+ * The run keeps a {@link ProgressJournal}, by default .ixa-pipe-chunk.journal
+ * in the output directory, and writes every output atomically, so a run
+ * started again with the same arguments after a crash skips the documents
+ * already annotated.
+ */
+public class BatchAnnotator {
+
+  /**
+   * The model.
+   */
+  private final String model;
+  /**
+   * The output format, naf, conll or delta.
+   */
+  private final String outputFormat;
+  /**
+   * The annotators not in use; taking one is the permit to decode.
+   */
+  private final BlockingQueue<Annotate> annotators;
+  /**
+   * Number of annotators.
+   */
+  private final int threads;
+  /**
+   * Maximum number of documents in memory.
+   */
+  private final int maxInFlight;
+  /**
+   * Whether every document gets a virtual thread.
+   */
+  private final boolean virtualThreads;
+  /**
+   * The progress journal, or null for the default in the output directory.
+   */
+  private final String journal;
+  /**
+   * Whether the checksum of the outputs already done is verified.
+   */
+  private final boolean verifyOutputs;
+
+  /**
+   * Construct a batch annotator loading the model.
+   *
+   * @param properties
+   *          the annotation properties plus outputFormat, threads,
+   *          virtualThreads, maxInFlight, journal and verifyOutputs
+   * @param fingerprints
+   *          the fingerprints shared by the annotators in incremental mode,
+   *          or null
+   * @throws IOException
+   *           if the model cannot be loaded
+   */
+  public BatchAnnotator(final Properties properties,
+      final SentenceFingerprints fingerprints) throws IOException {
+    model = properties.getProperty("model");
+    outputFormat = properties.getProperty("outputFormat", "naf");
+    threads = Integer.parseInt(properties.getProperty("threads",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+    maxInFlight = Integer.parseInt(properties.getProperty("maxInFlight",
+        Integer.toString(threads * 4)));
+    final boolean virtual = Boolean.parseBoolean(properties.getProperty(
+        "virtualThreads", "false"));
+    if (virtual && !VirtualThreads.isAvailable()) {
+      System.err.println("WARNING: virtual threads require Java 21, "
+          + "using platform threads");
+    }
+    virtualThreads = virtual && VirtualThreads.isAvailable();
+    journal = properties.getProperty("journal");
+    verifyOutputs = Boolean.parseBoolean(properties.getProperty(
+        "verifyOutputs", "false"));
+    annotators = new ArrayBlockingQueue<Annotate>(threads);
+    for (int i = 0; i < threads; i++) {
+      annotators.add(new Annotate(properties, fingerprints));
+    }
+  }
+
+  /**
+   * Annotate every file of a directory not annotated yet by a previous run.
+   *
+   * @param inputDir
+   *          the directory of NAF documents
+   * @param outputDir
+   *          the directory of the annotated documents, created if needed
+   * @return the number of documents which could not be annotated
+   * @throws IOException
+   *           if the directories cannot be accessed
+   */
+  public final int annotateDirectory(final File inputDir, final File outputDir)
+      throws IOException {
+    if (!inputDir.isDirectory()) {
+      throw new IOException(inputDir + " is not a directory");
+    }
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create " + outputDir + " directory");
+    }
+    final File journalFile = journal == null ? new File(outputDir,
+        ".ixa-pipe-chunk.journal") : new File(journal);
+    final File modelFile = new File(model);
+    final ProgressJournal progress = new ProgressJournal(journalFile, "model="
+        + modelFile.getAbsolutePath() + " " + modelFile.length() + " "
+        + modelFile.lastModified() + " outputFormat=" + outputFormat,
+        verifyOutputs);
+    final File[] inputFiles = inputDir.listFiles();
+    Arrays.sort(inputFiles);
+    int skipped = 0;
+    final ExecutorService executor = virtualThreads ? VirtualThreads
+        .newPerTaskExecutor() : Executors.newFixedThreadPool(threads);
+    final Semaphore inFlight = new Semaphore(maxInFlight);
+    final AtomicInteger failed = new AtomicInteger();
+    final List<Future<?>> results = new ArrayList<Future<?>>();
+    try {
+      for (final File inputFile : inputFiles) {
+        if (!inputFile.isFile() || inputFile.equals(journalFile)
+            || inputFile.getName().startsWith(".")) {
+          continue;
+        }
+        final File outputFile = new File(outputDir, inputFile.getName());
+        if (progress.isDone(inputFile.getName(), inputFile, outputFile)) {
+          skipped++;
+          continue;
+        }
+        inFlight.acquireUninterruptibly();
+        results.add(executor.submit(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              progress.record(inputFile.getName(), inputFile, outputFile,
+                  annotateFile(inputFile, outputFile));
+            } catch (Exception e) {
+              failed.incrementAndGet();
+              System.err.println("ERROR: " + inputFile + ": " + e.getMessage());
+            } finally {
+              inFlight.release();
+            }
+          }
+        }));
+      }
+      for (final Future<?> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          failed.incrementAndGet();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Batch annotation interrupted");
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+      progress.close();
+    }
+    System.err.println("Annotated " + (results.size() - failed.get()) + " of "
+        + results.size() + " documents into " + outputDir
+        + (skipped > 0 ? ", " + skipped + " already done" : ""));
+    return failed.get();
+  }
+
+  /**
+   * Annotate one document.
+   *
+   * @param inputFile
+   *          the NAF document
+   * @param outputFile
+   *          the annotated document
+   * @throws IOException
+   *           if io error
+   * @throws JDOMException
+   *           if the document is not well formed
+   */
+  public final void annotate(final File inputFile, final File outputFile)
+      throws IOException, JDOMException {
+    annotateFile(inputFile, outputFile);
+  }
+
+  /**
+   * Annotate one document, writing it atomically.
+   *
+   * @return the checksum of the output
+   */
+  private String annotateFile(final File inputFile, final File outputFile)
+      throws IOException, JDOMException {
+    final KAFDocument kaf;
+    try (BufferedReader reader = Files.newReader(inputFile, Charsets.UTF_8)) {
+      kaf = KAFDocument.createFromStream(reader);
+    }
+    final Annotate annotator = takeAnnotator();
+    String conll = null;
+    KAFDocument output = kaf;
+    try {
+      if (outputFormat.equalsIgnoreCase("conll")) {
+        conll = annotator.annotateChunksToCoNLL(kaf);
+      } else {
+        final int existingChunks = kaf.getChunks().size();
+        final KAFDocument.LinguisticProcessor newLp = annotator
+            .annotateNAF(kaf);
+        if (outputFormat.equalsIgnoreCase("delta")) {
+          final List<Chunk> newChunks = kaf.getChunks().subList(existingChunks,
+              kaf.getChunks().size());
+          output = NAFDelta.extract(kaf, newChunks, newLp);
+        }
+      }
+    } finally {
+      annotators.add(annotator);
+    }
+    final String conllOutput = conll;
+    final KAFDocument nafOutput = output;
+    return ProgressJournal.writeAtomically(outputFile,
+        new ProgressJournal.Output() {
+          @Override
+          public void write(final Writer writer) throws IOException {
+            if (conllOutput != null) {
+              writer.write(conllOutput);
+            } else {
+              NAFWriter.write(nafOutput, writer, nafOutput == kaf);
+            }
+          }
+        });
+  }
+
+  private Annotate takeAnnotator() throws IOException {
+    try {
+      return annotators.take();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Batch annotation interrupted");
+    }
+  }
+
+}
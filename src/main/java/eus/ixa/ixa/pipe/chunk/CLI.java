@@ -16,41 +16,60 @@
 
 package eus.ixa.ixa.pipe.chunk;
 
+import ixa.kaflib.Chunk;
 import ixa.kaflib.KAFDocument;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
 
 import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.impl.Arguments;
 import net.sourceforge.argparse4j.inf.ArgumentParser;
 import net.sourceforge.argparse4j.inf.ArgumentParserException;
 import net.sourceforge.argparse4j.inf.Namespace;
 import net.sourceforge.argparse4j.inf.Subparser;
 import net.sourceforge.argparse4j.inf.Subparsers;
+import opennlp.tools.chunker.ChunkSampleStream;
 import opennlp.tools.chunker.ChunkerModel;
 import opennlp.tools.cmdline.CmdLineUtil;
 import opennlp.tools.util.TrainingParameters;
 
 import org.jdom2.JDOMException;
 
+import com.google.common.base.Charsets;
 import com.google.common.io.Files;
 
+import eus.ixa.ixa.pipe.chunk.bench.CorpusGenerator;
+import eus.ixa.ixa.pipe.chunk.bench.LoadGenerator;
 import eus.ixa.ixa.pipe.chunk.eval.CrossValidator;
 import eus.ixa.ixa.pipe.chunk.eval.Evaluate;
 import eus.ixa.ixa.pipe.chunk.train.DefaultTrainer;
 import eus.ixa.ixa.pipe.chunk.train.Flags;
 import eus.ixa.ixa.pipe.chunk.train.InputOutputUtils;
+import eus.ixa.ixa.pipe.chunk.train.ModelUpdater;
 import eus.ixa.ixa.pipe.chunk.train.Trainer;
+import eus.ixa.ixa.pipe.chunk.train.Tuner;
 
 /**
  * Main class of ixa-pipe-chunk, the chunker of ixa-pipes
@@ -68,12 +87,6 @@ public class CLI {
    */
   private final String version = CLI.class.getPackage()
       .getImplementationVersion();
-  /**
-   * Get the git commit of the ixa-pipe-pos compiled by looking at the MANIFEST
-   * file.
-   */
-  private final String commit = CLI.class.getPackage()
-      .getSpecificationVersion();
   /**
    * The CLI arguments.
    */
@@ -106,6 +119,14 @@ public class CLI {
    * The parser that manages the cross validation sub-command.
    */
   private final Subparser crossValidateParser;
+  /**
+   * The parser that manages the hyperparameter tuning sub-command.
+   */
+  private final Subparser tuneParser;
+  /**
+   * The parser that manages the model update sub-command.
+   */
+  private final Subparser updateParser;
   /**
    * Parser to start TCP socket for server-client functionality.
    */
@@ -114,6 +135,30 @@ public class CLI {
    * Sends queries to the serverParser for annotation.
    */
   private Subparser clientParser;
+  /**
+   * Generates load against the TCP server.
+   */
+  private Subparser benchParser;
+  /**
+   * Merges a delta output into its document.
+   */
+  private Subparser mergeParser;
+  /**
+   * Converts a model into a memory-mapped model.
+   */
+  private Subparser mapParser;
+  /**
+   * Generates synthetic corpora.
+   */
+  private Subparser generateParser;
+  /**
+   * Annotates a corpus with several worker processes.
+   */
+  private Subparser coordinateParser;
+  /**
+   * Annotates the documents dropped into a spool directory.
+   */
+  private Subparser watchParser;
   /**
    * Default beam size for decoding.
    */
@@ -133,10 +178,28 @@ public class CLI {
     this.crossValidateParser = this.subParsers.addParser("cross").help(
         "Cross validation CLI");
     loadCrossValidateParameters();
+    this.tuneParser = this.subParsers.addParser("tune").help(
+        "Hyperparameter tuning CLI");
+    loadTuneParameters();
+    this.updateParser = this.subParsers.addParser("update").help(
+        "Model update CLI");
+    loadUpdateParameters();
     serverParser = subParsers.addParser("server").help("Start TCP socket server");
     loadServerParameters();
     clientParser = subParsers.addParser("client").help("Send queries to the TCP socket server");
     loadClientParameters();
+    benchParser = subParsers.addParser("bench").help("Generate load against the TCP socket server");
+    loadBenchParameters();
+    mergeParser = subParsers.addParser("merge").help("Merge a delta output into its NAF document");
+    loadMergeParameters();
+    mapParser = subParsers.addParser("map").help("Convert a model into a memory-mapped model");
+    loadMapParameters();
+    generateParser = subParsers.addParser("generate").help("Generate a synthetic NAF or CoNLL corpus");
+    loadGenerateParameters();
+    coordinateParser = subParsers.addParser("coordinate").help("Annotate a corpus with several server processes");
+    loadCoordinateParameters();
+    watchParser = subParsers.addParser("watch").help("Annotate the documents dropped into a spool directory");
+    loadWatchParameters();
   }
 
   /**
@@ -179,15 +242,31 @@ public class CLI {
         train();
       } else if (args[0].equals("cross")) {
         crossValidate();
+      } else if (args[0].equals("tune")) {
+        tune();
+      } else if (args[0].equals("update")) {
+        update();
       } else if (args[0].equals("server")) {
         server();
       } else if (args[0].equals("client")) {
         client(System.in, System.out);
+      } else if (args[0].equals("bench")) {
+        bench();
+      } else if (args[0].equals("merge")) {
+        merge();
+      } else if (args[0].equals("map")) {
+        map();
+      } else if (args[0].equals("generate")) {
+        generate();
+      } else if (args[0].equals("coordinate")) {
+        coordinate();
+      } else if (args[0].equals("watch")) {
+        watch();
       }
     } catch (ArgumentParserException e) {
       argParser.handleError(e);
       System.out.println("Run java -jar target/ixa-pipe-chunk-" + version
-          + ".jar (tag|train|eval|cross|server|client) -help for details");
+          + ".jar (tag|train|eval|cross|tune|update|server|client|bench|merge|map|generate|coordinate|watch) -help for details");
       System.exit(1);
     }
   }
@@ -215,6 +294,10 @@ public class CLI {
       model = parsedArguments.getString("model");
     }
     String outputFormat = parsedArguments.get("outputFormat");
+    if (parsedArguments.getString("inputDir") != null) {
+      annotateDirectory(model, outputFormat);
+      return;
+    }
     BufferedReader breader = null;
     BufferedWriter bwriter = null;
     breader = new BufferedReader(new InputStreamReader(System.in, "UTF-8"));
@@ -233,21 +316,88 @@ public class CLI {
       lang = kaf.getLang();
     }
     final Properties properties = setAnnotateProperties(model, lang);
-    final Annotate annotator = new Annotate(properties);
+    properties.setProperty("sentenceThreads", parsedArguments.getString("sentenceThreads"));
+    final String fingerprintsFile = parsedArguments.getString("fingerprints");
+    SentenceFingerprints fingerprints = null;
+    if (parsedArguments.getBoolean("incremental") || fingerprintsFile != null) {
+      fingerprints = new SentenceFingerprints(
+          SentenceFingerprints.DEFAULT_MAX_SENTENCES);
+      if (fingerprintsFile != null && new File(fingerprintsFile).exists()) {
+        fingerprints.load(new File(fingerprintsFile));
+      }
+    }
+    final Annotate annotator = new Annotate(properties, fingerprints);
     // annotate to KAF
     if (outputFormat.equalsIgnoreCase("conll")) {
       bwriter.write(annotator.annotateChunksToCoNLL(kaf));
     } else {
-      KAFDocument.LinguisticProcessor newLp = kaf.addLinguisticProcessor(
-          "terms", "ixa-pipe-chunk-" + Files.getNameWithoutExtension(model)
-              + this.version + "-" + this.commit);
-      newLp.setBeginTimestamp();
-      annotator.chunkToKAF(kaf);
-      newLp.setEndTimestamp();
-      bwriter.write(kaf.toString());
+      int existingChunks = kaf.getChunks().size();
+      KAFDocument.LinguisticProcessor newLp = annotator.annotateNAF(kaf);
+      if (outputFormat.equalsIgnoreCase("delta")) {
+        List<Chunk> newChunks = kaf.getChunks().subList(existingChunks, kaf.getChunks().size());
+        NAFWriter.write(NAFDelta.extract(kaf, newChunks, newLp), bwriter, false);
+      } else {
+        NAFWriter.write(kaf, bwriter);
+      }
     }
+    annotator.close();
     bwriter.close();
     breader.close();
+    if (fingerprints != null) {
+      System.err.print(fingerprints.report());
+      if (fingerprintsFile != null) {
+        fingerprints.save(new File(fingerprintsFile));
+      }
+    }
+  }
+
+  /**
+   * Annotate every document of the input directory into the output
+   * directory.
+   * @param model the model
+   * @param outputFormat the output format
+   * @throws IOException if io error
+   */
+  private void annotateDirectory(String model, String outputFormat)
+      throws IOException {
+    if (parsedArguments.getString("outputDir") == null) {
+      System.err.println("ERROR: --inputDir requires --outputDir!");
+      System.exit(1);
+    }
+    String lang = parsedArguments.getString("lang");
+    if (lang == null) {
+      lang = "en";
+    }
+    final Properties properties = setAnnotateProperties(model, lang);
+    properties.setProperty("outputFormat", outputFormat);
+    properties.setProperty("sentenceThreads", parsedArguments.getString("sentenceThreads"));
+    properties.setProperty("threads", parsedArguments.getString("threads"));
+    properties.setProperty("virtualThreads", Boolean.toString(parsedArguments.getBoolean("virtualThreads")));
+    if (parsedArguments.getString("journal") != null) {
+      properties.setProperty("journal", parsedArguments.getString("journal"));
+    }
+    properties.setProperty("verifyOutputs", Boolean.toString(parsedArguments.getBoolean("verifyOutputs")));
+    final String fingerprintsFile = parsedArguments.getString("fingerprints");
+    SentenceFingerprints fingerprints = null;
+    if (parsedArguments.getBoolean("incremental") || fingerprintsFile != null) {
+      fingerprints = new SentenceFingerprints(
+          SentenceFingerprints.DEFAULT_MAX_SENTENCES);
+      if (fingerprintsFile != null && new File(fingerprintsFile).exists()) {
+        fingerprints.load(new File(fingerprintsFile));
+      }
+    }
+    BatchAnnotator batchAnnotator = new BatchAnnotator(properties, fingerprints);
+    int failed = batchAnnotator.annotateDirectory(new File(parsedArguments.getString("inputDir")),
+        new File(parsedArguments.getString("outputDir")));
+    if (fingerprints != null) {
+      System.err.print(fingerprints.report());
+      if (fingerprintsFile != null) {
+        fingerprints.save(new File(fingerprintsFile));
+      }
+    }
+    if (failed > 0) {
+      System.exit(1);
+    }
   }
 
   /**
@@ -261,10 +411,41 @@ public class CLI {
     annotateParser
         .addArgument("-o", "--outputFormat")
         .required(false)
-        .choices("naf","conll")
+        .choices("naf","conll","delta")
         .setDefault("naf")
         .help(
-            "Choose between NAF and conll format; it defaults to NAF.\n");
+            "Choose between NAF, conll and delta (only the new chunks layer) format; it defaults to NAF.\n");
+    annotateParser.addArgument("--inputDir")
+        .required(false)
+        .help("Annotate every NAF document of this directory instead of standard input.\n");
+    annotateParser.addArgument("--outputDir")
+        .required(false)
+        .help("Directory to write the annotated documents of --inputDir.\n");
+    annotateParser.addArgument("-t", "--threads")
+        .required(false)
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors()))
+        .help("Documents of --inputDir decoded at the same time; it defaults to the number of cores.\n");
+    annotateParser.addArgument("--virtualThreads")
+        .action(Arguments.storeTrue())
+        .help("Read and write every document of --inputDir on its own virtual thread (Java 21).\n");
+    annotateParser.addArgument("--journal")
+        .required(false)
+        .help("Progress journal of --inputDir, to resume an interrupted run; "
+            + "it defaults to .ixa-pipe-chunk.journal in --outputDir.\n");
+    annotateParser.addArgument("--verifyOutputs")
+        .action(Arguments.storeTrue())
+        .help("Check the checksum of the outputs in the journal before skipping their inputs.\n");
+    annotateParser.addArgument("--sentenceThreads")
+        .required(false)
+        .setDefault("1")
+        .help("Number of threads decoding the sentences of the document in parallel; it defaults to 1.\n");
+    annotateParser.addArgument("--incremental")
+        .action(Arguments.storeTrue())
+        .help("Chunk only the sentences without chunks in the input document.\n");
+    annotateParser.addArgument("--fingerprints")
+        .required(false)
+        .help("File with the fingerprints of the sentences chunked in previous runs; "
+            + "unchanged sentences reuse their chunks. Implies --incremental.\n");
   }
 
   /**
@@ -296,7 +477,11 @@ public class CLI {
    */
   private void loadTrainingParameters() {
     this.trainParser.addArgument("-p", "--params").required(true)
-        .help("Load the training parameters file\n");
+        .help("Load the training parameters file; with the PERCEPTRON "
+            + "algorithm, EvalEvery or TrainingMode=stream train with the "
+            + "built-in averaged perceptron, which lacks the Tolerance "
+            + "stop, StepSizeDecrease and event deduplication of the "
+            + "OpenNLP one\n");
   }
 
   /**
@@ -360,6 +545,119 @@ public class CLI {
         .help("Load the Cross validation parameters file\n");
   }
   
+  /**
+   * Main access to the hyperparameter tuning.
+   * 
+   * @throws IOException
+   *           input output exception if problems with corpora
+   */
+  public final void tune() throws IOException {
+
+    final String paramFile = this.parsedArguments.getString("params");
+    final TrainingParameters params = InputOutputUtils
+        .loadTrainingParameters(paramFile);
+    final Properties grid = new Properties();
+    try (FileInputStream gridIn = new FileInputStream(
+        this.parsedArguments.getString("grid"))) {
+      grid.load(gridIn);
+    }
+    List<Map<String, String>> points;
+    if (this.parsedArguments.getString("search").equalsIgnoreCase("random")) {
+      points = Tuner.sampleGrid(grid, this.parsedArguments.getInt("trials"),
+          this.parsedArguments.getLong("seed"));
+    } else {
+      points = Tuner.expandGrid(grid);
+    }
+    final Tuner tuner = new Tuner(params);
+    List<Tuner.TuningResult> results = null;
+    try {
+      results = tuner.tune(points, this.parsedArguments.getInt("threads"));
+    } catch (IllegalArgumentException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+    System.out.print(Tuner.formatResults(results));
+    final String outModel = this.parsedArguments.getString("outputModel");
+    if (outModel != null) {
+      CmdLineUtil.writeModel("ixa-pipe-chunk", new File(outModel),
+          tuner.getBestModel());
+    }
+  }
+
+  /**
+   * Create the parameters available for hyperparameter tuning.
+   */
+  private void loadTuneParameters() {
+    this.tuneParser.addArgument("-p", "--params").required(true)
+        .help("Load the base training parameters file\n");
+    this.tuneParser.addArgument("-g", "--grid").required(true)
+        .help("Load the parameter grid file; each property holds a comma separated list of values\n");
+    this.tuneParser.addArgument("--search").required(false)
+        .choices("grid", "random")
+        .setDefault(Flags.DEFAULT_TUNE_SEARCH)
+        .help("Choose between exhaustive grid search and random search; it defaults to grid.\n");
+    this.tuneParser.addArgument("--trials").required(false)
+        .type(Integer.class)
+        .setDefault(Flags.DEFAULT_TUNE_TRIALS)
+        .help("Number of grid points sampled in random search.\n");
+    this.tuneParser.addArgument("--seed").required(false)
+        .type(Long.class)
+        .setDefault(0L)
+        .help("Random seed for random search.\n");
+    this.tuneParser.addArgument("-t", "--threads").required(false)
+        .type(Integer.class)
+        .setDefault(Runtime.getRuntime().availableProcessors())
+        .help("Number of training jobs run concurrently.\n");
+    this.tuneParser.addArgument("-o", "--outputModel").required(false)
+        .help("Save the best model found to this file.\n");
+  }
+  
+  /**
+   * Main entry point for updating a perceptron model with new or corrected
+   * samples.
+   * 
+   * @throws IOException
+   *           input output exception if problems with model or corpora
+   */
+  public final void update() throws IOException {
+
+    final ChunkerModel model = new ChunkerModel(new File(
+        this.parsedArguments.getString("model")));
+    final String testSet = this.parsedArguments.getString("testSet");
+    if (testSet != null) {
+      System.out.println("Before update:");
+      new Evaluate(testSet, model).evaluate();
+    }
+    final ModelUpdater updater = new ModelUpdater(model);
+    final ChunkerModel updatedModel = updater.update(new ChunkSampleStream(
+        InputOutputUtils.readFileIntoMarkableStreamFactory(this.parsedArguments
+            .getString("corpus"))), this.parsedArguments.getInt("passes"));
+    if (testSet != null) {
+      System.out.println("After update:");
+      new Evaluate(testSet, updatedModel).evaluate();
+    }
+    CmdLineUtil.writeModel("ixa-pipe-chunk",
+        new File(this.parsedArguments.getString("outputModel")), updatedModel);
+  }
+
+  /**
+   * Create the parameters available for updating models.
+   */
+  private void loadUpdateParameters() {
+    this.updateParser.addArgument("-m", "--model").required(true)
+        .help("Perceptron model to be updated\n");
+    this.updateParser.addArgument("-c", "--corpus").required(true)
+        .help("New or corrected samples in CoNLL 2000 format\n");
+    this.updateParser.addArgument("-o", "--outputModel").required(true)
+        .help("File to save the updated model\n");
+    this.updateParser.addArgument("-t", "--testSet").required(false)
+        .help("Report the F1 on this testset before and after the update\n");
+    this.updateParser.addArgument("--passes").required(false)
+        .type(Integer.class)
+        .setDefault(Flags.DEFAULT_UPDATE_PASSES)
+        .help("Number of passes over the samples; it defaults to 5.\n");
+  }
+
   /**
    * Set up the TCP socket for annotation.
    */
@@ -367,11 +665,39 @@ public class CLI {
 
     // load parameters into a properties
     String port = parsedArguments.getString("port");
+    String socketPath = parsedArguments.getString("socket");
+    if (port == null && socketPath == null) {
+      System.err.println("ERROR: server requires --port or --socket!");
+      System.exit(1);
+    }
+    checkUnixSockets(socketPath);
     String model = parsedArguments.getString("model");
     String outputFormat = parsedArguments.getString("outputFormat");
     // language parameter
     String lang = parsedArguments.getString("language");
     Properties serverproperties = setServerProperties(port, model, lang, outputFormat);
+    if (socketPath != null) {
+      serverproperties.setProperty("socketPath", socketPath);
+    }
+    serverproperties.setProperty("threads", parsedArguments.getString("threads"));
+    serverproperties.setProperty("queueSize", parsedArguments.getString("queueSize"));
+    serverproperties.setProperty("maxDocumentSize", parsedArguments.getString("maxDocumentSize"));
+    serverproperties.setProperty("deadline", parsedArguments.getString("deadline"));
+    serverproperties.setProperty("statsInterval", parsedArguments.getString("statsInterval"));
+    serverproperties.setProperty("scheduling", parsedArguments.getString("scheduling"));
+    serverproperties.setProperty("interactiveWeight", parsedArguments.getString("interactiveWeight"));
+    serverproperties.setProperty("starvationLimit", parsedArguments.getString("starvationLimit"));
+    serverproperties.setProperty("compressionThreshold", parsedArguments.getString("compressionThreshold"));
+    if (parsedArguments.getString("modelMemory") != null) {
+      serverproperties.setProperty("modelMemory", parsedArguments.getString("modelMemory"));
+    }
+    serverproperties.setProperty("virtualThreads", Boolean.toString(parsedArguments.getBoolean("virtualThreads")));
+    serverproperties.setProperty("sentenceThreads", parsedArguments.getString("sentenceThreads"));
+    serverproperties.setProperty("incremental", Boolean.toString(parsedArguments.getBoolean("incremental")));
+    serverproperties.setProperty("maxSentences", parsedArguments.getString("maxSentences"));
+    if (parsedArguments.getString("bulkQueueSize") != null) {
+      serverproperties.setProperty("bulkQueueSize", parsedArguments.getString("bulkQueueSize"));
+    }
     new ChunkerServer(serverproperties);
   }
   
@@ -386,9 +712,26 @@ public class CLI {
   public final void client(final InputStream inputStream,
       final OutputStream outputStream) {
 
+    if (parsedArguments.getString("port") == null
+        && parsedArguments.getString("socket") == null) {
+      System.err.println("ERROR: client requires --port or --socket!");
+      System.exit(1);
+    }
+    checkUnixSockets(parsedArguments.getString("socket"));
+    if (parsedArguments.getString("inputDir") != null) {
+      clientDirectory();
+      return;
+    }
+    if (parsedArguments.getString("compression") != null
+        && !parsedArguments.getBoolean("stats")) {
+      clientCompressed();
+      return;
+    }
     String host = parsedArguments.getString("host");
     String port = parsedArguments.getString("port");
-    try (Socket socketClient = new Socket(host, Integer.parseInt(port));
+    String socketPath = parsedArguments.getString("socket");
+    try (Socket socketClient = socketPath != null ? UnixSockets.connect(socketPath)
+        : new Socket(host, Integer.parseInt(port));
         BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
             System.in, "UTF-8"));
         BufferedWriter outToUser = new BufferedWriter(new OutputStreamWriter(
@@ -400,11 +743,20 @@ public class CLI {
 
       // send data to server socket
       StringBuilder inText = new StringBuilder();
-      String line;
-      while ((line = inFromUser.readLine()) != null) {
-        inText.append(line).append("\n");
+      StringBuilder document = new StringBuilder();
+      if (parsedArguments.getBoolean("stats")) {
+        inText.append(ChunkerServer.STATS).append("\n");
+      } else {
+        if (parsedArguments.getString("priority") != null) {
+          inText.append(ChunkerServer.PRIORITY).append(" ")
+              .append(parsedArguments.getString("priority")).append("\n");
+        }
+        String line;
+        while ((line = inFromUser.readLine()) != null) {
+          document.append(line).append("\n");
+        }
+        inText.append(document).append("<ENDOFDOCUMENT>").append("\n");
       }
-      inText.append("<ENDOFDOCUMENT>").append("\n");
       outToServer.write(inText.toString());
       outToServer.flush();
       
@@ -414,7 +766,11 @@ public class CLI {
       while ((kafString = inFromServer.readLine()) != null) {
         sb.append(kafString).append("\n");
       }
-      outToUser.write(sb.toString());
+      if (parsedArguments.getBoolean("merge") && !parsedArguments.getBoolean("stats")) {
+        outToUser.write(mergeDelta(document.toString(), sb.toString()));
+      } else {
+        outToUser.write(sb.toString());
+      }
     } catch (UnsupportedEncodingException e) {
       //this cannot happen but...
       throw new AssertionError("UTF-8 not supported");
@@ -429,13 +785,571 @@ public class CLI {
     }
   }
   
+  /**
+   * Merge the delta output of a server into the document sent.
+   * @param document the NAF document sent
+   * @param delta the delta output
+   * @return the merged NAF document
+   * @throws IOException if the delta cannot be merged
+   */
+  private static String mergeDelta(String document, String delta) throws IOException {
+    try {
+      KAFDocument kaf = KAFDocument.createFromStream(new StringReader(document));
+      NAFDelta.merge(kaf, new StringReader(delta));
+      StringWriter merged = new StringWriter();
+      NAFWriter.write(kaf, merged);
+      return merged.toString();
+    } catch (JDOMException | IllegalArgumentException e) {
+      throw new IOException("Cannot merge the delta: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Merge a delta output, from a file or the standard input, into its NAF
+   * document and write the result to the standard output.
+   * @throws IOException if io error
+   * @throws JDOMException if the documents are not well formed
+   */
+  public final void merge() throws IOException, JDOMException {
+    KAFDocument kaf = KAFDocument.createFromFile(new File(parsedArguments.getString("naf")));
+    String deltaFile = parsedArguments.getString("delta");
+    try (Reader delta = deltaFile == null ? new InputStreamReader(System.in, "UTF-8")
+        : new InputStreamReader(new FileInputStream(deltaFile), "UTF-8");
+        BufferedWriter bwriter = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"))) {
+      NAFDelta.merge(kaf, delta);
+      NAFWriter.write(kaf, bwriter);
+    }
+  }
+
+  /**
+   * Load the merge parameters.
+   */
+  private void loadMergeParameters() {
+    mergeParser.addArgument("-n", "--naf")
+        .required(true)
+        .help("The NAF document sent for annotation.\n");
+    mergeParser.addArgument("-d", "--delta")
+        .required(false)
+        .help("The delta output; it defaults to the standard input.\n");
+  }
+
+  /**
+   * Convert a perceptron or GIS model into a memory-mapped model.
+   *
+   * @throws IOException
+   *           if the model cannot be read or written
+   */
+  public final void map() throws IOException {
+    MappedChunkerModel.convert(new File(parsedArguments.getString("model")),
+        new File(parsedArguments.getString("output")));
+  }
+
+  /**
+   * Load the map parameters.
+   */
+  private void loadMapParameters() {
+    mapParser.addArgument("-m", "--model")
+        .required(true)
+        .help("Perceptron or GIS model to convert.\n");
+    mapParser.addArgument("-o", "--output")
+        .required(true)
+        .help("The memory-mapped model; pass it to tag or server with -m.\n");
+  }
+
+  /**
+   * Generate a synthetic corpus.
+   *
+   * @throws IOException
+   *           if the documents cannot be written
+   */
+  public final void generate() throws IOException {
+    Properties properties = new Properties();
+    properties.setProperty("seed", parsedArguments.getString("seed"));
+    properties.setProperty("language", parsedArguments.getString("language"));
+    properties.setProperty("documentSize", parsedArguments.getString("documentSize"));
+    properties.setProperty("sentenceLength", parsedArguments.getString("sentenceLength"));
+    properties.setProperty("vocabulary", parsedArguments.getString("vocabulary"));
+    new CorpusGenerator(properties).generate(
+        new File(parsedArguments.getString("outputDir")),
+        Integer.parseInt(parsedArguments.getString("documents")),
+        parsedArguments.getString("format"));
+  }
+
+  /**
+   * Load the generate parameters.
+   */
+  private void loadGenerateParameters() {
+    generateParser.addArgument("--outputDir")
+        .required(true)
+        .help("Directory of the generated documents.\n");
+    generateParser.addArgument("-n", "--documents")
+        .required(false)
+        .setDefault("10")
+        .help("Number of documents.\n");
+    generateParser.addArgument("--documentSize")
+        .required(false)
+        .setDefault("100KB")
+        .help("Size of every document in bytes, with an optional KB, MB or GB suffix.\n");
+    generateParser.addArgument("-f", "--format")
+        .required(false)
+        .choices("naf", "conll")
+        .setDefault("naf")
+        .help("NAF with text and terms layers, or CoNLL 2000.\n");
+    generateParser.addArgument("--sentenceLength")
+        .required(false)
+        .setDefault("lognormal:22:10")
+        .help("Distribution of the tokens per sentence: fixed:N, uniform:MIN:MAX or lognormal:MEAN:SD.\n");
+    generateParser.addArgument("--vocabulary")
+        .required(false)
+        .setDefault("10000")
+        .help("Number of distinct open class words.\n");
+    generateParser.addArgument("--seed")
+        .required(false)
+        .setDefault("42")
+        .help("Seed of the generator; the same seed generates the same corpus.\n");
+    generateParser.addArgument("-l", "--language")
+        .required(false)
+        .setDefault("en")
+        .help("Language of the NAF documents.\n");
+  }
+
+  /**
+   * Annotate the documents of a directory or a manifest with several server
+   * processes.
+   *
+   * @throws IOException
+   *           if the documents cannot be read or written
+   */
+  public final void coordinate() throws IOException {
+    String inputDir = parsedArguments.getString("inputDir");
+    String manifest = parsedArguments.getString("manifest");
+    if (inputDir == null && manifest == null) {
+      System.err.println("ERROR: coordinate requires --inputDir or --manifest!");
+      System.exit(1);
+    }
+    List<File> files;
+    if (manifest != null) {
+      files = ShardCoordinator.readManifest(new File(manifest),
+          inputDir == null ? null : new File(inputDir));
+    } else {
+      File[] inputFiles = new File(inputDir).listFiles();
+      if (inputFiles == null) {
+        throw new IOException(inputDir + " is not a directory");
+      }
+      Arrays.sort(inputFiles);
+      files = new ArrayList<File>();
+      for (File file : inputFiles) {
+        if (file.isFile()) {
+          files.add(file);
+        }
+      }
+    }
+    Properties properties = new Properties();
+    String[] keys = { "ports", "workers", "basePort", "model", "language",
+        "outputFormat", "workerThreads", "workerOptions", "shardSize",
+        "pipelineDepth", "timeout", "maxRetries", "maxRestarts" };
+    for (String key : keys) {
+      if (parsedArguments.getString(key) != null) {
+        properties.setProperty(key, parsedArguments.getString(key));
+      }
+    }
+    int failed = 0;
+    try {
+      failed = new ShardCoordinator(properties).annotate(files,
+          inputDir == null ? null : new File(inputDir),
+          new File(parsedArguments.getString("outputDir")));
+    } catch (IllegalArgumentException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+    if (failed > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Load the coordinate parameters.
+   */
+  private void loadCoordinateParameters() {
+    coordinateParser.addArgument("--inputDir")
+        .required(false)
+        .help("Directory of NAF documents; with --manifest, the base of its relative paths.\n");
+    coordinateParser.addArgument("--manifest")
+        .required(false)
+        .help("File listing the documents to annotate, one path per line; without --inputDir the outputs are named after the input files, which must then be unique.\n");
+    coordinateParser.addArgument("--outputDir")
+        .required(true)
+        .help("Directory of the annotated documents.\n");
+    coordinateParser.addArgument("--ports")
+        .required(false)
+        .help("Comma separated ports of running servers; if not set workers are launched.\n");
+    coordinateParser.addArgument("-w", "--workers")
+        .required(false)
+        .setDefault("2")
+        .help("Number of worker processes to launch.\n");
+    coordinateParser.addArgument("--basePort")
+        .required(false)
+        .setDefault("5700")
+        .help("Port of the first launched worker; the others take the next ports.\n");
+    coordinateParser.addArgument("-m", "--model")
+        .required(false)
+        .help("Model of the launched workers.\n");
+    coordinateParser.addArgument("-l", "--language")
+        .required(false)
+        .setDefault("en")
+        .help("Language of the launched workers.\n");
+    coordinateParser.addArgument("-o", "--outputFormat")
+        .required(false)
+        .choices("naf", "conll", "conll00", "delta")
+        .setDefault("naf")
+        .help("Output format of the launched workers.\n");
+    coordinateParser.addArgument("--workerThreads")
+        .required(false)
+        .help("Annotation threads of every launched worker.\n");
+    coordinateParser.addArgument("--workerOptions")
+        .required(false)
+        .help("JVM options of the launched workers, e.g. \"-Xmx2g\".\n");
+    coordinateParser.addArgument("--shardSize")
+        .required(false)
+        .setDefault("16")
+        .help("Documents per shard.\n");
+    coordinateParser.addArgument("--pipelineDepth")
+        .required(false)
+        .setDefault("4")
+        .help("Documents in flight per worker.\n");
+    coordinateParser.addArgument("--timeout")
+        .required(false)
+        .setDefault("600000")
+        .help("Milliseconds to wait for each document.\n");
+    coordinateParser.addArgument("--maxRetries")
+        .required(false)
+        .setDefault("3")
+        .help("Times a shard is retried after its worker dies.\n");
+    coordinateParser.addArgument("--maxRestarts")
+        .required(false)
+        .setDefault("3")
+        .help("Times a launched worker is restarted after dying.\n");
+  }
+
+  /**
+   * Annotate the documents dropped into a spool directory until the JVM is
+   * stopped.
+   *
+   * @throws IOException
+   *           if the model cannot be loaded or the directory watched
+   */
+  public final void watch() throws IOException {
+    Properties properties = setAnnotateProperties(
+        parsedArguments.getString("model"), parsedArguments.getString("language"));
+    String[] keys = { "inputDir", "outputDir", "doneDir", "failedDir",
+        "outputFormat", "threads", "maxInFlight", "settle", "statsInterval" };
+    for (String key : keys) {
+      if (parsedArguments.getString(key) != null) {
+        properties.setProperty(key, parsedArguments.getString(key));
+      }
+    }
+    SpoolWatcher watcher = null;
+    try {
+      watcher = new SpoolWatcher(properties);
+    } catch (IllegalArgumentException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+    watcher.watch();
+  }
+
+  /**
+   * Load the watch parameters.
+   */
+  private void loadWatchParameters() {
+    watchParser.addArgument("-m", "--model")
+        .required(true)
+        .help("Choose model to perform chunk tagging.\n");
+    watchParser.addArgument("-l", "--language")
+        .required(false)
+        .choices("en")
+        .setDefault("en")
+        .help("Choose a language to perform annotation with ixa-pipe-chunk.\n");
+    watchParser.addArgument("-o", "--outputFormat")
+        .required(false)
+        .choices("naf", "conll", "delta")
+        .setDefault("naf")
+        .help("Choose between NAF, conll and delta format; it defaults to NAF.\n");
+    watchParser.addArgument("--inputDir")
+        .required(true)
+        .help("Spool directory where the NAF documents are dropped.\n");
+    watchParser.addArgument("--outputDir")
+        .required(true)
+        .help("Directory of the annotated documents.\n");
+    watchParser.addArgument("--doneDir")
+        .required(false)
+        .help("Directory the annotated inputs are moved to; it defaults to done in --inputDir.\n");
+    watchParser.addArgument("--failedDir")
+        .required(false)
+        .help("Directory the inputs which cannot be annotated are moved to; it defaults to failed in --inputDir.\n");
+    watchParser.addArgument("-t", "--threads")
+        .required(false)
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors()))
+        .help("Documents annotated at the same time; it defaults to the number of cores.\n");
+    watchParser.addArgument("--maxInFlight")
+        .required(false)
+        .help("Documents annotated or queued at the same time; it defaults to four per thread.\n");
+    watchParser.addArgument("--settle")
+        .required(false)
+        .setDefault("1000")
+        .help("Milliseconds a new file must stay unchanged before it is annotated.\n");
+    watchParser.addArgument("--statsInterval")
+        .required(false)
+        .setDefault("60")
+        .help("Seconds between throughput statistics.\n");
+  }
+
+  /**
+   * Get the servers of the client, the Unix domain socket or every host with
+   * the default port.
+   * @return the servers property of the {@link ChunkerClient}
+   */
+  private String clientServers() {
+    if (parsedArguments.getString("socket") != null) {
+      return ChunkerClient.UNIX_PREFIX + parsedArguments.getString("socket");
+    }
+    StringBuilder servers = new StringBuilder();
+    for (String host : parsedArguments.getString("host").split(",")) {
+      if (servers.length() > 0) {
+        servers.append(",");
+      }
+      servers.append(host.contains(":") ? host : host + ":"
+          + parsedArguments.getString("port"));
+    }
+    return servers.toString();
+  }
+
+  /**
+   * Exit if a Unix domain socket is requested on a JVM without them.
+   * @param socketPath the socket file, or null
+   */
+  private static void checkUnixSockets(String socketPath) {
+    if (socketPath != null && !UnixSockets.isAvailable()) {
+      System.err.println("ERROR: --socket requires Java 16 or later!");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Send the document in the standard input through a compressed connection.
+   */
+  private void clientCompressed() {
+    Properties clientProperties = new Properties();
+    clientProperties.setProperty("servers", clientServers());
+    clientProperties.setProperty("connections", "1");
+    clientProperties.setProperty("compression", parsedArguments.getString("compression"));
+    clientProperties.setProperty("compressionThreshold", parsedArguments.getString("compressionThreshold"));
+    if (parsedArguments.getString("priority") != null) {
+      clientProperties.setProperty("priority", parsedArguments.getString("priority"));
+    }
+    try (ChunkerClient chunkerClient = new ChunkerClient(clientProperties);
+        BufferedReader inFromUser = new BufferedReader(new InputStreamReader(
+            System.in, "UTF-8"));
+        BufferedWriter outToUser = new BufferedWriter(new OutputStreamWriter(
+            System.out, "UTF-8"))) {
+      StringBuilder inText = new StringBuilder();
+      String line;
+      while ((line = inFromUser.readLine()) != null) {
+        inText.append(line).append("\n");
+      }
+      String annotated = chunkerClient.annotate(inText.toString());
+      if (parsedArguments.getBoolean("merge")) {
+        annotated = mergeDelta(inText.toString(), annotated);
+      }
+      outToUser.write(annotated);
+    } catch (IOException e) {
+      System.err.println("ERROR: " + e.getMessage());
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Send every document of a directory concurrently to one or more servers
+   * and write the annotations with the same file names in the output
+   * directory.
+   */
+  private void clientDirectory() {
+    File inputDir = new File(parsedArguments.getString("inputDir"));
+    File outputDir = new File(parsedArguments.getString("outputDir"));
+    if (!inputDir.isDirectory()) {
+      System.err.println("ERROR: " + inputDir + " is not a directory!");
+      System.exit(1);
+    }
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      System.err.println("ERROR: Cannot create " + outputDir + " directory!");
+      System.exit(1);
+    }
+    Properties clientProperties = new Properties();
+    clientProperties.setProperty("servers", clientServers());
+    clientProperties.setProperty("connections", parsedArguments.getString("connections"));
+    clientProperties.setProperty("timeout", parsedArguments.getString("timeout"));
+    clientProperties.setProperty("retries", parsedArguments.getString("retries"));
+    if (parsedArguments.getString("compression") != null) {
+      clientProperties.setProperty("compression", parsedArguments.getString("compression"));
+      clientProperties.setProperty("compressionThreshold", parsedArguments.getString("compressionThreshold"));
+    }
+    if (parsedArguments.getString("priority") != null) {
+      clientProperties.setProperty("priority", parsedArguments.getString("priority"));
+    }
+
+    final AtomicInteger failed = new AtomicInteger();
+    List<CompletableFuture<Void>> results = new ArrayList<CompletableFuture<Void>>();
+    try (ChunkerClient chunkerClient = new ChunkerClient(clientProperties)) {
+      File[] inputFiles = inputDir.listFiles();
+      Arrays.sort(inputFiles);
+      for (final File inputFile : inputFiles) {
+        if (!inputFile.isFile()) {
+          continue;
+        }
+        final File outputFile = new File(outputDir, inputFile.getName());
+        final String document = Files.toString(inputFile, Charsets.UTF_8);
+        final boolean merge = parsedArguments.getBoolean("merge");
+        results.add(chunkerClient.submit(document).handle(
+            new BiFunction<String, Throwable, Void>() {
+              @Override
+              public Void apply(String annotated, Throwable error) {
+                try {
+                  if (error != null) {
+                    throw error;
+                  }
+                  if (merge) {
+                    annotated = mergeDelta(document, annotated);
+                  }
+                  Files.write(annotated, outputFile, Charsets.UTF_8);
+                } catch (Throwable e) {
+                  failed.incrementAndGet();
+                  System.err.println("ERROR: " + inputFile + ": " + e.getMessage());
+                }
+                return null;
+              }
+            }));
+      }
+      CompletableFuture.allOf(results.toArray(new CompletableFuture[results.size()])).join();
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+    System.err.println("Annotated " + (results.size() - failed.get()) + " of "
+        + results.size() + " documents into " + outputDir);
+    if (failed.get() > 0) {
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Replay a directory of documents against the TCP server and report
+   * throughput and latency percentiles.
+   * 
+   * @throws IOException
+   *           if the documents cannot be read
+   */
+  public final void bench() throws IOException {
+    List<String> documents = LoadGenerator.readDocuments(
+        new File(parsedArguments.getString("inputDir")),
+        parsedArguments.getString("inputFormat"),
+        parsedArguments.getString("language"));
+    Properties clientProperties = new Properties();
+    clientProperties.setProperty("servers", parsedArguments.getString("host")
+        + ":" + parsedArguments.getString("port"));
+    clientProperties.setProperty("connections", parsedArguments.getString("concurrency"));
+    clientProperties.setProperty("timeout", parsedArguments.getString("timeout"));
+    clientProperties.setProperty("retries", "0");
+    if (parsedArguments.getString("compression") != null) {
+      clientProperties.setProperty("compression", parsedArguments.getString("compression"));
+    }
+    if (parsedArguments.getString("priority") != null) {
+      clientProperties.setProperty("priority", parsedArguments.getString("priority"));
+    }
+    LoadGenerator loadGenerator = new LoadGenerator(documents, clientProperties);
+    int warmup = Integer.parseInt(parsedArguments.getString("warmup"));
+    int duration = Integer.parseInt(parsedArguments.getString("duration"));
+    try {
+      if (parsedArguments.getString("rate") != null) {
+        System.out.print(loadGenerator.runOpenLoop(
+            Double.parseDouble(parsedArguments.getString("rate")), warmup,
+            duration));
+      } else {
+        System.out.print(loadGenerator.runClosedLoop(
+            Integer.parseInt(parsedArguments.getString("concurrency")),
+            warmup, duration,
+            Long.parseLong(parsedArguments.getString("expectedInterval"))));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      System.err.println("Benchmark interrupted!");
+    }
+  }
+
+  /**
+   * Load the bench parameters.
+   */
+  private void loadBenchParameters() {
+    benchParser.addArgument("-p", "--port")
+        .required(true)
+        .help("Port of the TCP server.\n");
+    benchParser.addArgument("--host")
+        .required(false)
+        .setDefault(Flags.DEFAULT_HOSTNAME)
+        .help("Hostname or IP where the TCP server is running.\n");
+    benchParser.addArgument("--inputDir")
+        .required(true)
+        .help("Directory of documents to replay.\n");
+    benchParser.addArgument("--inputFormat")
+        .required(false)
+        .choices("naf", "conll")
+        .setDefault("naf")
+        .help("Format of the documents; CoNLL 2000 documents are sent as NAF.\n");
+    benchParser.addArgument("-l", "--language")
+        .required(false)
+        .setDefault("en")
+        .help("Language of the NAF documents created from CoNLL.\n");
+    benchParser.addArgument("-c", "--concurrency")
+        .required(false)
+        .setDefault("8")
+        .help("Concurrent clients in closed loop, or connections in open loop.\n");
+    benchParser.addArgument("--priority")
+        .required(false)
+        .choices("interactive", "bulk")
+        .help("Priority of the documents in the server.\n");
+    benchParser.addArgument("--compression")
+        .required(false)
+        .choices("gzip", "deflate")
+        .help("Compress the documents and the responses.\n");
+    benchParser.addArgument("--rate")
+        .required(false)
+        .help("Documents per second; if set the load is generated in open loop.\n");
+    benchParser.addArgument("--duration")
+        .required(false)
+        .setDefault("30")
+        .help("Seconds measured.\n");
+    benchParser.addArgument("--warmup")
+        .required(false)
+        .setDefault("5")
+        .help("Seconds run before measuring.\n");
+    benchParser.addArgument("--timeout")
+        .required(false)
+        .setDefault("60000")
+        .help("Milliseconds before a document is counted as a timeout.\n");
+    benchParser.addArgument("--expectedInterval")
+        .required(false)
+        .setDefault("0")
+        .help("Expected milliseconds between the requests of a closed loop client, to correct for coordinated omission.\n");
+  }
+
   /**
    * Create the available parameters for POS tagging.
    */
   private void loadServerParameters() {
     serverParser.addArgument("-p", "--port")
-        .required(true)
+        .required(false)
         .help("Port to be assigned to the server.\n");
+    serverParser.addArgument("--socket")
+        .required(false)
+        .help("Listen on this Unix domain socket file instead of a port (Java 16).\n");
     serverParser.addArgument("-m", "--model")
         .required(true)
         .help("It is required to provide a chunker model.");
@@ -445,9 +1359,66 @@ public class CLI {
         .help("Choose a language to perform annotation with ixa-pipe-chunk.");
     serverParser.addArgument("-o", "--outputFormat")
         .required(false)
-        .choices("naf", "conll00")
+        .choices("naf", "conll00", "delta")
         .setDefault(Flags.DEFAULT_OUTPUT_FORMAT)
-        .help("Choose output format; it defaults to NAF.\n");
+        .help("Choose output format; delta sends only the new chunks layer; it defaults to NAF.\n");
+    serverParser.addArgument("--modelMemory")
+        .required(false)
+        .help("Megabytes the loaded models may take; least recently used models are unloaded beyond it.\n");
+    serverParser.addArgument("--virtualThreads")
+        .action(Arguments.storeTrue())
+        .help("Serve every connection on its own virtual thread (Java 21).\n");
+    serverParser.addArgument("--sentenceThreads")
+        .required(false)
+        .setDefault("1")
+        .help("Number of threads decoding the sentences of every document in parallel; it defaults to 1.\n");
+    serverParser.addArgument("--incremental")
+        .action(Arguments.storeTrue())
+        .help("Chunk only the sentences without chunks, reusing the chunks of sentences seen before.\n");
+    serverParser.addArgument("--maxSentences")
+        .required(false)
+        .setDefault(Integer.toString(SentenceFingerprints.DEFAULT_MAX_SENTENCES))
+        .help("Maximum sentence fingerprints kept in incremental mode.\n");
+    serverParser.addArgument("-t", "--threads")
+        .required(false)
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors()))
+        .help("Number of documents annotated concurrently; it defaults to the number of processors.\n");
+    serverParser.addArgument("--queueSize")
+        .required(false)
+        .setDefault(Integer.toString(Runtime.getRuntime().availableProcessors() * 4))
+        .help("Documents waiting for a free thread before the server answers busy; it defaults to four per processor.\n");
+    serverParser.addArgument("--maxDocumentSize")
+        .required(false)
+        .setDefault("0")
+        .help("Maximum number of characters of a document; 0 for no limit.\n");
+    serverParser.addArgument("--deadline")
+        .required(false)
+        .setDefault("0")
+        .help("Milliseconds after its arrival to abort the annotation of a document; 0 for no deadline.\n");
+    serverParser.addArgument("--statsInterval")
+        .required(false)
+        .setDefault("0")
+        .help("Seconds between the metrics printed to stderr; 0 to print none.\n");
+    serverParser.addArgument("--bulkQueueSize")
+        .required(false)
+        .help("Bulk documents waiting for a free thread before the server answers busy; it defaults to queueSize.\n");
+    serverParser.addArgument("--scheduling")
+        .required(false)
+        .choices("weighted", "strict")
+        .setDefault("weighted")
+        .help("Take interactive and bulk documents by weight or always interactive first; it defaults to weighted.\n");
+    serverParser.addArgument("--interactiveWeight")
+        .required(false)
+        .setDefault("4")
+        .help("Interactive documents annotated for every bulk document with weighted scheduling.\n");
+    serverParser.addArgument("--starvationLimit")
+        .required(false)
+        .setDefault("1000")
+        .help("Milliseconds a bulk document may wait with strict scheduling before it is taken anyway.\n");
+    serverParser.addArgument("--compressionThreshold")
+        .required(false)
+        .setDefault(Integer.toString(Compression.DEFAULT_THRESHOLD))
+        .help("Minimum bytes of a compressed response when the client asks for compression.\n");
   }
   
   /**
@@ -455,12 +1426,52 @@ public class CLI {
    */
   private void loadClientParameters() { 
     clientParser.addArgument("-p", "--port")
-        .required(true)
+        .required(false)
         .help("Port of the TCP server.\n");
+    clientParser.addArgument("--socket")
+        .required(false)
+        .help("Unix domain socket file of a server on this host, instead of --host and --port (Java 16).\n");
     clientParser.addArgument("--host")
         .required(false)
         .setDefault(Flags.DEFAULT_HOSTNAME)
-        .help("Hostname or IP where the TCP server is running.\n");
+        .help("Hostname or IP where the TCP server is running; a comma separated list of host[:port] is accepted with --inputDir.\n");
+    clientParser.addArgument("--inputDir")
+        .required(false)
+        .help("Send every document in this directory concurrently.\n");
+    clientParser.addArgument("--outputDir")
+        .required(false)
+        .setDefault(".")
+        .help("Directory to write the annotated documents of --inputDir.\n");
+    clientParser.addArgument("--connections")
+        .required(false)
+        .setDefault("2")
+        .help("Connections per server with --inputDir.\n");
+    clientParser.addArgument("--timeout")
+        .required(false)
+        .setDefault("60000")
+        .help("Milliseconds to wait for each document with --inputDir.\n");
+    clientParser.addArgument("--retries")
+        .required(false)
+        .setDefault("2")
+        .help("Times a document is resent after a connection failure with --inputDir.\n");
+    clientParser.addArgument("--priority")
+        .required(false)
+        .choices("interactive", "bulk")
+        .help("Priority of the documents in the server.\n");
+    clientParser.addArgument("--compression")
+        .required(false)
+        .choices("gzip", "deflate")
+        .help("Compress the documents and the responses.\n");
+    clientParser.addArgument("--compressionThreshold")
+        .required(false)
+        .setDefault(Integer.toString(Compression.DEFAULT_THRESHOLD))
+        .help("Minimum bytes of a compressed document.\n");
+    clientParser.addArgument("--merge")
+        .action(Arguments.storeTrue())
+        .help("Merge the delta output of a server into the documents sent.\n");
+    clientParser.addArgument("--stats")
+        .action(Arguments.storeTrue())
+        .help("Print the metrics of the server instead of sending a document.\n");
   }
 
 
@@ -491,7 +1502,9 @@ public class CLI {
    */
   private Properties setServerProperties(String port, String model, String language, String outputFormat) {
     Properties serverProperties = new Properties();
-    serverProperties.setProperty("port", port);
+    if (port != null) {
+      serverProperties.setProperty("port", port);
+    }
     serverProperties.setProperty("model", model);
     serverProperties.setProperty("language", language);
     serverProperties.setProperty("outputFormat", outputFormat);
@@ -0,0 +1,212 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+import opennlp.tools.util.Span;
+
+/**
+ * Reusable buffer with the chunks of a sentence as primitive arrays: the
+ * start (inclusive) and end (exclusive) token indexes and the type id of
+ * every chunk. {@link ChunkTagger#chunk(String[], String[], ChunkSpans)}
+ * overwrites the buffer, which only grows, so chunking many sentences with
+ * the same buffer allocates no spans. Chunk types, e.g. NP, are interned
+ * once for the whole JVM and identified by small integers.
+ */
+public final class ChunkSpans {
+
+  /**
+   * The ids of the chunk types.
+   */
+  private static final ConcurrentHashMap<String, Integer> typeIds = new ConcurrentHashMap<String, Integer>();
+  /**
+   * The chunk types by id.
+   */
+  private static volatile String[] typeNames = new String[0];
+
+  private int[] starts;
+  private int[] ends;
+  private int[] types;
+  private int size = 0;
+
+  /**
+   * Construct an empty buffer.
+   */
+  public ChunkSpans() {
+    this(16);
+  }
+
+  /**
+   * Construct an empty buffer.
+   *
+   * @param capacity
+   *          the initial number of chunks
+   */
+  public ChunkSpans(final int capacity) {
+    starts = new int[Math.max(1, capacity)];
+    ends = new int[starts.length];
+    types = new int[starts.length];
+  }
+
+  /**
+   * Get the id of a chunk type, interning it if needed.
+   *
+   * @param name
+   *          the type, e.g. NP
+   * @return the id
+   */
+  public static int typeId(final String name) {
+    final Integer id = typeIds.get(name);
+    if (id != null) {
+      return id;
+    }
+    synchronized (typeIds) {
+      final Integer known = typeIds.get(name);
+      if (known != null) {
+        return known;
+      }
+      final String[] names = Arrays.copyOf(typeNames, typeNames.length + 1);
+      names[names.length - 1] = name;
+      typeNames = names;
+      typeIds.put(name, names.length - 1);
+      return names.length - 1;
+    }
+  }
+
+  /**
+   * Get the chunk type of an id.
+   *
+   * @param id
+   *          the id
+   * @return the type
+   */
+  public static String typeName(final int id) {
+    return typeNames[id];
+  }
+
+  /**
+   * Get the number of chunks.
+   *
+   * @return the number of chunks
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Get the first token of a chunk.
+   *
+   * @param i
+   *          the chunk
+   * @return the token index
+   */
+  public int getStart(final int i) {
+    return starts[i];
+  }
+
+  /**
+   * Get the token after the last token of a chunk.
+   *
+   * @param i
+   *          the chunk
+   * @return the token index
+   */
+  public int getEnd(final int i) {
+    return ends[i];
+  }
+
+  /**
+   * Get the type id of a chunk.
+   *
+   * @param i
+   *          the chunk
+   * @return the type id
+   */
+  public int getType(final int i) {
+    return types[i];
+  }
+
+  /**
+   * Get the type of a chunk.
+   *
+   * @param i
+   *          the chunk
+   * @return the type
+   */
+  public String getTypeName(final int i) {
+    return typeName(types[i]);
+  }
+
+  /**
+   * Remove every chunk.
+   */
+  public void clear() {
+    size = 0;
+  }
+
+  /**
+   * Add a chunk.
+   *
+   * @param start
+   *          the first token
+   * @param end
+   *          the token after the last token
+   * @param type
+   *          the type id
+   */
+  public void add(final int start, final int end, final int type) {
+    if (size == starts.length) {
+      starts = Arrays.copyOf(starts, size * 2);
+      ends = Arrays.copyOf(ends, size * 2);
+      types = Arrays.copyOf(types, size * 2);
+    }
+    starts[size] = start;
+    ends[size] = end;
+    types[size] = type;
+    size++;
+  }
+
+  /**
+   * Replace the chunks with spans.
+   *
+   * @param spans
+   *          the spans
+   */
+  public void set(final Span[] spans) {
+    clear();
+    for (final Span span : spans) {
+      add(span.getStart(), span.getEnd(), typeId(span.getType() == null ? ""
+          : span.getType()));
+    }
+  }
+
+  /**
+   * Copy the chunks to spans.
+   *
+   * @return the spans
+   */
+  public Span[] toSpans() {
+    final Span[] spans = new Span[size];
+    for (int i = 0; i < size; i++) {
+      spans[i] = new Span(starts[i], ends[i], getTypeName(i));
+    }
+    return spans;
+  }
+
+}
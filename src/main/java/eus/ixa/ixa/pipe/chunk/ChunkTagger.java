@@ -15,59 +15,66 @@
 
 package eus.ixa.ixa.pipe.chunk;
 
-import java.io.FileInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.util.Date;
 import java.util.Properties;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import opennlp.tools.chunker.ChunkerME;
-import opennlp.tools.chunker.ChunkerModel;
 import opennlp.tools.util.Span;
 
-public class ChunkTagger {
+/**
+ * Chunks the sentences of one thread with a model of the
+ * {@link ModelRegistry}. The model is kept in the registry, and never
+ * evicted, from the construction of the tagger until it is closed.
+ */
+public class ChunkTagger implements Closeable {
 
-  private ChunkerME chunkerTagger;
-  private static ConcurrentHashMap<String, ChunkerModel> chunkerModels = new ConcurrentHashMap<String, ChunkerModel>();
+  /**
+   * The model file, shared with every tagger through the {@link ModelRegistry}.
+   */
+  private final String model;
+  /**
+   * The decoder of this tagger, null once closed.
+   */
+  private ChunkerME decoder;
+  /**
+   * The decoded outcomes, e.g. B-NP, shared by every tagger.
+   */
+  private static final ConcurrentMap<String, Outcome> outcomes = new ConcurrentHashMap<String, Outcome>();
 
   /**
-   * Construct a chunk tagger.
+   * Construct a chunk tagger, loading the model if it is not loaded yet and
+   * keeping it in the registry until {@link #close()}.
    * 
    * @param properties the language and model
    */
   public ChunkTagger(Properties properties) {
-    String lang = properties.getProperty("language");
-    final String model = properties.getProperty("model");
-    ChunkerModel posModel = loadModel(lang, model);
-    chunkerTagger = new ChunkerME(posModel);
+    model = properties.getProperty("model");
+    try {
+      decoder = ModelRegistry.getInstance().acquireDecoder(model, this);
+    } catch (final IOException e) {
+      throw new IllegalStateException("Cannot load model " + model, e);
+    }
+  }
+
+  private ChunkerME getDecoder() {
+    if (decoder == null) {
+      throw new IllegalStateException("Tagger of " + model + " closed");
+    }
+    return decoder;
   }
 
   /**
-   * Loads statically the probabilistic model. Every instance of this finder
-   * will share the same model.
-   * 
-   * @param lang
-   *          the language
-   * @param model
-   *          the model to be loaded
-   * @return the model as a {@link ChunkerModel} object
+   * Release the model, which may then be evicted from the registry.
    */
-  private ChunkerModel loadModel(final String lang, final String model) {
-    final long lStartTime = new Date().getTime();
-    try {
-      synchronized (chunkerModels) {
-        if (!chunkerModels.containsKey(lang)) {
-          chunkerModels.put(lang, new ChunkerModel(new FileInputStream(model)));
-        }
-      }
-    } catch (final IOException e) {
-      e.printStackTrace();
+  @Override
+  public void close() {
+    if (decoder != null) {
+      decoder = null;
+      ModelRegistry.getInstance().release(model);
     }
-    final long lEndTime = new Date().getTime();
-    final long difference = lEndTime - lStartTime;
-    System.err.println("ixa-pipe-chunk model loaded in: " + difference
-        + " miliseconds ... [DONE]");
-    return chunkerModels.get(lang);
   }
 
   /**
@@ -80,8 +87,7 @@ public class ChunkTagger {
    * @return the array containing the chunks
    */
   public String[] chunkToString(String[] tokens, String[] posTags) {
-    String[] chunks = chunkerTagger.chunk(tokens, posTags);
-    return chunks;
+    return getDecoder().chunk(tokens, posTags);
   }
 
   /**
@@ -94,8 +100,92 @@ public class ChunkTagger {
    * @return the chunk spans
    */
   public Span[] chunk(String[] tokens, String[] posTags) {
-    Span[] chunks = chunkerTagger.chunkAsSpans(tokens, posTags);
-    return chunks;
+    return getDecoder().chunkAsSpans(tokens, posTags);
+  }
+
+  /**
+   * Get chunks into a reusable buffer, grouping the BIO outcomes as
+   * {@link #chunk(String[], String[])} does without creating spans.
+   * 
+   * @param tokens
+   *          the tokens
+   * @param posTags
+   *          the pos tags
+   * @param chunks
+   *          the buffer, overwritten with the chunks
+   * @return the number of chunks
+   */
+  public int chunk(String[] tokens, String[] posTags, ChunkSpans chunks) {
+    return group(chunkToString(tokens, posTags), chunks);
+  }
+
+  /**
+   * Group BIO outcomes into chunks with the rules of
+   * {@link opennlp.tools.chunker.ChunkSample#phrasesAsSpanList}: a chunk
+   * starts at every B- outcome and at every I- outcome which does not
+   * continue a chunk of the same type, and ends before the next start or O.
+   * 
+   * @param preds
+   *          the outcomes, e.g. B-NP
+   * @param chunks
+   *          the buffer, overwritten with the chunks
+   * @return the number of chunks
+   */
+  static int group(String[] preds, ChunkSpans chunks) {
+    chunks.clear();
+    int startType = -1;
+    int startIndex = 0;
+    for (int i = 0; i < preds.length; i++) {
+      Outcome outcome = getOutcome(preds[i]);
+      if (outcome.kind == Outcome.INSIDE && outcome.type == startType) {
+        continue;
+      }
+      if (startType >= 0) {
+        chunks.add(startIndex, i, startType);
+        startType = -1;
+      }
+      if (outcome.kind != Outcome.OUTSIDE) {
+        startIndex = i;
+        startType = outcome.type;
+      }
+    }
+    if (startType >= 0) {
+      chunks.add(startIndex, preds.length, startType);
+    }
+    return chunks.size();
+  }
+
+  private static Outcome getOutcome(String pred) {
+    Outcome outcome = outcomes.get(pred);
+    if (outcome == null) {
+      outcome = new Outcome(pred);
+      Outcome known = outcomes.putIfAbsent(pred, outcome);
+      if (known != null) {
+        outcome = known;
+      }
+    }
+    return outcome;
+  }
+
+  /**
+   * A BIO outcome of the chunker.
+   */
+  private static final class Outcome {
+    private static final int BEGIN = 0;
+    private static final int INSIDE = 1;
+    private static final int OUTSIDE = 2;
+    private final int kind;
+    private final int type;
+
+    private Outcome(String pred) {
+      if (pred.equals("O")) {
+        kind = OUTSIDE;
+        type = -1;
+      } else {
+        kind = pred.startsWith("I-") ? INSIDE : BEGIN;
+        type = ChunkSpans.typeId(pred.substring(2));
+      }
+    }
   }
 
 }
\ No newline at end of file
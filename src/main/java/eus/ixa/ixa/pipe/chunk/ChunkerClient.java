@@ -0,0 +1,651 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * Client for one or more {@link ChunkerServer}s. It keeps a pool of
+ * persistent connections in pipeline mode and sends documents without
+ * waiting for previous responses, up to a maximum number of documents in
+ * flight per connection. Documents are annotated asynchronously; failed
+ * connections are reopened and their documents retried on any connection of
+ * the pool. Each connection connects and writes on its own thread, so a slow
+ * server never blocks the callers or the threads reading the responses.
+ * <p>
+ * The client is configured with the following properties:
+ * <ul>
+ * <li>servers: comma separated list of host:port, or unix:path for a server
+ * listening on a Unix domain socket of the same host (required).</li>
+ * <li>connections: connections per server, defaults to 2.</li>
+ * <li>pipelineDepth: documents in flight per connection, defaults to 8.</li>
+ * <li>timeout: milliseconds to wait for each document, defaults to 60000.</li>
+ * <li>retries: times a document is resent after a connection failure,
+ * defaults to 2.</li>
+ * <li>priority: interactive or bulk, the priority of the documents in the
+ * server; if not set the server default is used.</li>
+ * <li>compression: comma separated codings offered to the server, e.g. gzip
+ * or deflate; if not set documents are not compressed.</li>
+ * <li>compressionThreshold: minimum bytes of a compressed document, defaults
+ * to 1024.</li>
+ * </ul>
+ */
+public class ChunkerClient implements Closeable {
+
+  /**
+   * Milliseconds a connection that failed to connect is left out of the pool.
+   */
+  private static final long RECONNECT_DELAY = 1000;
+  /**
+   * Prefix of the servers listening on a Unix domain socket.
+   */
+  public static final String UNIX_PREFIX = "unix:";
+
+  /**
+   * The connection pool.
+   */
+  private final List<Connection> connections = new ArrayList<Connection>();
+  /**
+   * The documents waiting for a connection with free capacity.
+   */
+  private final Deque<Request> waiting = new ArrayDeque<Request>();
+  /**
+   * Maximum documents in flight per connection.
+   */
+  private final int pipelineDepth;
+  /**
+   * Milliseconds to wait for each document.
+   */
+  private final int timeout;
+  /**
+   * Times a document is resent after a connection failure.
+   */
+  private final int retries;
+  /**
+   * The priority line sent before every document, or null.
+   */
+  private final String priorityLine;
+  /**
+   * The codings offered to the server, or null.
+   */
+  private final String compression;
+  /**
+   * Minimum bytes of a compressed document.
+   */
+  private final int compressionThreshold;
+  /**
+   * Timer for the document timeouts.
+   */
+  private final ScheduledExecutorService timer;
+  /**
+   * Next connection to try, to spread the load across the pool.
+   */
+  private int next = 0;
+  /**
+   * Whether the client has been closed.
+   */
+  private boolean closed = false;
+
+  /**
+   * Construct a client. Connections are opened when first needed.
+   *
+   * @param properties
+   *          the client properties
+   */
+  public ChunkerClient(final Properties properties) {
+    this.pipelineDepth = Integer.parseInt(properties.getProperty(
+        "pipelineDepth", "8"));
+    this.timeout = Integer.parseInt(properties.getProperty("timeout",
+        "60000"));
+    this.retries = Integer.parseInt(properties.getProperty("retries", "2"));
+    final String priority = properties.getProperty("priority");
+    this.priorityLine = priority == null ? null : ChunkerServer.PRIORITY + " "
+        + PriorityScheduler.Lane.fromName(priority);
+    this.compression = properties.getProperty("compression");
+    this.compressionThreshold = Integer.parseInt(properties.getProperty(
+        "compressionThreshold", Integer.toString(Compression.DEFAULT_THRESHOLD)));
+    final int connectionsPerServer = Integer.parseInt(properties.getProperty(
+        "connections", "2"));
+    for (final String server : properties.getProperty("servers").split(",")) {
+      final String name = server.trim();
+      InetSocketAddress address = null;
+      if (!name.startsWith(UNIX_PREFIX)) {
+        final String[] hostPort = name.split(":");
+        address = new InetSocketAddress(hostPort[0],
+            Integer.parseInt(hostPort[1]));
+      }
+      for (int i = 0; i < connectionsPerServer; i++) {
+        connections.add(new Connection(name, address));
+      }
+    }
+    this.timer = Executors.newSingleThreadScheduledExecutor(DAEMON_THREADS);
+  }
+
+  /**
+   * Send a NAF document for annotation.
+   *
+   * @param document
+   *          the NAF document
+   * @return the future annotated document; it fails with an
+   *         {@link IOException} if the server reports an error or no server
+   *         can be reached, with a {@link ServerBusyException} if the server
+   *         is overloaded, and with a {@link TimeoutException} if the
+   *         document is not annotated in time
+   */
+  public final CompletableFuture<String> submit(final String document) {
+    final Request request = new Request(document);
+    final ScheduledFuture<?> timeoutTask = timer.schedule(new Runnable() {
+      @Override
+      public void run() {
+        request.future.completeExceptionally(new TimeoutException(
+            "No response after " + timeout + " ms"));
+        final Connection connection = request.connection;
+        if (connection != null) {
+          connection.timedOut(request);
+        }
+      }
+    }, timeout, TimeUnit.MILLISECONDS);
+    request.future.whenComplete(new BiConsumer<String, Throwable>() {
+      @Override
+      public void accept(final String result, final Throwable error) {
+        timeoutTask.cancel(false);
+      }
+    });
+    synchronized (this) {
+      if (closed) {
+        request.future.completeExceptionally(new IOException(
+            "Client closed"));
+        return request.future;
+      }
+      waiting.add(request);
+      dispatch();
+    }
+    return request.future;
+  }
+
+  /**
+   * Annotate a NAF document, waiting for the result.
+   *
+   * @param document
+   *          the NAF document
+   * @return the annotated document
+   * @throws IOException
+   *           if the document could not be annotated
+   */
+  public final String annotate(final String document) throws IOException {
+    try {
+      return submit(document).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the server", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause().getMessage(), e.getCause());
+    }
+  }
+
+  /**
+   * Send the waiting documents to the connections with free capacity.
+   */
+  private synchronized void dispatch() {
+    while (!waiting.isEmpty()) {
+      final Request request = waiting.peek();
+      if (request.future.isDone()) {
+        waiting.poll();
+        continue;
+      }
+      final Connection connection = nextAvailable();
+      if (connection == null) {
+        return;
+      }
+      waiting.poll();
+      connection.send(request);
+    }
+  }
+
+  /**
+   * Get the next connection, in round robin order, with free capacity.
+   */
+  private Connection nextAvailable() {
+    final long now = System.currentTimeMillis();
+    boolean reconnecting = false;
+    for (int i = 0; i < connections.size(); i++) {
+      final Connection connection = connections.get((next + i)
+          % connections.size());
+      if (connection.reconnectAfter > now) {
+        reconnecting = true;
+      } else if (connection.inFlight() < pipelineDepth) {
+        next = (next + i + 1) % connections.size();
+        return connection;
+      }
+    }
+    if (reconnecting && !closed) {
+      // nothing else would dispatch the waiting documents
+      timer.schedule(new Runnable() {
+        @Override
+        public void run() {
+          dispatch();
+        }
+      }, RECONNECT_DELAY, TimeUnit.MILLISECONDS);
+    }
+    return null;
+  }
+
+  /**
+   * Requeue a document sent through a failed connection, or fail it if it has
+   * been retried too many times.
+   */
+  private synchronized void retryOrFail(final Request request,
+      final IOException error) {
+    if (request.future.isDone()) {
+      return;
+    }
+    if (closed || request.attempts >= retries) {
+      request.future.completeExceptionally(error);
+    } else {
+      request.attempts++;
+      waiting.addFirst(request);
+    }
+  }
+
+  /**
+   * Close every connection and fail the pending documents.
+   */
+  @Override
+  public final void close() {
+    final List<Request> pending = new ArrayList<Request>();
+    synchronized (this) {
+      closed = true;
+      pending.addAll(waiting);
+      waiting.clear();
+      for (final Connection connection : connections) {
+        pending.addAll(connection.reset());
+        connection.shutdown();
+      }
+    }
+    for (final Request request : pending) {
+      request.future.completeExceptionally(new IOException("Client closed"));
+    }
+    timer.shutdownNow();
+  }
+
+  /**
+   * A document and its future annotation.
+   */
+  private static final class Request {
+    private final String document;
+    private final CompletableFuture<String> future = new CompletableFuture<String>();
+    private int attempts = 0;
+    /**
+     * The connection the document was last sent to.
+     */
+    private volatile Connection connection;
+
+    private Request(final String document) {
+      this.document = document;
+    }
+  }
+
+  /**
+   * A persistent connection in pipeline mode. A writer thread connects and
+   * sends the documents in the order they were queued, and a reader thread
+   * completes them in the same order.
+   */
+  private final class Connection {
+    /**
+     * The server as configured, host:port or unix:path.
+     */
+    private final String server;
+    /**
+     * The TCP address of the server, or null for a Unix domain socket.
+     */
+    private final InetSocketAddress address;
+    private final Deque<Request> inFlight = new ArrayDeque<Request>();
+    /**
+     * The thread connecting and writing to the server.
+     */
+    private final ExecutorService writer = Executors
+        .newSingleThreadExecutor(DAEMON_THREADS);
+    /**
+     * Incremented on every reset, so the documents queued before it, which
+     * have been taken back, are not written to the next socket.
+     */
+    private int generation = 0;
+    private Socket socket;
+    private volatile long reconnectAfter = 0;
+    /**
+     * The generation of the streams below, only used by the writer thread.
+     */
+    private int openGeneration = -1;
+    private BufferedWriter outToServer;
+    private DataOutputStream framesToServer;
+    private Compression encoder;
+
+    private Connection(final String server, final InetSocketAddress address) {
+      this.server = server;
+      this.address = address;
+    }
+
+    private synchronized int inFlight() {
+      return inFlight.size();
+    }
+
+    /**
+     * Queue a document for the writer thread.
+     */
+    private synchronized void send(final Request request) {
+      inFlight.add(request);
+      request.connection = this;
+      final int sentGeneration = generation;
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          write(request, sentGeneration);
+        }
+      });
+    }
+
+    private void write(final Request request, final int sentGeneration) {
+      synchronized (this) {
+        if (sentGeneration != generation) {
+          return;
+        }
+      }
+      try {
+        if (openGeneration != sentGeneration) {
+          open(sentGeneration);
+        }
+        if (encoder != null) {
+          encoder.writeFrame(framesToServer, priorityLine == null
+              ? request.document : priorityLine + "\n" + request.document);
+          return;
+        }
+        if (priorityLine != null) {
+          outToServer.write(priorityLine);
+          outToServer.write("\n");
+        }
+        outToServer.write(request.document);
+        if (!request.document.endsWith("\n")) {
+          outToServer.write("\n");
+        }
+        outToServer.write(ChunkerServer.END_OF_DOCUMENT);
+        outToServer.write("\n");
+        outToServer.flush();
+      } catch (IOException e) {
+        failConnection(sentGeneration, e);
+      }
+    }
+
+    private void open(final int sentGeneration) throws IOException {
+      discard();
+      final Socket newSocket;
+      try {
+        if (address == null) {
+          newSocket = UnixSockets.connect(server.substring(UNIX_PREFIX
+              .length()));
+        } else {
+          newSocket = new Socket();
+          newSocket.connect(address, timeout);
+        }
+      } catch (IOException e) {
+        reconnectAfter = System.currentTimeMillis() + RECONNECT_DELAY;
+        throw e;
+      }
+      synchronized (this) {
+        if (sentGeneration != generation) {
+          newSocket.close();
+          throw new IOException("Connection to " + server + " reset");
+        }
+        socket = newSocket;
+      }
+      openGeneration = sentGeneration;
+      if (compression != null) {
+        openCompressed(newSocket, sentGeneration);
+        return;
+      }
+      outToServer = new BufferedWriter(new OutputStreamWriter(
+          newSocket.getOutputStream(), "UTF-8"));
+      outToServer.write(ChunkerServer.PIPELINE);
+      outToServer.write("\n");
+      final BufferedReader inFromServer = new BufferedReader(
+          new InputStreamReader(newSocket.getInputStream(), "UTF-8"));
+      final Thread reader = DAEMON_THREADS.newThread(new Runnable() {
+        @Override
+        public void run() {
+          readResponses(sentGeneration, inFromServer);
+        }
+      });
+      reader.start();
+    }
+
+    private void openCompressed(final Socket newSocket,
+        final int sentGeneration) throws IOException {
+      final OutputStream out = new BufferedOutputStream(
+          newSocket.getOutputStream());
+      final InputStream in = new BufferedInputStream(newSocket.getInputStream());
+      Compression.writeLine(out, ChunkerServer.PIPELINE + " " + compression);
+      newSocket.setSoTimeout(timeout);
+      final String encoding = Compression.readLine(in);
+      newSocket.setSoTimeout(0);
+      if (encoding == null || !encoding.startsWith(Compression.ENCODING)) {
+        throw new IOException("No compression negotiated with " + server);
+      }
+      final String coding = encoding.substring(Compression.ENCODING.length())
+          .trim();
+      encoder = new Compression(coding, compressionThreshold, 0);
+      framesToServer = new DataOutputStream(out);
+      final Compression decoder = new Compression(coding,
+          compressionThreshold, 0);
+      final DataInputStream framesFromServer = new DataInputStream(in);
+      final Thread reader = DAEMON_THREADS.newThread(new Runnable() {
+        @Override
+        public void run() {
+          readFrames(sentGeneration, framesFromServer, decoder);
+        }
+      });
+      reader.start();
+    }
+
+    /**
+     * Drop the streams of the previous socket; called by the writer thread.
+     */
+    private void discard() {
+      if (encoder != null) {
+        encoder.end();
+        encoder = null;
+      }
+      framesToServer = null;
+      outToServer = null;
+      openGeneration = -1;
+    }
+
+    private void readFrames(final int readGeneration,
+        final DataInputStream framesFromServer, final Compression decoder) {
+      try {
+        String frame;
+        while ((frame = decoder.readFrame(framesFromServer)) != null) {
+          final int endOfStatus = frame.indexOf('\n');
+          if (endOfStatus < 0) {
+            complete(frame, "");
+          } else {
+            complete(frame.substring(0, endOfStatus),
+                frame.substring(endOfStatus + 1));
+          }
+        }
+        failConnection(readGeneration, new IOException("Connection to "
+            + server + " closed by the server"));
+      } catch (IOException e) {
+        failConnection(readGeneration, e);
+      } finally {
+        decoder.end();
+      }
+    }
+
+    private void readResponses(final int readGeneration,
+        final BufferedReader inFromServer) {
+      try {
+        String status;
+        while ((status = inFromServer.readLine()) != null) {
+          final StringBuilder response = new StringBuilder();
+          String line;
+          while ((line = inFromServer.readLine()) != null
+              && !line.equals(ChunkerServer.END_OF_DOCUMENT)) {
+            response.append(line).append("\n");
+          }
+          if (line == null) {
+            break;
+          }
+          complete(status, response.toString());
+        }
+        failConnection(readGeneration, new IOException("Connection to "
+            + server + " closed by the server"));
+      } catch (IOException e) {
+        failConnection(readGeneration, e);
+      }
+    }
+
+    /**
+     * Complete the oldest document in flight with a response.
+     */
+    private void complete(final String status, final String response) {
+      final Request request;
+      synchronized (this) {
+        request = inFlight.poll();
+      }
+      if (request != null) {
+        if (status.equals(ChunkerServer.OK)) {
+          request.future.complete(response);
+        } else if (status.equals(ChunkerServer.BUSY)) {
+          request.future.completeExceptionally(new ServerBusyException(
+              response.trim()));
+        } else {
+          request.future.completeExceptionally(new IOException(response
+              .trim()));
+        }
+      }
+      dispatch();
+    }
+
+    private void failConnection(final int failedGeneration,
+        final IOException error) {
+      final List<Request> pending;
+      synchronized (this) {
+        if (failedGeneration != generation) {
+          return;
+        }
+        pending = reset();
+      }
+      for (final Request request : pending) {
+        retryOrFail(request, error);
+      }
+      dispatch();
+    }
+
+    /**
+     * Reset the connection if a document timed out while in flight on it, as
+     * the server is not answering; the other documents in flight are sent
+     * again.
+     */
+    private void timedOut(final Request request) {
+      final int timedOutGeneration;
+      synchronized (this) {
+        if (!inFlight.contains(request)) {
+          return;
+        }
+        timedOutGeneration = generation;
+      }
+      failConnection(timedOutGeneration, new IOException("No response from "
+          + server + " after " + timeout + " ms"));
+    }
+
+    /**
+     * Close the socket and take the documents in flight.
+     *
+     * @return the documents in flight
+     */
+    private synchronized List<Request> reset() {
+      generation++;
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing to do, the connection is being discarded
+        }
+        socket = null;
+      }
+      final List<Request> pending = new ArrayList<Request>(inFlight);
+      inFlight.clear();
+      return pending;
+    }
+
+    /**
+     * Stop the writer thread once it has dropped its streams.
+     */
+    private void shutdown() {
+      writer.execute(new Runnable() {
+        @Override
+        public void run() {
+          discard();
+        }
+      });
+      writer.shutdown();
+    }
+  }
+
+  /**
+   * Daemon threads so that the client never keeps the JVM alive.
+   */
+  private static final ThreadFactory DAEMON_THREADS = new ThreadFactory() {
+    @Override
+    public Thread newThread(final Runnable runnable) {
+      final Thread thread = new Thread(runnable, "ixa-pipe-chunk-client");
+      thread.setDaemon(true);
+      return thread;
+    }
+  };
+
+}
@@ -16,30 +16,117 @@
 
 package eus.ixa.ixa.pipe.chunk;
 
+import ixa.kaflib.Chunk;
 import ixa.kaflib.KAFDocument;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilterWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.jdom2.JDOMException;
 
 import com.google.common.io.Files;
 
+import eus.ixa.ixa.pipe.chunk.PriorityScheduler.Lane;
+
 /**
- * TCP server for chunking.
+ * TCP server for chunking. Every connection is served by its own thread
+ * while the annotation itself is done by a fixed pool of workers, each with
+ * its own {@link Annotate}.
+ * <p>
+ * A client may send one document per connection, ended by a
+ * {@code <ENDOFDOCUMENT>} line or by the closing NAF tag, and read the
+ * annotation until the server closes the connection. Alternatively, a client
+ * starting the connection with a {@code <PIPELINE>} line may send any number
+ * of documents, each ended by {@code <ENDOFDOCUMENT>}, without waiting for the
+ * responses. Responses are sent in the same order, each one starting with an
+ * {@code <OK>} or {@code <ERROR>} line and ended by {@code <ENDOFDOCUMENT>}.
+ * A client listing codings in the pipeline line, e.g.
+ * {@code <PIPELINE> gzip,deflate}, negotiates a compressed pipeline in which
+ * documents and responses are exchanged as {@link Compression} frames.
+ * <p>
+ * Every document may start with a {@code <PRIORITY> bulk} or
+ * {@code <PRIORITY> interactive} line, the default; the workers take the
+ * documents of both priorities from separate queues as scheduled by the
+ * {@link PriorityScheduler}.
+ * <p>
+ * The server sheds load instead of queueing without bound: documents waiting
+ * for a worker are kept in bounded queues and, when the queue of its priority
+ * is full, the document is answered at once with a {@code <BUSY>} status. Documents larger than the
+ * maximum size are rejected with an error and, if a deadline is set, the
+ * annotation of a document is aborted once the deadline, counted from its
+ * arrival, expires. A connection starting with a {@code <STATS>} line gets the
+ * {@link ServerMetrics} of every priority, which report the time waited in the
+ * queue separately from the annotation time.
+ * <p>
+ * With socketPath set, the server listens on that Unix domain socket
+ * instead of a TCP port, for clients on the same host (Java 16 or later, see
+ * {@link UnixSockets}).
+ *
  * @author ragerri
  * @version 2016-04-22
  */
 public class ChunkerServer {
 
+  /**
+   * Line starting a connection in pipeline mode.
+   */
+  public static final String PIPELINE = "<PIPELINE>";
+  /**
+   * Line ending every document and, in pipeline mode, every response.
+   */
+  public static final String END_OF_DOCUMENT = "<ENDOFDOCUMENT>";
+  /**
+   * Status line of a successful response in pipeline mode.
+   */
+  public static final String OK = "<OK>";
+  /**
+   * Status line of a failed response in pipeline mode.
+   */
+  public static final String ERROR = "<ERROR>";
+  /**
+   * Status line of a document rejected because the server is overloaded.
+   */
+  public static final String BUSY = "<BUSY>";
+  /**
+   * Line requesting the metrics of the server.
+   */
+  public static final String STATS = "<STATS>";
+  /**
+   * Start of the line setting the priority of a document.
+   */
+  public static final String PRIORITY = "<PRIORITY>";
+
   /**
    * Get dynamically the version of ixa-pipe-chunk by looking at the MANIFEST
    * file.
@@ -58,120 +145,525 @@ public class ChunkerServer {
    * The annotation output format, one of NAF (default) or CoNLL 2000.
    */
   private String outputFormat = null;
-  
+  /**
+   * The annotators of the worker threads; every worker has its own decoder
+   * sharing the statically loaded model.
+   */
+  private ThreadLocal<Annotate> annotators;
+  /**
+   * The pool of annotation workers.
+   */
+  private PriorityScheduler workers;
+  /**
+   * Maximum number of characters of a document, 0 for no limit.
+   */
+  private int maxDocumentSize;
+  /**
+   * Milliseconds to annotate a document after its arrival, 0 for no limit.
+   */
+  private long deadline;
+  /**
+   * Minimum number of bytes of a compressed frame.
+   */
+  private int compressionThreshold;
+  /**
+   * The server metrics of every priority.
+   */
+  private final Map<Lane, ServerMetrics> metrics = new EnumMap<Lane, ServerMetrics>(
+      Lane.class);
+  /**
+   * The sentence fingerprints shared by the annotators in incremental mode,
+   * null otherwise.
+   */
+  private SentenceFingerprints fingerprints = null;
+
   /**
    * Construct a Chunker server.
-   * 
+   *
    * @param properties
    *          the properties
    */
-  public ChunkerServer(Properties properties) {
+  public ChunkerServer(final Properties properties) {
 
-    Integer port = Integer.parseInt(properties.getProperty("port"));
+    String socketPath = properties.getProperty("socketPath");
+    Integer port = socketPath == null ? Integer.parseInt(properties
+        .getProperty("port")) : null;
     model = properties.getProperty("model");
     outputFormat = properties.getProperty("outputFormat");
-    
-    String kafToString;
+    maxDocumentSize = Integer.parseInt(properties.getProperty(
+        "maxDocumentSize", "0"));
+    deadline = Long.parseLong(properties.getProperty("deadline", "0"));
+    compressionThreshold = Integer.parseInt(properties.getProperty(
+        "compressionThreshold", Integer.toString(Compression.DEFAULT_THRESHOLD)));
+    int statsInterval = Integer.parseInt(properties.getProperty(
+        "statsInterval", "0"));
+
     ServerSocket socketServer = null;
-    Socket activeSocket;
-    BufferedReader inFromClient = null;
-    BufferedWriter outToClient = null;
+    ServerSocketChannel unixServer = null;
+    ExecutorService connections;
+    if (Boolean.parseBoolean(properties.getProperty("virtualThreads", "false"))
+        && VirtualThreads.isAvailable()) {
+      // connections mostly wait; the decoding stays on the worker threads
+      connections = VirtualThreads.newPerTaskExecutor();
+    } else {
+      if (Boolean.parseBoolean(properties.getProperty("virtualThreads", "false"))) {
+        System.err.println("WARNING: virtual threads require Java 21, using platform threads");
+      }
+      connections = Executors.newCachedThreadPool();
+    }
+    for (Lane lane : Lane.values()) {
+      metrics.put(lane, new ServerMetrics());
+    }
+    workers = new PriorityScheduler(properties);
+    if (properties.getProperty("modelMemory") != null) {
+      ModelRegistry.getInstance().setMaxBytes(Long.parseLong(properties
+          .getProperty("modelMemory")) * 1024 * 1024);
+    }
+    if (Boolean.parseBoolean(properties.getProperty("incremental", "false"))) {
+      fingerprints = new SentenceFingerprints(Integer.parseInt(properties
+          .getProperty("maxSentences",
+              Integer.toString(SentenceFingerprints.DEFAULT_MAX_SENTENCES))));
+    }
+    ScheduledExecutorService statsLogger = null;
+    if (statsInterval > 0) {
+      statsLogger = Executors.newSingleThreadScheduledExecutor();
+      statsLogger.scheduleAtFixedRate(new Runnable() {
+        @Override
+        public void run() {
+          System.err.print(getMetrics());
+        }
+      }, statsInterval, statsInterval, TimeUnit.SECONDS);
+    }
 
     try {
-      Annotate annotator = new Annotate(properties);
-      System.out.println("-> Trying to listen port... " + port);
-      socketServer = new ServerSocket(port);
-      System.out.println("-> Connected and listening to port " + port);
-      while (true) {
-        try {
-          activeSocket = socketServer.accept();
-          inFromClient = new BufferedReader(new InputStreamReader(activeSocket.getInputStream(), "UTF-8"));
-          outToClient = new BufferedWriter(new OutputStreamWriter(activeSocket.getOutputStream(), "UTF-8"));
-          //get data from client
-          String stringFromClient = getClientData(inFromClient);
-          // annotate
-          kafToString = getAnnotations(annotator, stringFromClient);
-        } catch (JDOMException e) {
-          kafToString = "\n-> ERROR: Badly formatted NAF document!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (UnsupportedEncodingException e) {
-          kafToString = "\n-> ERROR: UTF-8 not valid!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
-        } catch (IOException e) {
-          kafToString = "\n -> ERROR: Input data not correct!!\n";
-          sendDataToClient(outToClient, kafToString);
-          continue;
+      // load the model before accepting connections
+      new Annotate(properties, fingerprints).close();
+      annotators = new ThreadLocal<Annotate>() {
+        @Override
+        protected Annotate initialValue() {
+          try {
+            return new Annotate(properties, fingerprints);
+          } catch (IOException e) {
+            throw new IllegalStateException(e);
+          }
         }
-        //send data to server after all exceptions and close the outToClient
-        sendDataToClient(outToClient, kafToString);
-        //close the resources
-        inFromClient.close();
-        activeSocket.close();
+      };
+      if (socketPath != null) {
+        System.out.println("-> Trying to listen socket... " + socketPath);
+        unixServer = UnixSockets.bind(socketPath);
+        System.out.println("-> Connected and listening to socket " + socketPath);
+      } else {
+        System.out.println("-> Trying to listen port... " + port);
+        socketServer = new ServerSocket(port);
+        System.out.println("-> Connected and listening to port " + port);
+      }
+      while (true) {
+        final Socket activeSocket = unixServer != null ? UnixSockets
+            .accept(unixServer) : socketServer.accept();
+        connections.execute(new Runnable() {
+          @Override
+          public void run() {
+            serveConnection(activeSocket);
+          }
+        });
       } //end of processing block
     } catch (IOException e) {
       e.printStackTrace();
       System.err.println("-> IOException due to failing to create the TCP socket or to wrongly provided model path.");
     } finally {
       System.out.println("closing tcp socket...");
+      connections.shutdownNow();
+      workers.shutdown();
+      if (statsLogger != null) {
+        statsLogger.shutdownNow();
+      }
       try {
-        socketServer.close();
+        if (socketServer != null) {
+          socketServer.close();
+        }
+        if (unixServer != null) {
+          unixServer.close();
+          new File(socketPath).delete();
+        }
       } catch (IOException e) {
         e.printStackTrace();
       }
     }
   }
-  
+
+  /**
+   * Serve every request of a connection and close it.
+   * @param activeSocket the socket of the connection
+   */
+  private void serveConnection(final Socket activeSocket) {
+    try {
+      InputStream in = new BufferedInputStream(activeSocket.getInputStream());
+      OutputStream out = new BufferedOutputStream(activeSocket.getOutputStream());
+      // read the first line without buffering beyond it
+      String firstLine = Compression.readLine(in);
+      BufferedReader inFromClient = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+      BufferedWriter outToClient = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+      if (PIPELINE.equals(firstLine)) {
+        servePipeline(inFromClient, outToClient);
+      } else if (firstLine != null && firstLine.startsWith(PIPELINE + " ")) {
+        serveCompressedPipeline(
+            Compression.negotiate(firstLine.substring(PIPELINE.length())),
+            new DataInputStream(in), new DataOutputStream(out));
+      } else if (STATS.equals(firstLine)) {
+        sendDataToClient(outToClient, new TextBody(getMetrics()));
+      } else if (firstLine != null) {
+        serveDocument(firstLine, inFromClient, outToClient);
+      }
+    } catch (IOException e) {
+      System.err.println("-> Connection error: " + e.getMessage());
+    } finally {
+      try {
+        activeSocket.close();
+      } catch (IOException e) {
+        e.printStackTrace();
+      }
+    }
+  }
+
+  /**
+   * Get the metrics of every priority.
+   * @return the metrics
+   */
+  private String getMetrics() {
+    StringBuilder sb = new StringBuilder();
+    for (Lane lane : Lane.values()) {
+      sb.append("[").append(lane).append("] ")
+          .append(metrics.get(lane).report(workers.queued(lane)));
+    }
+    if (fingerprints != null) {
+      sb.append(fingerprints.report());
+    }
+    sb.append(ModelRegistry.getInstance().report());
+    return sb.toString();
+  }
+
+  /**
+   * Serve a single document and close the output to the client.
+   * @param firstLine the first line of the document
+   * @param inFromClient the client inputstream
+   * @param outToClient the outputstream to the client
+   * @throws IOException if io error
+   */
+  private void serveDocument(String firstLine, BufferedReader inFromClient,
+      BufferedWriter outToClient) throws IOException {
+    Body body;
+    try {
+      //get data from client
+      Lane lane = Lane.INTERACTIVE;
+      if (firstLine.startsWith(PRIORITY)) {
+        lane = getLane(firstLine);
+        firstLine = inFromClient.readLine();
+        if (firstLine == null) {
+          return;
+        }
+      }
+      String stringFromClient = firstLine.equals(END_OF_DOCUMENT) ? ""
+          : firstLine + "\n";
+      if (!firstLine.equals(END_OF_DOCUMENT) && !firstLine.matches("</NAF>")) {
+        stringFromClient += getClientData(inFromClient, true, lane).text;
+      }
+      if (maxDocumentSize > 0 && stringFromClient.length() > maxDocumentSize) {
+        metrics.get(lane).tooLarge();
+        throw new InvalidDocumentException("Document of "
+            + stringFromClient.length() + " characters exceeds the maximum of "
+            + maxDocumentSize);
+      }
+      // annotate
+      body = annotate(lane, stringFromClient);
+    } catch (JDOMException e) {
+      body = new TextBody("\n-> ERROR: Badly formatted NAF document!!\n");
+    } catch (RejectedExecutionException e) {
+      body = new TextBody("\n-> ERROR: Server busy, try again later!!\n");
+    } catch (TimeoutException e) {
+      body = new TextBody("\n-> ERROR: " + e.getMessage() + "!!\n");
+    } catch (InvalidDocumentException e) {
+      body = new TextBody("\n-> ERROR: " + e.getMessage() + "!!\n");
+    } catch (UnsupportedEncodingException e) {
+      body = new TextBody("\n-> ERROR: UTF-8 not valid!!\n");
+    } catch (IOException e) {
+      body = new TextBody("\n -> ERROR: Input data not correct!!\n");
+    }
+    //send data to server after all exceptions and close the outToClient
+    sendDataToClient(outToClient, body);
+  }
+
+  /**
+   * Serve documents until the client closes the connection, answering them in
+   * the order they were received.
+   * @param inFromClient the client inputstream
+   * @param outToClient the outputstream to the client
+   * @throws IOException if io error
+   */
+  private void servePipeline(BufferedReader inFromClient,
+      BufferedWriter outToClient) throws IOException {
+    LastCharWriter bodyToClient = new LastCharWriter(outToClient);
+    Response response;
+    while ((response = respond(inFromClient)) != null) {
+      outToClient.write(response.status);
+      outToClient.write("\n");
+      response.body.writeTo(bodyToClient);
+      if (bodyToClient.last != '\n') {
+        outToClient.write("\n");
+      }
+      outToClient.write(END_OF_DOCUMENT);
+      outToClient.write("\n");
+      outToClient.flush();
+    }
+  }
+
+  /**
+   * Serve documents in compressed pipeline mode until the client closes the
+   * connection. Every document and every response, its status line included,
+   * is sent as a {@link Compression} frame.
+   * @param coding the coding chosen for the connection
+   * @param inFromClient the client inputstream
+   * @param outToClient the outputstream to the client
+   * @throws IOException if io error
+   */
+  private void serveCompressedPipeline(String coding,
+      DataInputStream inFromClient, DataOutputStream outToClient)
+      throws IOException {
+    // UTF-8 needs at most 4 bytes per character
+    Compression decoder = new Compression(coding, compressionThreshold,
+        maxDocumentSize > 0 ? maxDocumentSize * 4 : 0);
+    Compression encoder = new Compression(coding, compressionThreshold, 0);
+    // the responses are encoded in the same buffer, reused for every frame
+    FrameBuffer frame = new FrameBuffer();
+    Writer frameWriter = new BufferedWriter(new OutputStreamWriter(frame, "UTF-8"));
+    try {
+      Compression.writeLine(outToClient, Compression.ENCODING + " " + coding);
+      String request;
+      while ((request = decoder.readFrame(inFromClient)) != null) {
+        long raw = decoder.getRawBytes() + encoder.getRawBytes();
+        long wire = decoder.getWireBytes() + encoder.getWireBytes();
+        long cpu = decoder.getCpuNanos() + encoder.getCpuNanos();
+        Response response = respond(new BufferedReader(new StringReader(request)));
+        if (response == null) {
+          response = new Response(Lane.INTERACTIVE, ERROR, new TextBody(
+              "-> ERROR: Empty document!!\n"));
+        }
+        frame.reset();
+        frameWriter.write(response.status);
+        frameWriter.write("\n");
+        response.body.writeTo(frameWriter);
+        encoder.writeFrame(outToClient, frame.buffer(), frame.size());
+        metrics.get(response.lane).transferred(
+            decoder.getRawBytes() + encoder.getRawBytes() - raw,
+            decoder.getWireBytes() + encoder.getWireBytes() - wire,
+            decoder.getCpuNanos() + encoder.getCpuNanos() - cpu);
+      }
+    } finally {
+      decoder.end();
+      encoder.end();
+    }
+  }
+
+  /**
+   * Read the next document of a pipeline and annotate it.
+   * @param inFromClient the client inputstream
+   * @return the response, or null if the client closed the connection
+   */
+  private Response respond(BufferedReader inFromClient) {
+    Lane lane = Lane.INTERACTIVE;
+    String status = OK;
+    Body body;
+    try {
+      ClientDocument document = getClientData(inFromClient, false,
+          Lane.INTERACTIVE);
+      if (document == null) {
+        return null;
+      }
+      lane = document.lane;
+      body = annotate(document.lane, document.text);
+    } catch (JDOMException e) {
+      status = ERROR;
+      body = new TextBody("-> ERROR: Badly formatted NAF document!!\n");
+    } catch (RejectedExecutionException e) {
+      status = BUSY;
+      body = new TextBody("-> ERROR: Server busy, try again later!!\n");
+    } catch (TimeoutException e) {
+      status = ERROR;
+      body = new TextBody("-> ERROR: " + e.getMessage() + "!!\n");
+    } catch (InvalidDocumentException e) {
+      status = ERROR;
+      body = new TextBody("-> ERROR: " + e.getMessage() + "!!\n");
+    } catch (IOException e) {
+      status = ERROR;
+      body = new TextBody("-> ERROR: Input data not correct!!\n");
+    }
+    return new Response(lane, status, body);
+  }
+
+  /**
+   * Annotate a document on one of the workers. If the deadline expires while
+   * the document is being annotated the worker is interrupted, and if it
+   * expires while queued the document is discarded when it reaches a worker.
+   * @param lane the priority of the document
+   * @param stringFromClient the document
+   * @return the annotation result
+   * @throws IOException if io error
+   * @throws JDOMException if xml error
+   * @throws TimeoutException if the deadline expired
+   * @throws RejectedExecutionException if the queue is full
+   */
+  private Body annotate(final Lane lane, final String stringFromClient)
+      throws IOException, JDOMException, TimeoutException {
+    final ServerMetrics metrics = this.metrics.get(lane);
+    final long arrival = System.nanoTime();
+    final long expiry = arrival + TimeUnit.MILLISECONDS.toNanos(deadline);
+    Future<Body> result;
+    try {
+      result = workers.submit(lane, new Callable<Body>() {
+        @Override
+        public Body call() throws IOException, JDOMException,
+            TimeoutException {
+          long start = System.nanoTime();
+          metrics.queueWait((start - arrival) / 1000);
+          if (deadline > 0 && start - expiry >= 0) {
+            throw new TimeoutException("Deadline of " + deadline
+                + " ms exceeded in the queue");
+          }
+          Body body = getAnnotations(annotators.get(), stringFromClient);
+          metrics.completed((System.nanoTime() - start) / 1000);
+          return body;
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      metrics.busy();
+      throw e;
+    }
+    try {
+      if (deadline > 0) {
+        return result.get(expiry - System.nanoTime(), TimeUnit.NANOSECONDS);
+      }
+      return result.get();
+    } catch (TimeoutException e) {
+      // free the worker
+      result.cancel(true);
+      metrics.deadlineExceeded();
+      throw new TimeoutException("Deadline of " + deadline + " ms exceeded");
+    } catch (InterruptedException e) {
+      result.cancel(true);
+      Thread.currentThread().interrupt();
+      throw new IOException("Annotation interrupted", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof TimeoutException) {
+        metrics.deadlineExceeded();
+        throw (TimeoutException) e.getCause();
+      }
+      metrics.failed();
+      if (e.getCause() instanceof JDOMException) {
+        throw (JDOMException) e.getCause();
+      } else if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    }
+  }
+
+  /**
+   * Get the priority of a document from its priority line.
+   * @param line the priority line
+   * @return the priority
+   * @throws InvalidDocumentException if the priority is not known
+   */
+  private static Lane getLane(String line) throws InvalidDocumentException {
+    String name = line.substring(PRIORITY.length());
+    try {
+      return Lane.fromName(name);
+    } catch (IllegalArgumentException e) {
+      throw new InvalidDocumentException("Unknown priority " + name.trim());
+    }
+  }
+
   /**
-   * Read data from the client and output to a String.
+   * Read data from the client and output to a String. A document larger than
+   * the maximum size is read to its end but not kept.
    * @param inFromClient the client inputstream
-   * @return the string from the client
+   * @param stopAtNafEnd whether the closing NAF tag also ends the document
+   * @param lane the priority of the document unless it starts with a
+   * priority line
+   * @return the document from the client, or null if the client closed the
+   * connection before sending any data
+   * @throws InvalidDocumentException if the document is too large or its
+   * priority is not known
    */
-  private String getClientData(BufferedReader inFromClient) {
+  private ClientDocument getClientData(BufferedReader inFromClient,
+      boolean stopAtNafEnd, Lane lane) throws InvalidDocumentException {
     StringBuilder stringFromClient = new StringBuilder();
+    boolean ended = false;
+    long size = 0;
+    String priority = null;
     try {
       String line;
       while ((line = inFromClient.readLine()) != null) {
-        if (line.matches("<ENDOFDOCUMENT>")) {
+        if (line.equals(END_OF_DOCUMENT)) {
+          ended = true;
           break;
         }
-        stringFromClient.append(line).append("\n");
-        if (line.matches("</NAF>")) {
+        if (size == 0 && priority == null && line.startsWith(PRIORITY)) {
+          priority = line;
+          continue;
+        }
+        size += line.length() + 1;
+        if (maxDocumentSize > 0 && size > maxDocumentSize) {
+          stringFromClient.setLength(0);
+        } else {
+          stringFromClient.append(line).append("\n");
+        }
+        if (stopAtNafEnd && line.matches("</NAF>")) {
+          ended = true;
           break;
         }
       }
     } catch (IOException e) {
       e.printStackTrace();
     }
-    return stringFromClient.toString();
+    if (!ended && size == 0) {
+      return stopAtNafEnd ? new ClientDocument(lane, "") : null;
+    }
+    if (priority != null) {
+      lane = getLane(priority);
+    }
+    metrics.get(lane).received();
+    if (maxDocumentSize > 0 && size > maxDocumentSize) {
+      metrics.get(lane).tooLarge();
+      throw new InvalidDocumentException("Document of " + size
+          + " characters exceeds the maximum of " + maxDocumentSize);
+    }
+    return new ClientDocument(lane, stringFromClient.toString());
   }
-  
+
   /**
    * Send data back to server after annotation.
    * @param outToClient the outputstream to the client
-   * @param kafToString the string to be processed
+   * @param body the response to be sent
    * @throws IOException if io error
    */
-  private void sendDataToClient(BufferedWriter outToClient, String kafToString) throws IOException {
-    outToClient.write(kafToString);
+  private void sendDataToClient(BufferedWriter outToClient, Body body) throws IOException {
+    body.writeTo(outToClient);
     outToClient.close();
   }
-  
+
   /**
    * Chunk annotator.
-   * 
+   *
    * @param annotator
    *          the annotator
    * @param stringFromClient
    *          the string to be annotated
-   * @return the annotation result
+   * @return the annotation result, serialized when it is sent
    * @throws IOException
    *           if io error
    * @throws JDOMException
    *           if xml error
    */
-  private String getAnnotations(Annotate annotator, String stringFromClient)
+  private Body getAnnotations(Annotate annotator, String stringFromClient)
       throws IOException, JDOMException {
     // get a breader from the string coming from the client
     BufferedReader clientReader = new BufferedReader(new StringReader(
@@ -182,16 +674,147 @@ public class ChunkerServer {
         version + "-" + commit);
     newLp.setBeginTimestamp();
     // get outputFormat
-    String kafToString = null;
     if (outputFormat.equalsIgnoreCase("conll00")) {
-      kafToString = annotator.annotateChunksToCoNLL(kaf);
-    } else {
-      annotator.chunkToKAF(kaf);
-      newLp.setEndTimestamp();
-      kafToString = kaf.toString();
+      return new TextBody(annotator.annotateChunksToCoNLL(kaf));
+    }
+    int existingChunks = kaf.getChunks().size();
+    annotator.addChunksToKAF(kaf);
+    newLp.setEndTimestamp();
+    if (outputFormat.equalsIgnoreCase("delta")) {
+      List<Chunk> newChunks = kaf.getChunks().subList(existingChunks,
+          kaf.getChunks().size());
+      return new NAFBody(NAFDelta.extract(kaf, newChunks, newLp), false);
     }
-    return kafToString;
+    return new NAFBody(kaf, true);
   }
 
-}
+  /**
+   * The body of a response, written to the client by the connection thread.
+   */
+  private abstract static class Body {
+    abstract void writeTo(Writer writer) throws IOException;
+  }
+
+  /**
+   * A response already in text form, e.g., CoNLL or an error message.
+   */
+  private static class TextBody extends Body {
+    private final String text;
+
+    TextBody(String text) {
+      this.text = text;
+    }
 
+    @Override
+    void writeTo(Writer writer) throws IOException {
+      writer.write(text);
+      writer.flush();
+    }
+  }
+
+  /**
+   * An annotated NAF document, serialized as it is written.
+   */
+  private static class NAFBody extends Body {
+    private final KAFDocument kaf;
+    private final boolean comments;
+
+    NAFBody(KAFDocument kaf, boolean comments) {
+      this.kaf = kaf;
+      this.comments = comments;
+    }
+
+    @Override
+    void writeTo(Writer writer) throws IOException {
+      NAFWriter.write(kaf, writer, comments);
+    }
+  }
+
+  /**
+   * Remembers the last character written, to end a response with a line
+   * break only if it does not already end with one.
+   */
+  private static class LastCharWriter extends FilterWriter {
+    private int last = -1;
+
+    LastCharWriter(Writer out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int c) throws IOException {
+      out.write(c);
+      last = c;
+    }
+
+    @Override
+    public void write(char[] cbuf, int off, int len) throws IOException {
+      out.write(cbuf, off, len);
+      if (len > 0) {
+        last = cbuf[off + len - 1];
+      }
+    }
+
+    @Override
+    public void write(String str, int off, int len) throws IOException {
+      out.write(str, off, len);
+      if (len > 0) {
+        last = str.charAt(off + len - 1);
+      }
+    }
+  }
+
+  /**
+   * Byte buffer of a frame giving access to its contents without copying.
+   */
+  private static class FrameBuffer extends ByteArrayOutputStream {
+    FrameBuffer() {
+      super(8192);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * A document read from a client and its priority.
+   */
+  private static class ClientDocument {
+    private final Lane lane;
+    private final String text;
+
+    ClientDocument(Lane lane, String text) {
+      this.lane = lane;
+      this.text = text;
+    }
+  }
+
+  /**
+   * A response of a pipeline and the priority of its document.
+   */
+  private static class Response {
+    private final Lane lane;
+    private final String status;
+    private final Body body;
+
+    Response(Lane lane, String status, Body body) {
+      this.lane = lane;
+      this.status = status;
+      this.body = body;
+    }
+  }
+
+  /**
+   * Signals a document which is rejected without annotating it, e.g., because
+   * it is larger than the maximum size.
+   */
+  private static class InvalidDocumentException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    InvalidDocumentException(String message) {
+      super(message);
+    }
+  }
+
+}
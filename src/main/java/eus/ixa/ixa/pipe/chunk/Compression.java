@@ -0,0 +1,398 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Charsets;
+
+/**
+ * Framing and compression of the documents exchanged by {@link ChunkerClient}
+ * and {@link ChunkerServer} in compressed pipeline mode. A client offers the
+ * codings it accepts in the pipeline line, e.g. {@code <PIPELINE> gzip,deflate},
+ * and the server answers with the coding chosen, e.g. {@code <ENCODING> gzip}.
+ * From then on every document and every response is sent as a frame: one
+ * byte telling whether the body is compressed, the length of the body and the
+ * body. Bodies smaller than the threshold are not compressed.
+ * <p>
+ * Every instance belongs to one connection and one direction, and keeps the
+ * bytes and the CPU time spent (de)compressing.
+ */
+public class Compression {
+
+  /**
+   * The gzip coding.
+   */
+  public static final String GZIP = "gzip";
+  /**
+   * The deflate (zlib) coding.
+   */
+  public static final String DEFLATE = "deflate";
+  /**
+   * No compression.
+   */
+  public static final String IDENTITY = "identity";
+  /**
+   * Line announcing the coding chosen by the server.
+   */
+  public static final String ENCODING = "<ENCODING>";
+  /**
+   * Default minimum number of bytes of a compressed body.
+   */
+  public static final int DEFAULT_THRESHOLD = 1024;
+
+  private static final ThreadMXBean THREADS = ManagementFactory
+      .getThreadMXBean();
+
+  /**
+   * The coding of this connection.
+   */
+  private final String coding;
+  /**
+   * Minimum number of bytes of a compressed body.
+   */
+  private final int threshold;
+  /**
+   * Maximum number of bytes of a body, 0 for no limit.
+   */
+  private final int maxBytes;
+  /**
+   * The deflater, reused for every deflate frame.
+   */
+  private Deflater deflater;
+  /**
+   * The inflater, reused for every deflate frame.
+   */
+  private Inflater inflater;
+  /**
+   * Uncompressed bytes of the frames.
+   */
+  private long rawBytes = 0;
+  /**
+   * Bytes of the frames on the wire.
+   */
+  private long wireBytes = 0;
+  /**
+   * Nanoseconds of CPU spent compressing and decompressing.
+   */
+  private long cpuNanos = 0;
+
+  /**
+   * Construct the compression of one direction of a connection.
+   *
+   * @param coding
+   *          gzip, deflate or identity
+   * @param threshold
+   *          minimum number of bytes of a compressed body
+   * @param maxBytes
+   *          maximum number of bytes of a received body, 0 for no limit
+   */
+  public Compression(final String coding, final int threshold,
+      final int maxBytes) {
+    if (!isSupported(coding)) {
+      throw new IllegalArgumentException("Unknown compression " + coding);
+    }
+    this.coding = coding;
+    this.threshold = threshold;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Whether a coding is supported.
+   *
+   * @param coding
+   *          the coding
+   * @return true for gzip, deflate and identity
+   */
+  public static boolean isSupported(final String coding) {
+    return GZIP.equals(coding) || DEFLATE.equals(coding)
+        || IDENTITY.equals(coding);
+  }
+
+  /**
+   * Choose the first supported coding of a comma separated list.
+   *
+   * @param offered
+   *          the codings offered by the client, by preference
+   * @return the coding chosen, identity if none is supported
+   */
+  public static String negotiate(final String offered) {
+    for (final String coding : offered.split(",")) {
+      if (isSupported(coding.trim().toLowerCase())) {
+        return coding.trim().toLowerCase();
+      }
+    }
+    return IDENTITY;
+  }
+
+  /**
+   * Get the coding of this connection.
+   *
+   * @return the coding
+   */
+  public final String getCoding() {
+    return coding;
+  }
+
+  /**
+   * Write a frame.
+   *
+   * @param out
+   *          the output stream, flushed after the frame
+   * @param text
+   *          the body
+   * @throws IOException
+   *           if io error
+   */
+  public final void writeFrame(final DataOutputStream out, final String text)
+      throws IOException {
+    final byte[] raw = text.getBytes(Charsets.UTF_8);
+    writeFrame(out, raw, raw.length);
+  }
+
+  /**
+   * Write a frame from the start of a buffer.
+   *
+   * @param out
+   *          the output stream, flushed after the frame
+   * @param raw
+   *          the buffer with the body in UTF-8
+   * @param length
+   *          the number of bytes of the body
+   * @throws IOException
+   *           if io error
+   */
+  public final void writeFrame(final DataOutputStream out, final byte[] raw,
+      final int length) throws IOException {
+    if (!coding.equals(IDENTITY) && length >= threshold) {
+      final long start = cpuTime();
+      final byte[] body = compress(raw, length);
+      cpuNanos += cpuTime() - start;
+      writeFrame(out, true, body, body.length);
+      rawBytes += length;
+    } else {
+      writeFrame(out, false, raw, length);
+      rawBytes += length;
+    }
+  }
+
+  private void writeFrame(final DataOutputStream out,
+      final boolean compressed, final byte[] body, final int length)
+      throws IOException {
+    wireBytes += length;
+    out.writeBoolean(compressed);
+    out.writeInt(length);
+    out.write(body, 0, length);
+    out.flush();
+  }
+
+  /**
+   * Read a frame.
+   *
+   * @param in
+   *          the input stream
+   * @return the body, or null if the stream ended before the frame
+   * @throws IOException
+   *           if io error, or if the frame is larger than the maximum
+   */
+  public final String readFrame(final DataInputStream in) throws IOException {
+    final int flag = in.read();
+    if (flag < 0) {
+      return null;
+    }
+    final int length = in.readInt();
+    if (length < 0 || maxBytes > 0 && length > maxBytes) {
+      throw new IOException("Frame of " + length + " bytes exceeds the maximum of "
+          + maxBytes);
+    }
+    final byte[] body = new byte[length];
+    in.readFully(body);
+    byte[] raw = body;
+    if (flag != 0) {
+      final long start = cpuTime();
+      raw = decompress(body);
+      cpuNanos += cpuTime() - start;
+    }
+    rawBytes += raw.length;
+    wireBytes += body.length;
+    return new String(raw, Charsets.UTF_8);
+  }
+
+  private byte[] compress(final byte[] raw, final int length)
+      throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(
+        length / 4 + 64);
+    if (coding.equals(GZIP)) {
+      try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+        gzip.write(raw, 0, length);
+      }
+      return out.toByteArray();
+    }
+    if (deflater == null) {
+      deflater = new Deflater();
+    }
+    deflater.reset();
+    deflater.setInput(raw, 0, length);
+    deflater.finish();
+    final byte[] buffer = new byte[8192];
+    while (!deflater.finished()) {
+      out.write(buffer, 0, deflater.deflate(buffer));
+    }
+    return out.toByteArray();
+  }
+
+  private byte[] decompress(final byte[] body) throws IOException {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(
+        body.length * 4);
+    final byte[] buffer = new byte[8192];
+    if (coding.equals(GZIP)) {
+      try (InputStream gzip = new GZIPInputStream(
+          new ByteArrayInputStream(body))) {
+        int read;
+        while ((read = gzip.read(buffer)) > 0) {
+          checkSize(out.size() + read);
+          out.write(buffer, 0, read);
+        }
+      }
+      return out.toByteArray();
+    }
+    if (inflater == null) {
+      inflater = new Inflater();
+    }
+    inflater.reset();
+    inflater.setInput(body);
+    try {
+      while (!inflater.finished()) {
+        final int read = inflater.inflate(buffer);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new EOFException("Truncated deflate frame");
+        }
+        checkSize(out.size() + read);
+        out.write(buffer, 0, read);
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("Corrupt deflate frame", e);
+    }
+    return out.toByteArray();
+  }
+
+  private void checkSize(final int size) throws IOException {
+    if (maxBytes > 0 && size > maxBytes) {
+      throw new IOException("Decompressed frame exceeds the maximum of "
+          + maxBytes + " bytes");
+    }
+  }
+
+  /**
+   * Get the uncompressed bytes of the frames so far.
+   *
+   * @return the bytes
+   */
+  public final long getRawBytes() {
+    return rawBytes;
+  }
+
+  /**
+   * Get the bytes of the frames on the wire so far.
+   *
+   * @return the bytes
+   */
+  public final long getWireBytes() {
+    return wireBytes;
+  }
+
+  /**
+   * Get the CPU time spent compressing and decompressing so far.
+   *
+   * @return the nanoseconds
+   */
+  public final long getCpuNanos() {
+    return cpuNanos;
+  }
+
+  /**
+   * Release the native resources of the compressor.
+   */
+  public final void end() {
+    if (deflater != null) {
+      deflater.end();
+    }
+    if (inflater != null) {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Read a line of ASCII text from a stream without reading past it, so that
+   * the stream can be read as frames afterwards.
+   *
+   * @param in
+   *          the input stream
+   * @return the line without the line terminator, or null at the end of the
+   *         stream
+   * @throws IOException
+   *           if io error
+   */
+  public static String readLine(final InputStream in) throws IOException {
+    final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    int b;
+    while ((b = in.read()) >= 0 && b != '\n') {
+      line.write(b);
+    }
+    if (b < 0 && line.size() == 0) {
+      return null;
+    }
+    final String text = new String(line.toByteArray(), Charsets.UTF_8);
+    return text.endsWith("\r") ? text.substring(0, text.length() - 1) : text;
+  }
+
+  /**
+   * Write a line of text to a stream.
+   *
+   * @param out
+   *          the output stream, flushed after the line
+   * @param line
+   *          the line without terminator
+   * @throws IOException
+   *           if io error
+   */
+  public static void writeLine(final OutputStream out, final String line)
+      throws IOException {
+    out.write((line + "\n").getBytes(Charsets.UTF_8));
+    out.flush();
+  }
+
+  private static long cpuTime() {
+    return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS
+        .getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk;
+
+/**
+ * Log-linear histogram of latencies in microseconds. Every power of two range
+ * is divided into 128 buckets, so recorded values keep a relative precision
+ * better than 1% with a fixed memory footprint.
+ */
+public class LatencyHistogram {
+
+  /**
+   * Bits of the linear sub-buckets of every power of two range.
+   */
+  private static final int SUB_BUCKET_BITS = 7;
+  /**
+   * The number of linear sub-buckets.
+   */
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  /**
+   * The counts of every bucket.
+   */
+  private final long[] counts = new long[64 * SUB_BUCKETS];
+  /**
+   * The total number of values recorded.
+   */
+  private long totalCount = 0;
+  /**
+   * The largest value recorded.
+   */
+  private long maxValue = 0;
+
+  /**
+   * Record a latency.
+   *
+   * @param micros
+   *          the latency in microseconds
+   */
+  public final synchronized void record(final long micros) {
+    final long value = Math.max(0, micros);
+    counts[index(value)]++;
+    totalCount++;
+    maxValue = Math.max(maxValue, value);
+  }
+
+  /**
+   * Record a latency correcting for coordinated omission: if the latency is
+   * larger than the expected interval between requests, the requests that
+   * would have been sent while waiting are recorded with the latencies they
+   * would have seen.
+   *
+   * @param micros
+   *          the latency in microseconds
+   * @param expectedIntervalMicros
+   *          the expected interval between requests in microseconds
+   */
+  public final synchronized void recordWithExpectedInterval(final long micros,
+      final long expectedIntervalMicros) {
+    record(micros);
+    if (expectedIntervalMicros <= 0) {
+      return;
+    }
+    for (long missing = micros - expectedIntervalMicros; missing >= expectedIntervalMicros; missing -= expectedIntervalMicros) {
+      record(missing);
+    }
+  }
+
+  /**
+   * Get the number of values recorded.
+   *
+   * @return the number of values
+   */
+  public final synchronized long getTotalCount() {
+    return totalCount;
+  }
+
+  /**
+   * Get the largest value recorded.
+   *
+   * @return the largest value in microseconds
+   */
+  public final synchronized long getMaxValue() {
+    return maxValue;
+  }
+
+  /**
+   * Get the value at a percentile.
+   *
+   * @param percentile
+   *          the percentile, between 0 and 100
+   * @return the highest value of the bucket containing the percentile
+   */
+  public final synchronized long getValueAtPercentile(final double percentile) {
+    if (totalCount == 0) {
+      return 0;
+    }
+    final long rank = Math.max(1,
+        (long) Math.ceil(percentile / 100 * totalCount));
+    long seen = 0;
+    for (int i = 0; i < counts.length; i++) {
+      seen += counts[i];
+      if (seen >= rank) {
+        return Math.min(maxValue, highestValue(i));
+      }
+    }
+    return maxValue;
+  }
+
+  private static int index(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int msb = 63 - Long.numberOfLeadingZeros(value);
+    final int shift = msb - SUB_BUCKET_BITS;
+    return (shift + 1) * SUB_BUCKETS + (int) (value >> shift) - SUB_BUCKETS;
+  }
+
+  private static long highestValue(final int index) {
+    final int bucket = index >> SUB_BUCKET_BITS;
+    if (bucket == 0) {
+      return index;
+    }
+    final int shift = bucket - 1;
+    final long lowest = ((long) (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS) << shift;
+    return lowest + (1L << shift) - 1;
+  }
+
+}
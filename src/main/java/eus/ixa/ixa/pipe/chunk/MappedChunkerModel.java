@@ -0,0 +1,414 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import opennlp.tools.chunker.ChunkerFactory;
+import opennlp.tools.chunker.ChunkerModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.IndexHashTable;
+import opennlp.tools.ml.model.MaxentModel;
+
+/**
+ * A perceptron or GIS chunker model whose features and weights are read from
+ * a memory-mapped file instead of the heap. The file is mapped read-only, so
+ * every JVM of a host using the same file shares its pages through the page
+ * cache, and the garbage collector never scans the weights. Only the outcomes
+ * and the manifest are loaded on the heap. Files are created from a regular
+ * model with {@link #convert(File, File)} and are at most 2GB.
+ * <p>
+ * The scores are computed as in the OpenNLP models, adding the weights in the
+ * same order, so a mapped model tags exactly as the model it comes from.
+ */
+public final class MappedChunkerModel extends AbstractModel {
+
+  /**
+   * The first bytes of a mapped model file, "IXAC".
+   */
+  private static final int MAGIC = 0x49584143;
+  private static final int VERSION = 1;
+  private static final int PERCEPTRON = 0;
+  private static final int GIS = 1;
+  /**
+   * The manifest entries kept in the mapped file.
+   */
+  private static final String LANGUAGE = "Language";
+  private static final String BEAM_SIZE = "BeamSize";
+  private static final String FACTORY = "factory";
+
+  /**
+   * The mapped file.
+   */
+  private final ByteBuffer buffer;
+  private final boolean gis;
+  private final double correctionConstant;
+  private final double correctionParam;
+  private final double constantInverse;
+  private final int numOutcomes;
+  /**
+   * Position and size of the hash table of the features.
+   */
+  private final int tableOffset;
+  private final int tableMask;
+
+  private MappedChunkerModel(final ByteBuffer buffer, final String[] outcomes,
+      final boolean gis, final double correctionConstant,
+      final double correctionParam, final int tableOffset, final int capacity) {
+    super(new Context[0], new String[0], outcomes);
+    this.modelType = gis ? ModelType.Maxent : ModelType.Perceptron;
+    this.buffer = buffer;
+    this.gis = gis;
+    this.correctionConstant = correctionConstant;
+    this.correctionParam = correctionParam;
+    this.constantInverse = 1.0 / correctionConstant;
+    this.numOutcomes = outcomes.length;
+    this.tableOffset = tableOffset;
+    this.tableMask = capacity - 1;
+  }
+
+  /**
+   * Whether a file is a mapped model.
+   *
+   * @param file
+   *          the model file
+   * @return true if the file starts with the mapped model header
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public static boolean isMappedModel(final File file) throws IOException {
+    if (file.length() < 8) {
+      return false;
+    }
+    try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+      return in.readInt() == MAGIC;
+    }
+  }
+
+  /**
+   * Map a model file.
+   *
+   * @param file
+   *          the file created by {@link #convert(File, File)}
+   * @return the chunker model
+   * @throws IOException
+   *           if the file cannot be mapped or is not a mapped model
+   */
+  public static ChunkerModel load(final File file) throws IOException {
+    final ByteBuffer buffer;
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+        FileChannel channel = raf.getChannel()) {
+      if (channel.size() > Integer.MAX_VALUE) {
+        throw new IOException(file + " is larger than 2GB");
+      }
+      // the mapping stays valid after the channel is closed
+      buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+    }
+    if (buffer.capacity() < 8 || buffer.getInt(0) != MAGIC) {
+      throw new IOException(file + " is not a mapped chunker model");
+    }
+    if (buffer.getInt(4) != VERSION) {
+      throw new IOException(file + " has unsupported version "
+          + buffer.getInt(4));
+    }
+    int pos = 8;
+    final boolean gis = buffer.getInt(pos) == GIS;
+    final double correctionConstant = buffer.getDouble(pos + 4);
+    final double correctionParam = buffer.getDouble(pos + 12);
+    pos += 20;
+    final String[] outcomes = new String[buffer.getInt(pos)];
+    pos += 4;
+    for (int i = 0; i < outcomes.length; i++) {
+      outcomes[i] = readString(buffer, pos);
+      pos += 4 + buffer.getInt(pos);
+    }
+    final Map<String, String> manifest = new HashMap<String, String>();
+    final int entries = buffer.getInt(pos);
+    pos += 4;
+    for (int i = 0; i < entries; i++) {
+      final String key = readString(buffer, pos);
+      pos += 4 + buffer.getInt(pos);
+      manifest.put(key, readString(buffer, pos));
+      pos += 4 + buffer.getInt(pos);
+    }
+    final int capacity = buffer.getInt(pos);
+    final MappedChunkerModel model = new MappedChunkerModel(buffer, outcomes,
+        gis, correctionConstant, correctionParam, pos + 4, capacity);
+
+    final String language = manifest.remove(LANGUAGE);
+    final String beamSize = manifest.remove(BEAM_SIZE);
+    final String factory = manifest.remove(FACTORY);
+    return new ChunkerModel(language, model, beamSize == null ? CLI.DEFAULT_BEAM_SIZE
+        : Integer.parseInt(beamSize), manifest, factory == null ? new ChunkerFactory()
+        : ChunkerFactory.create(factory));
+  }
+
+  /**
+   * Write a perceptron or GIS chunker model as a mapped model file.
+   *
+   * @param modelFile
+   *          the chunker model
+   * @param outputFile
+   *          the mapped model file
+   * @throws IOException
+   *           if the model cannot be read or is of another kind
+   */
+  public static void convert(final File modelFile, final File outputFile)
+      throws IOException {
+    final ChunkerModel chunkerModel = new ChunkerModel(modelFile);
+    final MaxentModel maxent = ModelRegistry.getClassifier(chunkerModel);
+    if (!(maxent instanceof AbstractModel)
+        || maxent instanceof MappedChunkerModel
+        || (((AbstractModel) maxent).getModelType() != ModelType.Perceptron && ((AbstractModel) maxent)
+            .getModelType() != ModelType.Maxent)) {
+      throw new IOException("Only perceptron and GIS models can be mapped");
+    }
+    final AbstractModel model = (AbstractModel) maxent;
+    final Object[] data = model.getDataStructures();
+    final Context[] params = (Context[]) data[0];
+    @SuppressWarnings("unchecked")
+    final IndexHashTable<String> pmap = (IndexHashTable<String>) data[1];
+    final String[] outcomes = (String[]) data[2];
+    final String[] predicates = pmap.toArray(new String[pmap.size()]);
+
+    int capacity = 2;
+    while (capacity < predicates.length * 2) {
+      capacity <<= 1;
+    }
+    final int[] table = new int[capacity];
+    final long tableOffset;
+    try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+        new FileOutputStream(outputFile)))) {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(model.getModelType() == ModelType.Maxent ? GIS : PERCEPTRON);
+      out.writeDouble(((Number) data[3]).doubleValue());
+      out.writeDouble(((Number) data[4]).doubleValue());
+      out.writeInt(outcomes.length);
+      for (final String outcome : outcomes) {
+        writeString(out, outcome);
+      }
+      final Map<String, String> manifest = new HashMap<String, String>();
+      manifest.put(LANGUAGE, chunkerModel.getLanguage());
+      if (chunkerModel.getManifestProperty(BEAM_SIZE) != null) {
+        manifest.put(BEAM_SIZE, chunkerModel.getManifestProperty(BEAM_SIZE));
+      }
+      manifest.put(FACTORY, chunkerModel.getFactory().getClass().getName());
+      out.writeInt(manifest.size());
+      for (final Map.Entry<String, String> entry : manifest.entrySet()) {
+        writeString(out, entry.getKey());
+        writeString(out, entry.getValue());
+      }
+      out.writeInt(capacity);
+      tableOffset = out.size();
+      out.write(new byte[4 * capacity]);
+      for (int i = 0; i < predicates.length; i++) {
+        // DataOutputStream.size() stops counting at Integer.MAX_VALUE
+        final int position = out.size();
+        if (position == Integer.MAX_VALUE) {
+          throw new IOException("The mapped model would be larger than 2GB");
+        }
+        int slot = slot(predicates[i].hashCode(), capacity - 1);
+        while (table[slot] != 0) {
+          slot = (slot + 1) & (capacity - 1);
+        }
+        table[slot] = position;
+        final int[] outcomeIds = params[i].getOutcomes();
+        final double[] weights = params[i].getParameters();
+        out.writeInt(predicates[i].hashCode());
+        writeString(out, predicates[i]);
+        out.writeInt(outcomeIds.length);
+        for (final int outcomeId : outcomeIds) {
+          out.writeInt(outcomeId);
+        }
+        for (final double weight : weights) {
+          out.writeDouble(weight);
+        }
+      }
+      if (out.size() == Integer.MAX_VALUE) {
+        throw new IOException("The mapped model would be larger than 2GB");
+      }
+    }
+    final ByteBuffer tableBytes = ByteBuffer.allocate(4 * capacity);
+    tableBytes.asIntBuffer().put(table);
+    try (RandomAccessFile raf = new RandomAccessFile(outputFile, "rw")) {
+      raf.seek(tableOffset);
+      raf.write(tableBytes.array());
+    }
+    System.err.println("Mapped " + predicates.length + " features of "
+        + modelFile + " into " + outputFile);
+  }
+
+  private static int slot(final int hash, final int mask) {
+    return (hash ^ (hash >>> 16)) & mask;
+  }
+
+  private static void writeString(final DataOutputStream out,
+      final String string) throws IOException {
+    final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(final ByteBuffer buffer, final int pos) {
+    final byte[] bytes = new byte[buffer.getInt(pos)];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = buffer.get(pos + 4 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Find the record of a feature.
+   *
+   * @param predicate
+   *          the feature
+   * @return the position of its number of outcomes, or -1 if unknown
+   */
+  private int find(final String predicate) {
+    final int hash = predicate.hashCode();
+    int slot = slot(hash, tableMask);
+    int record;
+    while ((record = buffer.getInt(tableOffset + 4 * slot)) != 0) {
+      if (buffer.getInt(record) == hash && matches(predicate, record + 4)) {
+        return record + 8 + buffer.getInt(record + 4);
+      }
+      slot = (slot + 1) & tableMask;
+    }
+    return -1;
+  }
+
+  /**
+   * Compare a feature with the UTF-8 name of a record without decoding it.
+   */
+  private boolean matches(final String predicate, final int pos) {
+    final int length = buffer.getInt(pos);
+    if (length < predicate.length()) {
+      return false;
+    }
+    for (int i = 0; i < predicate.length(); i++) {
+      final char c = predicate.charAt(i);
+      if (c >= 0x80) {
+        final byte[] bytes = predicate.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length != length) {
+          return false;
+        }
+        for (int j = i; j < length; j++) {
+          if (buffer.get(pos + 4 + j) != bytes[j]) {
+            return false;
+          }
+        }
+        return true;
+      }
+      if (buffer.get(pos + 4 + i) != c) {
+        return false;
+      }
+    }
+    return length == predicate.length();
+  }
+
+  @Override
+  public double[] eval(final String[] context) {
+    return eval(context, null, new double[numOutcomes]);
+  }
+
+  @Override
+  public double[] eval(final String[] context, final float[] values) {
+    return eval(context, values, new double[numOutcomes]);
+  }
+
+  @Override
+  public double[] eval(final String[] context, final double[] probs) {
+    return eval(context, null, probs);
+  }
+
+  /**
+   * Score the outcomes of a context, as PerceptronModel or GISModel with a
+   * uniform prior do.
+   *
+   * @param context
+   *          the features
+   * @param values
+   *          the feature values, or null for 1
+   * @param outsums
+   *          the array of the scores
+   * @return the normalized scores
+   */
+  public double[] eval(final String[] context, final float[] values,
+      final double[] outsums) {
+    final int[] numfeats = gis ? new int[numOutcomes] : null;
+    Arrays.fill(outsums, gis ? Math.log(1.0 / numOutcomes) : 0);
+    for (int ci = 0; ci < context.length; ci++) {
+      final int record = find(context[ci]);
+      if (record < 0) {
+        continue;
+      }
+      final double value = values == null ? 1 : values[ci];
+      final int active = buffer.getInt(record);
+      final int paramsOffset = record + 4 + 4 * active;
+      for (int ai = 0; ai < active; ai++) {
+        final int oid = buffer.getInt(record + 4 + 4 * ai);
+        if (gis) {
+          numfeats[oid]++;
+        }
+        outsums[oid] += buffer.getDouble(paramsOffset + 8 * ai) * value;
+      }
+    }
+    double normal = 0.0;
+    if (gis) {
+      for (int oid = 0; oid < numOutcomes; oid++) {
+        if (correctionParam != 0) {
+          outsums[oid] = Math.exp(outsums[oid] * constantInverse
+              + ((1.0 - (numfeats[oid] / correctionConstant)) * correctionParam));
+        } else {
+          outsums[oid] = Math.exp(outsums[oid] * constantInverse);
+        }
+        normal += outsums[oid];
+      }
+    } else {
+      double maxPrior = 1;
+      for (int oid = 0; oid < numOutcomes; oid++) {
+        if (maxPrior < Math.abs(outsums[oid])) {
+          maxPrior = Math.abs(outsums[oid]);
+        }
+      }
+      for (int oid = 0; oid < numOutcomes; oid++) {
+        outsums[oid] = Math.exp(outsums[oid] / maxPrior);
+        normal += outsums[oid];
+      }
+    }
+    for (int oid = 0; oid < numOutcomes; oid++) {
+      outsums[oid] /= normal;
+    }
+    return outsums;
+  }
+
+}
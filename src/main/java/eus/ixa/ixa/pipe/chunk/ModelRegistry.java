@@ -0,0 +1,328 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import opennlp.tools.chunker.ChunkerME;
+import opennlp.tools.chunker.ChunkerModel;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.MaxentModel;
+
+/**
+ * The chunker models loaded in the JVM, shared by every {@link ChunkTagger}.
+ * Models are loaded on first use and, if a memory budget is set, the least
+ * recently used models which are not held by an open tagger are evicted when
+ * the estimated footprint of the loaded models exceeds the budget; they are
+ * loaded again when needed. A model in use is never evicted, so the budget
+ * may be exceeded while several models are held at the same time. Mapped
+ * models ({@link MappedChunkerModel}) keep their weights off the heap and
+ * count for little more than their outcomes.
+ */
+public final class ModelRegistry {
+
+  /**
+   * Estimated bytes of the name and index entry of a feature.
+   */
+  private static final long BYTES_PER_PREDICATE = 80;
+
+  private static final ModelRegistry INSTANCE = new ModelRegistry();
+
+  /**
+   * A model file, loaded or not.
+   */
+  private static final class Entry {
+    private final String path;
+    private volatile ChunkerModel model;
+    private long bytes = 0;
+    private int users = 0;
+    /**
+     * The decoder of every tagger using the model; they are dropped with
+     * the model when it is evicted.
+     */
+    private final Map<Object, ChunkerME> decoders = new WeakHashMap<Object, ChunkerME>();
+
+    private Entry(final String path) {
+      this.path = path;
+    }
+  }
+
+  /**
+   * The models by file, least recently used first.
+   */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+      16, 0.75f, true);
+  /**
+   * Bytes the loaded models may take, 0 for no limit.
+   */
+  private long maxBytes = 0;
+  /**
+   * Number of models loaded.
+   */
+  private long loads = 0;
+  /**
+   * Number of models evicted.
+   */
+  private long evictions = 0;
+
+  private ModelRegistry() {
+  }
+
+  /**
+   * Get the registry of the JVM.
+   *
+   * @return the registry
+   */
+  public static ModelRegistry getInstance() {
+    return INSTANCE;
+  }
+
+  /**
+   * Set the memory budget of the models, evicting models if needed.
+   *
+   * @param bytes
+   *          the bytes the loaded models may take, 0 for no limit
+   */
+  public synchronized void setMaxBytes(final long bytes) {
+    maxBytes = bytes;
+    evict();
+  }
+
+  /**
+   * Get a model, loading it if needed, and mark it as in use until
+   * {@link #release(String)} is called.
+   *
+   * @param model
+   *          the model file
+   * @return the model
+   * @throws IOException
+   *           if the model cannot be loaded
+   */
+  public ChunkerModel acquire(final String model) throws IOException {
+    return acquireEntry(model).model;
+  }
+
+  /**
+   * Get the decoder of a tagger for a model, loading the model if needed,
+   * and mark the model as in use until {@link #release(String)} is called.
+   * The decoder is kept while the tagger and the model are alive, so
+   * evicting a model also frees the decoders of closed taggers.
+   *
+   * @param model
+   *          the model file
+   * @param owner
+   *          the tagger, which must not use the decoder from several threads
+   * @return the decoder
+   * @throws IOException
+   *           if the model cannot be loaded
+   */
+  public ChunkerME acquireDecoder(final String model, final Object owner)
+      throws IOException {
+    final Entry entry = acquireEntry(model);
+    synchronized (this) {
+      ChunkerME decoder = entry.decoders.get(owner);
+      if (decoder == null) {
+        decoder = new ChunkerME(entry.model);
+        entry.decoders.put(owner, decoder);
+      }
+      return decoder;
+    }
+  }
+
+  private Entry acquireEntry(final String model) throws IOException {
+    Entry entry;
+    synchronized (this) {
+      entry = entries.get(model);
+      if (entry == null) {
+        entry = new Entry(model);
+        entries.put(model, entry);
+      }
+      entry.users++;
+    }
+    try {
+      // models are loaded outside the registry lock
+      synchronized (entry) {
+        if (entry.model == null) {
+          final long start = System.currentTimeMillis();
+          final File file = new File(model);
+          final ChunkerModel chunkerModel = MappedChunkerModel
+              .isMappedModel(file) ? MappedChunkerModel.load(file)
+              : new ChunkerModel(file);
+          System.err.println("ixa-pipe-chunk model loaded in: "
+              + (System.currentTimeMillis() - start) + " miliseconds ... [DONE]");
+          synchronized (this) {
+            entry.bytes = estimateBytes(chunkerModel, new File(model));
+            entry.model = chunkerModel;
+            loads++;
+          }
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      synchronized (this) {
+        entry.users--;
+        if (entry.model == null && entry.users == 0) {
+          entries.remove(model);
+        }
+      }
+      throw e;
+    }
+    synchronized (this) {
+      evict();
+    }
+    return entry;
+  }
+
+  /**
+   * Mark a model acquired with {@link #acquire(String)} as no longer in use.
+   *
+   * @param model
+   *          the model file
+   */
+  public synchronized void release(final String model) {
+    final Entry entry = entries.get(model);
+    if (entry != null && entry.users > 0) {
+      entry.users--;
+      evict();
+    }
+  }
+
+  /**
+   * Evict the least recently used models not in use while over budget.
+   */
+  private void evict() {
+    if (maxBytes <= 0) {
+      return;
+    }
+    long bytes = getResidentBytes();
+    final Iterator<Entry> lru = entries.values().iterator();
+    while (bytes > maxBytes && lru.hasNext()) {
+      final Entry entry = lru.next();
+      if (entry.users == 0 && entry.model != null) {
+        bytes -= entry.bytes;
+        entry.model = null;
+        entry.decoders.clear();
+        lru.remove();
+        evictions++;
+      }
+    }
+  }
+
+  /**
+   * Get the estimated bytes of the loaded models.
+   *
+   * @return the bytes
+   */
+  public synchronized long getResidentBytes() {
+    long bytes = 0;
+    for (final Entry entry : entries.values()) {
+      if (entry.model != null) {
+        bytes += entry.bytes;
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * Get the loaded models, least recently used first.
+   *
+   * @return the model files
+   */
+  public synchronized List<String> getResidentModels() {
+    final List<String> models = new ArrayList<String>();
+    for (final Entry entry : entries.values()) {
+      if (entry.model != null) {
+        models.add(entry.path);
+      }
+    }
+    return models;
+  }
+
+  public synchronized long getLoads() {
+    return loads;
+  }
+
+  public synchronized long getEvictions() {
+    return evictions;
+  }
+
+  /**
+   * Format the state of the registry.
+   *
+   * @return the loaded models and counters, one per line
+   */
+  public synchronized String report() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("models resident=%d residentMB=%.1f budgetMB=%s "
+        + "loads=%d evictions=%d%n", getResidentModels().size(),
+        getResidentBytes() / 1048576.0, maxBytes > 0 ? String.format("%.1f",
+            maxBytes / 1048576.0) : "unlimited", loads, evictions));
+    for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+      if (entry.getValue().model != null) {
+        sb.append(String.format("model %s MB=%.1f inUse=%d%n", entry.getKey(),
+            entry.getValue().bytes / 1048576.0, entry.getValue().users));
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Get the classifier of a chunker model. OpenNLP deprecates
+   * {@link ChunkerModel#getChunkerModel()} for the sequence model, but that
+   * wraps the classifier in a beam search and hides the parameters needed to
+   * estimate, map or update the model.
+   *
+   * @param chunkerModel
+   *          the chunker model
+   * @return the classifier, or null if the model is a sequence model
+   */
+  @SuppressWarnings("deprecation")
+  public static MaxentModel getClassifier(final ChunkerModel chunkerModel) {
+    return chunkerModel.getChunkerModel();
+  }
+
+  /**
+   * Estimate the heap taken by a model from its parameters and features, or
+   * from its file size if its structure is unknown.
+   */
+  private static long estimateBytes(final ChunkerModel chunkerModel,
+      final File file) {
+    final MaxentModel maxent = getClassifier(chunkerModel);
+    if (maxent instanceof AbstractModel) {
+      final Object[] data = ((AbstractModel) maxent).getDataStructures();
+      if (data.length > 0 && data[0] instanceof Context[]) {
+        final Context[] contexts = (Context[]) data[0];
+        long bytes = 16 + 8L * contexts.length;
+        for (final Context context : contexts) {
+          // the context, its outcomes and its parameters
+          bytes += 24 + 16 + 4L * context.getOutcomes().length + 16 + 8L
+              * context.getParameters().length;
+        }
+        return bytes + BYTES_PER_PREDICATE * contexts.length;
+      }
+    }
+    return file.length() * 4;
+  }
+
+}
@@ -0,0 +1,168 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import ixa.kaflib.Chunk;
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.KAFDocument.LinguisticProcessor;
+import ixa.kaflib.Term;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jdom2.Document;
+import org.jdom2.Element;
+import org.jdom2.JDOMException;
+import org.jdom2.input.SAXBuilder;
+
+/**
+ * Delta output: a NAF document with only the linguistic processor header and
+ * the chunks added by ixa-pipe-chunk, referencing the term ids of the
+ * document sent. Clients which already hold the document merge the delta
+ * back with {@link #merge(KAFDocument, Reader)} instead of receiving every
+ * layer again.
+ */
+public final class NAFDelta {
+
+  private NAFDelta() {
+  }
+
+  /**
+   * Create the delta of an annotated document.
+   *
+   * @param kaf
+   *          the annotated document
+   * @param chunks
+   *          the chunks added to the document
+   * @param lp
+   *          the linguistic processor of the chunks
+   * @return a document with the linguistic processor and the chunks only
+   */
+  public static KAFDocument extract(final KAFDocument kaf,
+      final List<Chunk> chunks, final LinguisticProcessor lp) {
+    final KAFDocument delta = new KAFDocument(kaf.getLang(), kaf.getVersion());
+    copyLinguisticProcessor(lp, delta.addLinguisticProcessor(lp.getLayer(),
+        lp.getName()));
+    for (final Chunk chunk : chunks) {
+      delta.createChunk(chunk.getId(), chunk.getHead(), chunk.getPhrase(),
+          chunk.getTerms());
+    }
+    return delta;
+  }
+
+  /**
+   * Merge a delta into the document it was created from.
+   *
+   * @param kaf
+   *          the document sent for annotation
+   * @param delta
+   *          the delta
+   * @throws IOException
+   *           if the delta cannot be read
+   * @throws JDOMException
+   *           if the delta is not well formed
+   * @throws IllegalArgumentException
+   *           if the delta references terms not in the document
+   */
+  public static void merge(final KAFDocument kaf, final Reader delta)
+      throws IOException, JDOMException {
+    final Document dom = new SAXBuilder().build(delta);
+    final Element root = dom.getRootElement();
+    final Element header = root.getChild("nafHeader");
+    if (header != null) {
+      for (final Element lps : header.getChildren("linguisticProcessors")) {
+        final String layer = lps.getAttributeValue("layer");
+        for (final Element lp : lps.getChildren("lp")) {
+          final LinguisticProcessor newLp = kaf.addLinguisticProcessor(layer,
+              lp.getAttributeValue("name"));
+          if (lp.getAttributeValue("timestamp") != null) {
+            newLp.setTimestamp(lp.getAttributeValue("timestamp"));
+          }
+          if (lp.getAttributeValue("beginTimestamp") != null) {
+            newLp.setBeginTimestamp(lp.getAttributeValue("beginTimestamp"));
+          }
+          if (lp.getAttributeValue("endTimestamp") != null) {
+            newLp.setEndTimestamp(lp.getAttributeValue("endTimestamp"));
+          }
+          if (lp.getAttributeValue("version") != null) {
+            newLp.setVersion(lp.getAttributeValue("version"));
+          }
+          if (lp.getAttributeValue("hostname") != null) {
+            newLp.setHostname(lp.getAttributeValue("hostname"));
+          }
+        }
+      }
+    }
+    final Element chunksElem = root.getChild("chunks");
+    if (chunksElem == null) {
+      return;
+    }
+    final Map<String, Term> terms = new HashMap<String, Term>();
+    for (final Term term : kaf.getTerms()) {
+      terms.put(term.getId(), term);
+    }
+    for (final Element chunkElem : chunksElem.getChildren("chunk")) {
+      final List<Term> chunkTerms = new ArrayList<Term>();
+      final Element span = chunkElem.getChild("span");
+      if (span != null) {
+        for (final Element target : span.getChildren("target")) {
+          chunkTerms.add(getTerm(terms, target.getAttributeValue("id")));
+        }
+      }
+      final String head = chunkElem.getAttributeValue("head");
+      final Chunk chunk = kaf.createChunk(chunkElem.getAttributeValue("id"),
+          head == null ? null : getTerm(terms, head),
+          chunkElem.getAttributeValue("phrase"), chunkTerms);
+      if (chunkElem.getAttributeValue("case") != null) {
+        chunk.setCase(chunkElem.getAttributeValue("case"));
+      }
+    }
+  }
+
+  private static Term getTerm(final Map<String, Term> terms, final String id) {
+    final Term term = terms.get(id);
+    if (term == null) {
+      throw new IllegalArgumentException("Term " + id
+          + " of the delta is not in the document");
+    }
+    return term;
+  }
+
+  private static void copyLinguisticProcessor(final LinguisticProcessor from,
+      final LinguisticProcessor to) {
+    if (from.hasTimestamp()) {
+      to.setTimestamp(from.getTimestamp());
+    }
+    if (from.hasBeginTimestamp()) {
+      to.setBeginTimestamp(from.getBeginTimestamp());
+    }
+    if (from.hasEndTimestamp()) {
+      to.setEndTimestamp(from.getEndTimestamp());
+    }
+    if (from.hasVersion()) {
+      to.setVersion(from.getVersion());
+    }
+    if (from.hasHostname()) {
+      to.setHostname(from.getHostname());
+    }
+  }
+
+}
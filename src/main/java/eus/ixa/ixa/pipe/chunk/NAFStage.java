@@ -0,0 +1,53 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import ixa.kaflib.KAFDocument;
+
+import java.io.IOException;
+
+/**
+ * A stage of a NAF pipeline run in the same JVM. A stage adds its layer and
+ * its linguistic processor header to the document it is given and returns
+ * the same object, so a host application can chain stages parsing the XML
+ * once at the start and serializing it once at the end:
+ *
+ * <pre>
+ * KAFDocument kaf = KAFDocument.createFromStream(reader);
+ * for (NAFStage stage : stages) {
+ *   kaf = stage.process(kaf);
+ * }
+ * NAFWriter.write(kaf, writer);
+ * </pre>
+ *
+ * {@link Annotate} is the stage of ixa-pipe-chunk. A stage instance is not
+ * thread safe; use one per thread.
+ */
+public interface NAFStage {
+
+  /**
+   * Annotate a document in place.
+   *
+   * @param kaf
+   *          the document
+   * @return the same document with the layer of the stage
+   * @throws IOException
+   *           if the annotation fails
+   */
+  KAFDocument process(KAFDocument kaf) throws IOException;
+
+}
@@ -0,0 +1,127 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import ixa.kaflib.KAFDocument;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jdom2.Comment;
+import org.jdom2.Document;
+import org.jdom2.filter.Filters;
+import org.jdom2.output.Format;
+import org.jdom2.output.LineSeparator;
+import org.jdom2.output.XMLOutputter;
+
+/**
+ * Serializes NAF documents straight to a {@link Writer}. {@link KAFDocument}
+ * only offers its XML as a String, which for large documents is held in
+ * memory next to the DOM and the encoder buffers; this writer outputs the
+ * same DOM, with the same format used by kaflib, as it is traversed. If the
+ * kaflib DOM cannot be accessed the String serialization is used instead.
+ */
+public final class NAFWriter {
+
+  /**
+   * The kaflib method building the DOM of a document, or null if it cannot
+   * be accessed.
+   */
+  private static final Method KAF_TO_DOM = findKAFToDOM();
+
+  private NAFWriter() {
+  }
+
+  private static Method findKAFToDOM() {
+    try {
+      final Method method = Class.forName("ixa.kaflib.ReadWriteManager")
+          .getDeclaredMethod("KAFToDOM", KAFDocument.class);
+      method.setAccessible(true);
+      return method;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Write a NAF document. The writer is flushed but not closed.
+   *
+   * @param kaf
+   *          the document
+   * @param writer
+   *          the writer, ideally buffered
+   * @throws IOException
+   *           if io error
+   */
+  public static void write(final KAFDocument kaf, final Writer writer)
+      throws IOException {
+    write(kaf, writer, true);
+  }
+
+  /**
+   * Write a NAF document, optionally without the XML comments kaflib adds
+   * with the text of every span. The writer is flushed but not closed.
+   *
+   * @param kaf
+   *          the document
+   * @param writer
+   *          the writer, ideally buffered
+   * @param comments
+   *          whether to write the comments
+   * @throws IOException
+   *           if io error
+   */
+  public static void write(final KAFDocument kaf, final Writer writer,
+      final boolean comments) throws IOException {
+    if (KAF_TO_DOM == null) {
+      writer.write(kaf.toString());
+      writer.flush();
+      return;
+    }
+    final Document dom;
+    try {
+      dom = (Document) KAF_TO_DOM.invoke(null, kaf);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+    if (!comments) {
+      final List<Comment> spanTexts = new ArrayList<Comment>();
+      for (final Comment comment : dom.getDescendants(Filters.comment())) {
+        spanTexts.add(comment);
+      }
+      for (final Comment comment : spanTexts) {
+        comment.detach();
+      }
+    }
+    // same format as KAFDocument.toString()
+    final XMLOutputter outputter = new XMLOutputter(Format.getPrettyFormat()
+        .setLineSeparator(LineSeparator.UNIX)
+        .setTextMode(Format.TextMode.TRIM_FULL_WHITE));
+    outputter.output(dom, writer);
+    writer.flush();
+  }
+
+}
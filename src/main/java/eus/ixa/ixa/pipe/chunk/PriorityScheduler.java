@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of annotation workers fed by one bounded queue per priority
+ * {@link Lane}. Interactive documents are preferred over bulk documents
+ * without ever starving the latter:
+ * <ul>
+ * <li>weighted (default): when both lanes have documents waiting, a bulk
+ * document is taken after every interactiveWeight interactive documents.</li>
+ * <li>strict: interactive documents are always taken first, unless the oldest
+ * bulk document has waited more than starvationLimit milliseconds.</li>
+ * </ul>
+ * The scheduler is configured with the properties threads, scheduling,
+ * interactiveWeight (defaults to 4), starvationLimit (defaults to 1000),
+ * queueSize and bulkQueueSize (defaults to queueSize).
+ */
+public class PriorityScheduler {
+
+  /**
+   * The priority classes of the documents.
+   */
+  public enum Lane {
+    INTERACTIVE, BULK;
+
+    /**
+     * Get the lane of a priority name, case insensitive.
+     *
+     * @param name
+     *          interactive or bulk
+     * @return the lane
+     * @throws IllegalArgumentException
+     *           if the name is not a lane
+     */
+    public static Lane fromName(final String name) {
+      return Lane.valueOf(name.trim().toUpperCase());
+    }
+
+    @Override
+    public String toString() {
+      return name().toLowerCase();
+    }
+  }
+
+  /**
+   * A document waiting in a lane.
+   */
+  private static final class Entry {
+    private final FutureTask<?> task;
+    private final long enqueued = System.nanoTime();
+
+    private Entry(final FutureTask<?> task) {
+      this.task = task;
+    }
+  }
+
+  /**
+   * The queues of every lane.
+   */
+  private final Map<Lane, Deque<Entry>> queues = new EnumMap<Lane, Deque<Entry>>(
+      Lane.class);
+  /**
+   * The capacity of every lane.
+   */
+  private final Map<Lane, Integer> capacities = new EnumMap<Lane, Integer>(
+      Lane.class);
+  /**
+   * Whether interactive documents are always taken first.
+   */
+  private final boolean strict;
+  /**
+   * Interactive documents taken for every bulk document in weighted mode.
+   */
+  private final int interactiveWeight;
+  /**
+   * Nanoseconds a bulk document may wait in strict mode.
+   */
+  private final long starvationLimit;
+  /**
+   * Interactive documents taken since the last bulk document.
+   */
+  private int interactiveTaken = 0;
+  /**
+   * The worker threads.
+   */
+  private final List<Thread> workers = new ArrayList<Thread>();
+  /**
+   * Whether the scheduler has been shut down.
+   */
+  private boolean shutdown = false;
+
+  /**
+   * Construct the scheduler and start its workers.
+   *
+   * @param properties
+   *          the scheduler properties
+   */
+  public PriorityScheduler(final Properties properties) {
+    final int threads = Integer.parseInt(properties.getProperty("threads",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+    final String queueSize = properties.getProperty("queueSize",
+        Integer.toString(threads * 4));
+    capacities.put(Lane.INTERACTIVE, Integer.parseInt(queueSize));
+    capacities.put(Lane.BULK,
+        Integer.parseInt(properties.getProperty("bulkQueueSize", queueSize)));
+    for (final Lane lane : Lane.values()) {
+      queues.put(lane, new ArrayDeque<Entry>());
+    }
+    final String scheduling = properties.getProperty("scheduling", "weighted");
+    if (!scheduling.equalsIgnoreCase("weighted")
+        && !scheduling.equalsIgnoreCase("strict")) {
+      throw new IllegalArgumentException("Unknown scheduling " + scheduling
+          + "; use weighted or strict");
+    }
+    strict = scheduling.equalsIgnoreCase("strict");
+    interactiveWeight = Math.max(1, Integer.parseInt(properties.getProperty(
+        "interactiveWeight", "4")));
+    starvationLimit = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties
+        .getProperty("starvationLimit", "1000")));
+    for (int i = 0; i < threads; i++) {
+      final Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work();
+        }
+      }, "ixa-pipe-chunk-worker-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Queue a document in a lane.
+   *
+   * @param lane
+   *          the lane
+   * @param callable
+   *          the annotation of the document
+   * @return the future annotation; cancelling it interrupts its worker
+   * @throws RejectedExecutionException
+   *           if the lane is full
+   */
+  public final synchronized <T> Future<T> submit(final Lane lane,
+      final Callable<T> callable) {
+    final Deque<Entry> queue = queues.get(lane);
+    if (shutdown || queue.size() >= capacities.get(lane)) {
+      throw new RejectedExecutionException("The " + lane + " queue is full");
+    }
+    final FutureTask<T> task = new FutureTask<T>(callable);
+    queue.add(new Entry(task));
+    notify();
+    return task;
+  }
+
+  /**
+   * Get the number of documents waiting in a lane.
+   *
+   * @param lane
+   *          the lane
+   * @return the number of documents
+   */
+  public final synchronized int queued(final Lane lane) {
+    return queues.get(lane).size();
+  }
+
+  /**
+   * Stop the workers and discard the waiting documents.
+   */
+  public final void shutdown() {
+    synchronized (this) {
+      shutdown = true;
+      for (final Deque<Entry> queue : queues.values()) {
+        for (final Entry entry : queue) {
+          entry.task.cancel(false);
+        }
+        queue.clear();
+      }
+      notifyAll();
+    }
+    for (final Thread worker : workers) {
+      worker.interrupt();
+    }
+  }
+
+  private void work() {
+    while (true) {
+      final FutureTask<?> task;
+      try {
+        task = take();
+      } catch (InterruptedException e) {
+        return;
+      }
+      task.run();
+      // a cancelled annotation may leave the interrupt flag set
+      Thread.interrupted();
+    }
+  }
+
+  /**
+   * Take the next document according to the scheduling policy.
+   */
+  private synchronized FutureTask<?> take() throws InterruptedException {
+    final Deque<Entry> interactive = queues.get(Lane.INTERACTIVE);
+    final Deque<Entry> bulk = queues.get(Lane.BULK);
+    while (interactive.isEmpty() && bulk.isEmpty()) {
+      if (shutdown) {
+        throw new InterruptedException();
+      }
+      wait();
+    }
+    final boolean takeBulk;
+    if (interactive.isEmpty()) {
+      takeBulk = true;
+    } else if (bulk.isEmpty()) {
+      takeBulk = false;
+    } else if (strict) {
+      takeBulk = System.nanoTime() - bulk.peek().enqueued > starvationLimit;
+    } else {
+      takeBulk = interactiveTaken >= interactiveWeight;
+    }
+    if (takeBulk) {
+      interactiveTaken = 0;
+      return bulk.poll().task;
+    }
+    interactiveTaken++;
+    return interactive.poll().task;
+  }
+
+}
@@ -0,0 +1,297 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
+import com.google.common.io.Files;
+
+/**
+ * Durable record of the documents of a batch run already annotated, so that
+ * a run interrupted by a crash or a pre-emption resumes where it stopped.
+ * Every line of the journal holds the name of an input, its size and
+ * modification time, and the size and CRC32C checksum of its output, and is
+ * forced to disk before the next document is recorded. Outputs are written
+ * with {@link #writeAtomically(File, Output)}, so an output is either
+ * complete or absent.
+ * <p>
+ * A document is done if its input has not changed since it was recorded
+ * and its output still has the recorded size, or, when verifying, the
+ * recorded checksum. The first line of the journal describes the run (model
+ * and output format); a journal of a different run is discarded.
+ */
+public class ProgressJournal implements Closeable {
+
+  private static final String HEADER = "#ixa-pipe-chunk journal v1 ";
+
+  /**
+   * Writes the content of an output.
+   */
+  public interface Output {
+    /**
+     * Write the output.
+     *
+     * @param writer
+     *          the writer
+     * @throws IOException
+     *           if the output cannot be written
+     */
+    void write(Writer writer) throws IOException;
+  }
+
+  /**
+   * A document recorded as done.
+   */
+  private static final class Entry {
+    private final long inputLength;
+    private final long inputModified;
+    private final long outputLength;
+    private final String checksum;
+
+    private Entry(final long inputLength, final long inputModified,
+        final long outputLength, final String checksum) {
+      this.inputLength = inputLength;
+      this.inputModified = inputModified;
+      this.outputLength = outputLength;
+      this.checksum = checksum;
+    }
+  }
+
+  /**
+   * The documents done, by name; the last record of a name wins.
+   */
+  private final Map<String, Entry> done = new HashMap<String, Entry>();
+  private final FileOutputStream out;
+  private final Writer writer;
+  /**
+   * Whether the checksum of the outputs is checked before skipping them.
+   */
+  private final boolean verify;
+
+  /**
+   * Open a journal, reading the documents already done.
+   *
+   * @param file
+   *          the journal
+   * @param run
+   *          the description of the run, e.g. its model and output format
+   * @param verify
+   *          whether to check the checksum of the outputs of the documents
+   *          done, instead of only their size
+   * @throws IOException
+   *           if the journal cannot be read or written
+   */
+  public ProgressJournal(final File file, final String run,
+      final boolean verify) throws IOException {
+    this.verify = verify;
+    final String header = HEADER + run.replace('\n', ' ');
+    boolean append = false;
+    if (file.exists()) {
+      truncateTornLine(file);
+      try (BufferedReader reader = Files.newReader(file, Charsets.UTF_8)) {
+        final String first = reader.readLine();
+        if (header.equals(first)) {
+          append = true;
+          String line;
+          while ((line = reader.readLine()) != null) {
+            parse(line);
+          }
+        } else {
+          System.err.println("WARNING: " + file + " belongs to another run, "
+              + "annotating every document again");
+        }
+      }
+    }
+    out = new FileOutputStream(file, append);
+    writer = new OutputStreamWriter(out, Charsets.UTF_8);
+    if (!append) {
+      writer.write(header + "\n");
+      flush();
+    }
+  }
+
+  /**
+   * Cut the last line of the journal if a crash tore it, so that the next
+   * record starts on a line of its own.
+   */
+  private static void truncateTornLine(final File file) throws IOException {
+    try (RandomAccessFile journal = new RandomAccessFile(file, "rw")) {
+      long end = journal.length();
+      while (end > 0) {
+        journal.seek(end - 1);
+        if (journal.read() == '\n') {
+          break;
+        }
+        end--;
+      }
+      if (end < journal.length()) {
+        journal.setLength(end);
+        journal.getFD().sync();
+      }
+    }
+  }
+
+  /**
+   * Parse a record; a malformed line is ignored.
+   */
+  private void parse(final String line) {
+    final String[] fields = line.split("\t");
+    if (fields.length != 5) {
+      return;
+    }
+    try {
+      done.put(fields[0], new Entry(Long.parseLong(fields[1]),
+          Long.parseLong(fields[2]), Long.parseLong(fields[3]), fields[4]));
+    } catch (NumberFormatException e) {
+      // torn line
+    }
+  }
+
+  /**
+   * Get the number of documents recorded.
+   *
+   * @return the number of documents
+   */
+  public final synchronized int size() {
+    return done.size();
+  }
+
+  /**
+   * Whether a document was annotated by a previous run.
+   *
+   * @param name
+   *          the name of the document in the run
+   * @param input
+   *          the input document
+   * @param output
+   *          the output document
+   * @return true if the input is unchanged and the output complete
+   * @throws IOException
+   *           if the output cannot be read to verify it
+   */
+  public final boolean isDone(final String name, final File input,
+      final File output) throws IOException {
+    final Entry entry;
+    synchronized (this) {
+      entry = done.get(name);
+    }
+    if (entry == null || entry.inputLength != input.length()
+        || entry.inputModified != input.lastModified()
+        || entry.outputLength != output.length() || !output.isFile()) {
+      return false;
+    }
+    return !verify || entry.checksum.equals(checksum(output));
+  }
+
+  /**
+   * Record a document as done, forcing the record to disk.
+   *
+   * @param name
+   *          the name of the document in the run
+   * @param input
+   *          the input document
+   * @param output
+   *          the output document, already written
+   * @param checksum
+   *          the checksum of the output
+   * @throws IOException
+   *           if the journal cannot be written
+   */
+  public final synchronized void record(final String name, final File input,
+      final File output, final String checksum) throws IOException {
+    final Entry entry = new Entry(input.length(), input.lastModified(),
+        output.length(), checksum);
+    writer.write(name.replace('\t', ' ').replace('\n', ' ') + "\t"
+        + entry.inputLength + "\t" + entry.inputModified + "\t"
+        + entry.outputLength + "\t" + checksum + "\n");
+    flush();
+    done.put(name, entry);
+  }
+
+  private void flush() throws IOException {
+    writer.flush();
+    out.getChannel().force(false);
+  }
+
+  @Override
+  public final synchronized void close() throws IOException {
+    writer.close();
+  }
+
+  /**
+   * Compute the checksum of a file.
+   *
+   * @param file
+   *          the file
+   * @return the CRC32C of the file in hexadecimal
+   * @throws IOException
+   *           if the file cannot be read
+   */
+  public static String checksum(final File file) throws IOException {
+    return Files.hash(file, Hashing.crc32c()).toString();
+  }
+
+  /**
+   * Write a file through a temporary file in the same directory, forced to
+   * disk and then renamed, so the file is never seen incomplete.
+   *
+   * @param file
+   *          the file
+   * @param output
+   *          the content
+   * @return the CRC32C of the content in hexadecimal
+   * @throws IOException
+   *           if the file cannot be written
+   */
+  public static String writeAtomically(final File file, final Output output)
+      throws IOException {
+    final File tmp = new File(file.getAbsoluteFile().getParentFile(), "."
+        + file.getName() + ".tmp");
+    final String checksum;
+    try (FileOutputStream fileOut = new FileOutputStream(tmp)) {
+      final HashingOutputStream hashing = new HashingOutputStream(
+          Hashing.crc32c(), fileOut);
+      final Writer tmpWriter = new OutputStreamWriter(
+          new BufferedOutputStream(hashing, 65536), Charsets.UTF_8);
+      output.write(tmpWriter);
+      tmpWriter.flush();
+      checksum = hashing.hash().toString();
+      fileOut.getFD().sync();
+    } catch (IOException e) {
+      tmp.delete();
+      throw e;
+    }
+    java.nio.file.Files.move(tmp.toPath(), file.toPath(),
+        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    return checksum;
+  }
+
+}
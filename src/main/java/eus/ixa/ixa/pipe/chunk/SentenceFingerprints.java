@@ -0,0 +1,216 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import opennlp.tools.util.Span;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+
+/**
+ * The chunks of the sentences annotated so far, indexed by a fingerprint of
+ * their tokens and POS tags, used by the incremental mode of {@link Annotate}
+ * to chunk only the sentences which changed since the last run. The least
+ * recently used sentences are evicted above the maximum size. The
+ * fingerprints can be saved to a file, one sentence per line: the
+ * fingerprint followed by the start, end and type of every chunk, separated
+ * by tabs.
+ */
+public class SentenceFingerprints {
+
+  /**
+   * Default maximum number of sentences kept.
+   */
+  public static final int DEFAULT_MAX_SENTENCES = 100000;
+
+  private static final HashFunction HASH = Hashing.murmur3_128();
+
+  /**
+   * The chunks of every fingerprint, in access order.
+   */
+  private final LinkedHashMap<String, Span[]> sentences;
+  /**
+   * Sentences skipped because they were already chunked.
+   */
+  private final AtomicLong skipped = new AtomicLong();
+  /**
+   * Sentences whose chunks were found by their fingerprint.
+   */
+  private final AtomicLong reused = new AtomicLong();
+  /**
+   * Sentences chunked by the model.
+   */
+  private final AtomicLong chunked = new AtomicLong();
+
+  /**
+   * Construct an empty set of fingerprints.
+   *
+   * @param maxSentences
+   *          the maximum number of sentences kept
+   */
+  public SentenceFingerprints(final int maxSentences) {
+    sentences = new LinkedHashMap<String, Span[]>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(final Map.Entry<String, Span[]> eldest) {
+        return size() > maxSentences;
+      }
+    };
+  }
+
+  /**
+   * Compute the fingerprint of a sentence.
+   *
+   * @param tokens
+   *          the tokens
+   * @param posTags
+   *          the POS tags
+   * @return the fingerprint
+   */
+  public static String fingerprint(final String[] tokens,
+      final String[] posTags) {
+    final Hasher hasher = HASH.newHasher();
+    for (int i = 0; i < tokens.length; i++) {
+      hasher.putString(tokens[i], Charsets.UTF_8).putChar('\0');
+      hasher.putString(posTags[i] == null ? "" : posTags[i], Charsets.UTF_8)
+          .putChar('\0');
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Get the chunks of a sentence.
+   *
+   * @param fingerprint
+   *          the fingerprint of the sentence
+   * @return the chunks, or null if the sentence is not known
+   */
+  public final synchronized Span[] get(final String fingerprint) {
+    return sentences.get(fingerprint);
+  }
+
+  /**
+   * Record the chunks of a sentence.
+   *
+   * @param fingerprint
+   *          the fingerprint of the sentence
+   * @param chunks
+   *          the chunks
+   */
+  public final synchronized void put(final String fingerprint,
+      final Span[] chunks) {
+    sentences.put(fingerprint, chunks);
+  }
+
+  /**
+   * Get the number of sentences kept.
+   *
+   * @return the number of sentences
+   */
+  public final synchronized int size() {
+    return sentences.size();
+  }
+
+  public final void skipped() {
+    skipped.incrementAndGet();
+  }
+
+  public final void reused() {
+    reused.incrementAndGet();
+  }
+
+  public final void chunked() {
+    chunked.incrementAndGet();
+  }
+
+  /**
+   * Format the sentence counters.
+   *
+   * @return the counters in one line
+   */
+  public final String report() {
+    return String.format("sentences alreadyChunked=%d reused=%d chunked=%d%n",
+        skipped.get(), reused.get(), chunked.get());
+  }
+
+  /**
+   * Load the fingerprints saved in a file. Malformed lines are ignored.
+   *
+   * @param file
+   *          the file
+   * @throws IOException
+   *           if io error
+   */
+  public final void load(final File file) throws IOException {
+    try (BufferedReader reader = Files.newReader(file, Charsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final String[] fields = line.split("\t");
+        if (fields[0].isEmpty()) {
+          continue;
+        }
+        final List<Span> chunks = new ArrayList<Span>();
+        try {
+          for (int i = 1; i < fields.length; i++) {
+            final String[] span = fields[i].split(" ", 3);
+            chunks.add(new Span(Integer.parseInt(span[0]), Integer
+                .parseInt(span[1]), span.length > 2 ? span[2] : null));
+          }
+        } catch (RuntimeException e) {
+          continue;
+        }
+        put(fields[0], chunks.toArray(new Span[chunks.size()]));
+      }
+    }
+  }
+
+  /**
+   * Save the fingerprints to a file, least recently used first.
+   *
+   * @param file
+   *          the file
+   * @throws IOException
+   *           if io error
+   */
+  public final synchronized void save(final File file) throws IOException {
+    try (BufferedWriter writer = Files.newWriter(file, Charsets.UTF_8)) {
+      for (final Map.Entry<String, Span[]> sentence : sentences.entrySet()) {
+        writer.write(sentence.getKey());
+        for (final Span chunk : sentence.getValue()) {
+          writer.write("\t" + chunk.getStart() + " " + chunk.getEnd() + " "
+              + chunk.getType());
+        }
+        writer.newLine();
+      }
+    }
+  }
+
+}
@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.IOException;
+
+/**
+ * Signals that a {@link ChunkerServer} rejected a document because its queue
+ * was full. The document was not annotated and can be sent again later.
+ */
+public class ServerBusyException extends IOException {
+
+  private static final long serialVersionUID = 1L;
+
+  public ServerBusyException(final String message) {
+    super(message);
+  }
+
+}
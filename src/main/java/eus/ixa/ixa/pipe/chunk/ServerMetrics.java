@@ -0,0 +1,140 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of the {@link ChunkerServer}. The time a document
+ * waits for a free worker is kept apart from the time spent annotating it, so
+ * that an overloaded server can be told apart from a slow model.
+ */
+public class ServerMetrics {
+
+  /**
+   * Documents received.
+   */
+  private final AtomicLong received = new AtomicLong();
+  /**
+   * Documents annotated.
+   */
+  private final AtomicLong completed = new AtomicLong();
+  /**
+   * Documents rejected because the queue was full.
+   */
+  private final AtomicLong busy = new AtomicLong();
+  /**
+   * Documents rejected because of their size.
+   */
+  private final AtomicLong tooLarge = new AtomicLong();
+  /**
+   * Documents aborted because their deadline expired.
+   */
+  private final AtomicLong deadlineExceeded = new AtomicLong();
+  /**
+   * Documents which could not be annotated.
+   */
+  private final AtomicLong failed = new AtomicLong();
+  /**
+   * Microseconds waited in the queue.
+   */
+  private final LatencyHistogram queueWait = new LatencyHistogram();
+  /**
+   * Microseconds spent annotating.
+   */
+  private final LatencyHistogram processing = new LatencyHistogram();
+  /**
+   * Uncompressed bytes of the compressed pipeline frames.
+   */
+  private final AtomicLong rawBytes = new AtomicLong();
+  /**
+   * Bytes on the wire of the compressed pipeline frames.
+   */
+  private final AtomicLong wireBytes = new AtomicLong();
+  /**
+   * Nanoseconds of CPU spent compressing and decompressing.
+   */
+  private final AtomicLong compressionNanos = new AtomicLong();
+
+  public final void received() {
+    received.incrementAndGet();
+  }
+
+  public final void completed(final long processingMicros) {
+    completed.incrementAndGet();
+    processing.record(processingMicros);
+  }
+
+  public final void busy() {
+    busy.incrementAndGet();
+  }
+
+  public final void tooLarge() {
+    tooLarge.incrementAndGet();
+  }
+
+  public final void deadlineExceeded() {
+    deadlineExceeded.incrementAndGet();
+  }
+
+  public final void failed() {
+    failed.incrementAndGet();
+  }
+
+  public final void queueWait(final long queueWaitMicros) {
+    queueWait.record(queueWaitMicros);
+  }
+
+  public final void transferred(final long raw, final long wire,
+      final long cpuNanos) {
+    rawBytes.addAndGet(raw);
+    wireBytes.addAndGet(wire);
+    compressionNanos.addAndGet(cpuNanos);
+  }
+
+  /**
+   * Format the metrics.
+   *
+   * @param queued
+   *          the documents currently waiting in the queue
+   * @return the metrics, one per line
+   */
+  public final String report(final int queued) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("received=%d completed=%d busy=%d tooLarge=%d "
+        + "deadlineExceeded=%d failed=%d queued=%d%n", received.get(),
+        completed.get(), busy.get(), tooLarge.get(), deadlineExceeded.get(),
+        failed.get(), queued));
+    appendLatencies(sb, "queueWait", queueWait);
+    appendLatencies(sb, "processing", processing);
+    if (wireBytes.get() > 0) {
+      sb.append(String.format("compression raw=%d wire=%d ratio=%.2f cpu(ms)=%.2f%n",
+          rawBytes.get(), wireBytes.get(), (double) rawBytes.get()
+              / wireBytes.get(), compressionNanos.get() / 1e6));
+    }
+    return sb.toString();
+  }
+
+  private static void appendLatencies(final StringBuilder sb,
+      final String name, final LatencyHistogram histogram) {
+    sb.append(String.format("%s(ms) p50=%.2f p99=%.2f max=%.2f%n", name,
+        histogram.getValueAtPercentile(50) / 1000.0,
+        histogram.getValueAtPercentile(99) / 1000.0,
+        histogram.getMaxValue() / 1000.0));
+  }
+
+}
@@ -0,0 +1,665 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Annotates a corpus with several local worker processes, each a
+ * {@link ChunkerServer} on its own port, so that no single JVM holds the
+ * whole load in its heap. The documents are split into shards of shardSize
+ * documents, dealt round robin to one queue per worker. Every worker takes
+ * shards from the head of its own queue and, once it is empty, steals them
+ * from the tail of the longest queue, so fast workers are never idle while
+ * slow ones have work left.
+ * <p>
+ * The coordinator either launches workers (workers processes on consecutive
+ * ports from basePort, with the model, language and outputFormat given) or
+ * connects to servers already running on ports. If a worker dies while
+ * annotating a shard, the shard goes back to the queues and is retried up to
+ * maxRetries times; launched workers are started again up to maxRestarts
+ * times. Documents rejected by a live worker are counted as failed without
+ * retrying their shard. The annotated documents are written to the output
+ * directory with their paths relative to the input directory.
+ */
+public class ShardCoordinator {
+
+  /**
+   * Milliseconds to wait for a launched worker to listen.
+   */
+  private static final long STARTUP_TIMEOUT = 120000;
+  /**
+   * Milliseconds to wait before resending a document to a busy worker.
+   */
+  private static final long BUSY_DELAY = 100;
+
+  /**
+   * A group of documents dispatched together.
+   */
+  private static final class Shard {
+    private final int id;
+    private final List<File> files;
+    private int attempts = 0;
+
+    private Shard(final int id, final List<File> files) {
+      this.id = id;
+      this.files = files;
+    }
+  }
+
+  /**
+   * A document sent to a worker and not answered yet.
+   */
+  private static final class Pending {
+    private final File file;
+    private final String document;
+    private CompletableFuture<String> result;
+
+    private Pending(final File file, final String document) {
+      this.file = file;
+      this.document = document;
+    }
+  }
+
+  /**
+   * A worker process and its client.
+   */
+  private final class Worker implements Runnable {
+    private final int index;
+    private final int port;
+    private volatile Process process = null;
+    private ChunkerClient client = null;
+    private int restarts = 0;
+    /**
+     * Documents of the current shard annotated and failed.
+     */
+    private int shardAnnotated = 0;
+    private int shardFailed = 0;
+
+    private Worker(final int index, final int port) {
+      this.index = index;
+      this.port = port;
+    }
+
+    @Override
+    public void run() {
+      Shard shard = null;
+      try {
+        start();
+        while ((shard = takeShard(index)) != null) {
+          final boolean done = annotate(shard);
+          if (done) {
+            completeShard(shard, shardAnnotated, shardFailed);
+          } else {
+            requeueShard(shard, index);
+          }
+          shard = null;
+          if (!done && !restart()) {
+            break;
+          }
+        }
+      } catch (IOException e) {
+        System.err.println("ERROR: worker " + index + " on port " + port
+            + ": " + e.getMessage());
+      } finally {
+        if (shard != null) {
+          requeueShard(shard, index);
+        }
+        stop();
+        workerStopped(index);
+      }
+    }
+
+    private void start() throws IOException {
+      if (launch) {
+        if (canConnect()) {
+          throw new IOException("Port " + port + " is already in use");
+        }
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"),
+            "java").getPath());
+        command.addAll(workerOptions);
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(CLI.class.getName());
+        command.add("server");
+        command.add("-p");
+        command.add(Integer.toString(port));
+        command.add("-m");
+        command.add(model);
+        command.add("-l");
+        command.add(language);
+        command.add("-o");
+        command.add(outputFormat);
+        if (workerThreads != null) {
+          command.add("--threads");
+          command.add(workerThreads);
+        }
+        final File log = new File(System.getProperty("java.io.tmpdir"),
+            "ixa-pipe-chunk-worker-" + port + ".log");
+        process = new ProcessBuilder(command).redirectErrorStream(true)
+            .redirectOutput(ProcessBuilder.Redirect.appendTo(log)).start();
+        System.err.println("Worker " + index + " launched on port " + port
+            + ", logging to " + log);
+      }
+      awaitListening();
+      final Properties clientProperties = new Properties();
+      clientProperties.setProperty("servers", "localhost:" + port);
+      clientProperties.setProperty("connections", "1");
+      clientProperties.setProperty("pipelineDepth", Integer.toString(pipelineDepth));
+      clientProperties.setProperty("timeout", Integer.toString(timeout));
+      // a failure means the worker is gone; the coordinator retries the shard
+      clientProperties.setProperty("retries", "0");
+      client = new ChunkerClient(clientProperties);
+    }
+
+    private void awaitListening() throws IOException {
+      if (process == null) {
+        if (!canConnect()) {
+          throw new IOException("No server listening on port " + port);
+        }
+        return;
+      }
+      final long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+      while (!canConnect()) {
+        if (!process.isAlive() || System.currentTimeMillis() > deadline) {
+          throw new IOException("Worker on port " + port + " did not start");
+        }
+        sleep(200);
+      }
+    }
+
+    private boolean canConnect() {
+      try (Socket socket = new Socket()) {
+        socket.connect(new InetSocketAddress("localhost", port), 1000);
+        return true;
+      } catch (IOException e) {
+        return false;
+      }
+    }
+
+    private boolean isAlive() throws InterruptedIOException {
+      if (process == null) {
+        return canConnect();
+      }
+      try {
+        // a connection reset may be seen before the process exits
+        return !process.waitFor(1, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Coordinator interrupted");
+      }
+    }
+
+    /**
+     * Start a launched worker again after it died.
+     *
+     * @return whether the worker is running again
+     */
+    private boolean restart() throws IOException {
+      stop();
+      if (!launch || restarts >= maxRestarts) {
+        System.err.println("ERROR: worker " + index + " on port " + port
+            + " is gone");
+        return false;
+      }
+      restarts++;
+      synchronized (ShardCoordinator.this) {
+        totalRestarts++;
+      }
+      System.err.println("Restarting worker " + index + " on port " + port);
+      start();
+      return true;
+    }
+
+    private void stop() {
+      if (client != null) {
+        client.close();
+        client = null;
+      }
+      if (process != null) {
+        process.destroy();
+        try {
+          process.waitFor();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        process = null;
+      }
+    }
+
+    /**
+     * Annotate the documents of a shard, keeping pipelineDepth of them in
+     * flight.
+     *
+     * @return false if the worker died
+     */
+    private boolean annotate(final Shard shard) throws IOException {
+      shardAnnotated = 0;
+      shardFailed = 0;
+      final Deque<Pending> window = new ArrayDeque<Pending>();
+      for (final File file : shard.files) {
+        final Pending pending;
+        try {
+          pending = new Pending(file, Files.toString(file, Charsets.UTF_8));
+        } catch (IOException e) {
+          shardFailed++;
+          System.err.println("ERROR: " + file + ": " + e.getMessage());
+          continue;
+        }
+        pending.result = client.submit(pending.document);
+        window.add(pending);
+        if (window.size() >= pipelineDepth && !finish(window)) {
+          return false;
+        }
+      }
+      while (!window.isEmpty()) {
+        if (!finish(window)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Wait for the oldest document in flight and write it.
+     *
+     * @return false if the worker died
+     */
+    private boolean finish(final Deque<Pending> window) throws IOException {
+      final Pending pending = window.peek();
+      while (true) {
+        try {
+          final String annotated = pending.result.get();
+          window.poll();
+          final File outputFile = outputFile(pending.file);
+          try {
+            Files.createParentDirs(outputFile);
+            Files.write(annotated, outputFile, Charsets.UTF_8);
+            shardAnnotated++;
+          } catch (IOException e) {
+            shardFailed++;
+            System.err.println("ERROR: " + outputFile + ": " + e.getMessage());
+          }
+          return true;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Coordinator interrupted");
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof ServerBusyException) {
+            sleep(BUSY_DELAY);
+            pending.result = client.submit(pending.document);
+            continue;
+          }
+          if (!isAlive()) {
+            return false;
+          }
+          window.poll();
+          shardFailed++;
+          System.err.println("ERROR: " + pending.file + ": "
+              + (e.getCause() instanceof TimeoutException ? "timeout" : e
+                  .getCause().getMessage()));
+          return true;
+        }
+      }
+    }
+  }
+
+  /**
+   * Whether the coordinator launches its workers.
+   */
+  private final boolean launch;
+  private final List<Integer> ports = new ArrayList<Integer>();
+  private final String model;
+  private final String language;
+  private final String outputFormat;
+  private final String workerThreads;
+  private final List<String> workerOptions = new ArrayList<String>();
+  private final int shardSize;
+  private final int pipelineDepth;
+  private final int timeout;
+  private final int maxRetries;
+  private final int maxRestarts;
+
+  /**
+   * The shards of every worker; workers steal from the tail of the others.
+   */
+  private final List<Deque<Shard>> queues = new ArrayList<Deque<Shard>>();
+  private File inputDir;
+  private File outputDir;
+  /**
+   * Shards neither completed nor abandoned.
+   */
+  private int remainingShards = 0;
+  private int liveWorkers = 0;
+  /**
+   * Whether every worker is still running.
+   */
+  private boolean[] live = new boolean[0];
+  private long annotated = 0;
+  private long failed = 0;
+  private long retries = 0;
+  private long steals = 0;
+  private long totalRestarts = 0;
+
+  /**
+   * Construct a coordinator.
+   *
+   * @param properties
+   *          ports (comma separated ports of running servers) or workers
+   *          (number of workers to launch, defaults to 2) with basePort
+   *          (defaults to 5700), model, language, outputFormat, workerThreads
+   *          and workerOptions (JVM options of the workers); shardSize
+   *          (defaults to 16), pipelineDepth (defaults to 4), timeout
+   *          (defaults to 600000 ms), maxRetries (defaults to 3) and
+   *          maxRestarts (defaults to 3)
+   */
+  public ShardCoordinator(final Properties properties) {
+    final String portList = properties.getProperty("ports");
+    launch = portList == null;
+    if (launch) {
+      final int workers = Integer.parseInt(properties.getProperty("workers", "2"));
+      final int basePort = Integer.parseInt(properties.getProperty("basePort",
+          "5700"));
+      for (int i = 0; i < workers; i++) {
+        ports.add(basePort + i);
+      }
+    } else {
+      for (final String port : portList.split(",")) {
+        ports.add(Integer.parseInt(port.trim()));
+      }
+    }
+    model = properties.getProperty("model");
+    if (launch && model == null) {
+      throw new IllegalArgumentException("Launching workers requires a model");
+    }
+    language = properties.getProperty("language", "en");
+    final String format = properties.getProperty("outputFormat", "naf");
+    // the server calls the CoNLL format conll00
+    outputFormat = format.equalsIgnoreCase("conll") ? "conll00" : format;
+    workerThreads = properties.getProperty("workerThreads");
+    final String options = properties.getProperty("workerOptions", "").trim();
+    if (!options.isEmpty()) {
+      workerOptions.addAll(Arrays.asList(options.split("\\s+")));
+    }
+    shardSize = Math.max(1, Integer.parseInt(properties.getProperty(
+        "shardSize", "16")));
+    pipelineDepth = Math.max(1, Integer.parseInt(properties.getProperty(
+        "pipelineDepth", "4")));
+    timeout = Integer.parseInt(properties.getProperty("timeout", "600000"));
+    maxRetries = Integer.parseInt(properties.getProperty("maxRetries", "3"));
+    maxRestarts = Integer.parseInt(properties.getProperty("maxRestarts", "3"));
+  }
+
+  /**
+   * Read a manifest, one document path per line; relative paths are resolved
+   * against the input directory. Empty lines and lines starting with # are
+   * skipped.
+   *
+   * @param manifest
+   *          the manifest
+   * @param inputDir
+   *          the input directory, or null
+   * @return the documents
+   * @throws IOException
+   *           if the manifest cannot be read
+   */
+  public static List<File> readManifest(final File manifest, final File inputDir)
+      throws IOException {
+    final List<File> files = new ArrayList<File>();
+    try (BufferedReader reader = Files.newReader(manifest, Charsets.UTF_8)) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        final File file = new File(line);
+        files.add(file.isAbsolute() || inputDir == null ? file : new File(
+            inputDir, line));
+      }
+    }
+    return files;
+  }
+
+  /**
+   * Annotate documents.
+   *
+   * @param files
+   *          the documents
+   * @param inputDir
+   *          the directory the output paths are relative to, or null to
+   *          write every output with the file name of its input
+   * @param outputDir
+   *          the output directory, created if needed
+   * @return the number of documents which could not be annotated
+   * @throws IOException
+   *           if the output directory cannot be created or interrupted
+   * @throws IllegalArgumentException
+   *           if two documents would be written to the same output file
+   */
+  public final int annotate(final List<File> files, final File inputDir,
+      final File outputDir) throws IOException {
+    synchronized (this) {
+      this.inputDir = inputDir == null ? null : inputDir.getAbsoluteFile();
+      this.outputDir = outputDir;
+      final Map<File, File> inputs = new HashMap<File, File>();
+      for (final File file : files) {
+        final File previous = inputs.put(outputFile(file), file);
+        if (previous != null && !previous.equals(file)) {
+          throw new IllegalArgumentException(previous + " and " + file
+              + " would both be written to " + outputFile(file));
+        }
+      }
+    }
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create " + outputDir + " directory");
+    }
+    final long start = System.currentTimeMillis();
+    final List<Thread> threads = new ArrayList<Thread>();
+    final List<Worker> workers = new ArrayList<Worker>();
+    synchronized (this) {
+      queues.clear();
+      for (int i = 0; i < ports.size(); i++) {
+        queues.add(new ArrayDeque<Shard>());
+      }
+      for (int i = 0; i * shardSize < files.size(); i++) {
+        final Shard shard = new Shard(i, new ArrayList<File>(files.subList(i
+            * shardSize, Math.min(files.size(), (i + 1) * shardSize))));
+        queues.get(i % queues.size()).add(shard);
+        remainingShards++;
+      }
+      liveWorkers = ports.size();
+      live = new boolean[ports.size()];
+      Arrays.fill(live, true);
+    }
+    for (int i = 0; i < ports.size(); i++) {
+      final Worker worker = new Worker(i, ports.get(i));
+      final Thread thread = new Thread(worker, "ixa-pipe-chunk-coordinator-" + i);
+      workers.add(worker);
+      threads.add(thread);
+    }
+    // do not leave launched workers behind if the coordinator is killed
+    final Thread cleanup = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        for (final Worker worker : workers) {
+          final Process process = worker.process;
+          if (process != null) {
+            process.destroy();
+          }
+        }
+      }
+    });
+    Runtime.getRuntime().addShutdownHook(cleanup);
+    for (final Thread thread : threads) {
+      thread.start();
+    }
+    try {
+      for (final Thread thread : threads) {
+        thread.join();
+      }
+    } catch (InterruptedException e) {
+      for (final Thread thread : threads) {
+        thread.interrupt();
+      }
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Coordinator interrupted");
+    } finally {
+      try {
+        Runtime.getRuntime().removeShutdownHook(cleanup);
+      } catch (IllegalStateException e) {
+        // the JVM is shutting down and the hook is running
+      }
+    }
+    synchronized (this) {
+      // the shards left when every worker is gone
+      for (final Deque<Shard> queue : queues) {
+        for (final Shard shard : queue) {
+          failed += shard.files.size();
+        }
+        queue.clear();
+      }
+      System.err.println(String.format("Annotated %d of %d documents with %d "
+          + "workers in %.1f s: shards=%d retries=%d steals=%d restarts=%d",
+          annotated, files.size(), ports.size(),
+          (System.currentTimeMillis() - start) / 1000.0,
+          (files.size() + shardSize - 1) / shardSize, retries, steals,
+          totalRestarts));
+      return (int) Math.min(Integer.MAX_VALUE, failed);
+    }
+  }
+
+  /**
+   * Take the next shard of a worker, stealing one if its queue is empty, and
+   * waiting while shards being annotated by other workers may come back.
+   *
+   * @return the shard, or null if there is no work left
+   */
+  private synchronized Shard takeShard(final int worker) throws IOException {
+    while (remainingShards > 0) {
+      Shard shard = queues.get(worker).pollFirst();
+      if (shard != null) {
+        return shard;
+      }
+      Deque<Shard> longest = null;
+      for (final Deque<Shard> queue : queues) {
+        if (longest == null || queue.size() > longest.size()) {
+          longest = queue;
+        }
+      }
+      shard = longest.pollLast();
+      if (shard != null) {
+        steals++;
+        return shard;
+      }
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Coordinator interrupted");
+      }
+    }
+    return null;
+  }
+
+  private synchronized void completeShard(final Shard shard,
+      final int shardAnnotated, final int shardFailed) {
+    annotated += shardAnnotated;
+    failed += shardFailed;
+    remainingShards--;
+    notifyAll();
+  }
+
+  /**
+   * Put back the shard of a dead worker at the head of the shortest queue of
+   * the other workers, or abandon it after maxRetries.
+   */
+  private synchronized void requeueShard(final Shard shard, final int worker) {
+    shard.attempts++;
+    if (shard.attempts > maxRetries) {
+      System.err.println("ERROR: shard " + shard.id + " abandoned after "
+          + maxRetries + " retries");
+      failed += shard.files.size();
+      remainingShards--;
+    } else {
+      retries++;
+      Deque<Shard> shortest = null;
+      for (int i = 0; i < queues.size(); i++) {
+        if (i != worker && live[i]
+            && (shortest == null || queues.get(i).size() < shortest.size())) {
+          shortest = queues.get(i);
+        }
+      }
+      if (shortest == null) {
+        // no other worker left; the worker takes it back if it restarts
+        shortest = queues.get(worker);
+      }
+      shortest.addFirst(shard);
+    }
+    notifyAll();
+  }
+
+  private synchronized void workerStopped(final int worker) {
+    live[worker] = false;
+    liveWorkers--;
+    if (liveWorkers == 0) {
+      // nobody is left to annotate the remaining shards
+      remainingShards = 0;
+    }
+    notifyAll();
+  }
+
+  private synchronized File outputFile(final File inputFile) {
+    final String input = inputFile.getAbsolutePath();
+    if (inputDir != null
+        && input.startsWith(inputDir.getPath() + File.separator)) {
+      return new File(outputDir, input.substring(inputDir.getPath().length() + 1));
+    }
+    return new File(outputDir, inputFile.getName());
+  }
+
+  private static void sleep(final long millis) throws InterruptedIOException {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Coordinator interrupted");
+    }
+  }
+
+}
@@ -0,0 +1,372 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Annotates the NAF documents dropped into a spool directory as they
+ * arrive, on a pool of threads sharing one loaded model. A {@link WatchService}
+ * reports new and modified files; a file is taken once its size and
+ * modification time have not changed for settle milliseconds, so files still
+ * being written are left alone (hidden files and files ending in .tmp or
+ * .part are never taken). The annotated document is written to the output
+ * directory and the input moved to the done directory, or to the failed
+ * directory if it cannot be annotated.
+ * <p>
+ * At most maxInFlight documents are annotated or queued at the same time;
+ * the rest wait in the spool directory. Every statsInterval seconds the
+ * documents and bytes annotated per second are reported. Documents left in
+ * the spool directory when the watcher is stopped are annotated when it
+ * starts again.
+ */
+public class SpoolWatcher {
+
+  /**
+   * The annotator of the documents.
+   */
+  private final BatchAnnotator annotator;
+  /**
+   * The directory watched.
+   */
+  private final File spoolDir;
+  /**
+   * The directory of the annotated documents.
+   */
+  private final File outputDir;
+  /**
+   * The directory of the inputs annotated.
+   */
+  private final File doneDir;
+  /**
+   * The directory of the inputs which could not be annotated.
+   */
+  private final File failedDir;
+  /**
+   * Number of threads annotating.
+   */
+  private final int threads;
+  /**
+   * Maximum number of documents annotated or queued.
+   */
+  private final Semaphore inFlight;
+  /**
+   * Milliseconds a file must be unchanged before it is taken.
+   */
+  private final long settleMillis;
+  /**
+   * Seconds between statistics.
+   */
+  private final long statsInterval;
+  /**
+   * The files seen but not taken yet, by name, with their size, modification
+   * time and the time they were last seen changing.
+   */
+  private final Map<String, long[]> pending = new ConcurrentHashMap<String, long[]>();
+  /**
+   * The names of the files taken and not moved yet.
+   */
+  private final Set<String> taken = ConcurrentHashMap.<String> newKeySet();
+  private final AtomicLong documents = new AtomicLong();
+  private final AtomicLong bytes = new AtomicLong();
+  private final AtomicLong failures = new AtomicLong();
+  private final AtomicLong totalDocuments = new AtomicLong();
+  /**
+   * The time of the last report, or of the start of the watch.
+   */
+  private final AtomicLong lastReport = new AtomicLong();
+  private volatile boolean running = true;
+  private final CountDownLatch stopped = new CountDownLatch(1);
+
+  /**
+   * Construct a watcher loading the model.
+   *
+   * @param properties
+   *          the annotation properties plus inputDir, the spool directory,
+   *          outputDir, doneDir and failedDir (default to done and failed in
+   *          the spool directory), threads, maxInFlight (defaults to four per
+   *          thread), settle (defaults to 1000) and statsInterval (defaults
+   *          to 60)
+   * @throws IOException
+   *           if the model cannot be loaded or a directory created
+   * @throws IllegalArgumentException
+   *           if statsInterval is not positive
+   */
+  public SpoolWatcher(final Properties properties) throws IOException {
+    spoolDir = new File(properties.getProperty("inputDir"));
+    outputDir = new File(properties.getProperty("outputDir"));
+    doneDir = new File(properties.getProperty("doneDir",
+        new File(spoolDir, "done").getPath()));
+    failedDir = new File(properties.getProperty("failedDir",
+        new File(spoolDir, "failed").getPath()));
+    for (final File dir : new File[] { spoolDir, outputDir, doneDir, failedDir }) {
+      if (!dir.isDirectory() && !dir.mkdirs()) {
+        throw new IOException("Cannot create " + dir + " directory");
+      }
+    }
+    threads = Integer.parseInt(properties.getProperty("threads",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+    inFlight = new Semaphore(Integer.parseInt(properties.getProperty(
+        "maxInFlight", Integer.toString(threads * 4))));
+    settleMillis = Long.parseLong(properties.getProperty("settle", "1000"));
+    statsInterval = Long.parseLong(properties.getProperty("statsInterval",
+        "60"));
+    if (statsInterval <= 0) {
+      throw new IllegalArgumentException("statsInterval must be positive");
+    }
+    annotator = new BatchAnnotator(properties, null);
+  }
+
+  /**
+   * Watch the spool directory until the watcher is stopped or the JVM shuts
+   * down, waiting then for the documents in flight.
+   *
+   * @throws IOException
+   *           if the spool directory cannot be watched
+   */
+  public final void watch() throws IOException {
+    final WatchService watchService = FileSystems.getDefault()
+        .newWatchService();
+    spoolDir.toPath().register(watchService,
+        StandardWatchEventKinds.ENTRY_CREATE,
+        StandardWatchEventKinds.ENTRY_MODIFY);
+    final ExecutorService executor = Executors.newFixedThreadPool(threads,
+        threadFactory("ixa-pipe-chunk-watch"));
+    final ScheduledExecutorService stats = Executors
+        .newSingleThreadScheduledExecutor(threadFactory("ixa-pipe-chunk-watch-stats"));
+    lastReport.set(System.currentTimeMillis());
+    stats.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        report();
+      }
+    }, statsInterval, statsInterval, TimeUnit.SECONDS);
+    final Thread shutdownHook = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        stop();
+        try {
+          stopped.await(60, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    });
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+    System.err.println("Watching " + spoolDir + " into " + outputDir);
+    try {
+      rescan();
+      while (running) {
+        final WatchKey key = watchService.poll(
+            pending.isEmpty() ? 1000 : Math.max(50, settleMillis / 4),
+            TimeUnit.MILLISECONDS);
+        if (key != null) {
+          for (final WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              rescan();
+            } else {
+              seen(((Path) event.context()).toString());
+            }
+          }
+          key.reset();
+        }
+        submitSettled(executor);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Watch interrupted");
+    } finally {
+      executor.shutdown();
+      try {
+        executor.awaitTermination(60, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      stats.shutdownNow();
+      watchService.close();
+      report();
+      stopped.countDown();
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException e) {
+        // already shutting down
+      }
+    }
+  }
+
+  /**
+   * Stop watching; the documents in flight are finished.
+   */
+  public final void stop() {
+    running = false;
+  }
+
+  /**
+   * Add every file of the spool directory, for the files dropped before the
+   * watch started or lost by an overflow of events.
+   */
+  private void rescan() {
+    final String[] names = spoolDir.list();
+    if (names != null) {
+      for (final String name : names) {
+        seen(name);
+      }
+    }
+  }
+
+  private void seen(final String name) {
+    if (name.startsWith(".") || name.endsWith(".tmp")
+        || name.endsWith(".part") || taken.contains(name)
+        || pending.containsKey(name)) {
+      return;
+    }
+    final File file = new File(spoolDir, name);
+    if (file.isFile()) {
+      pending.put(name, new long[] { file.length(), file.lastModified(),
+          System.currentTimeMillis() });
+    }
+  }
+
+  /**
+   * Submit the pending files unchanged for settle milliseconds, as long as
+   * the in-flight limit allows.
+   */
+  private void submitSettled(final ExecutorService executor)
+      throws InterruptedException {
+    final long now = System.currentTimeMillis();
+    final List<String> settled = new ArrayList<String>();
+    final Iterator<Map.Entry<String, long[]>> entries = pending.entrySet()
+        .iterator();
+    while (entries.hasNext()) {
+      final Map.Entry<String, long[]> entry = entries.next();
+      final File file = new File(spoolDir, entry.getKey());
+      final long[] state = entry.getValue();
+      if (!file.isFile()) {
+        entries.remove();
+      } else if (file.length() != state[0] || file.lastModified() != state[1]) {
+        state[0] = file.length();
+        state[1] = file.lastModified();
+        state[2] = now;
+      } else if (now - state[2] >= settleMillis) {
+        settled.add(entry.getKey());
+      }
+    }
+    for (final String name : settled) {
+      if (!running || !inFlight.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+        // the rest wait for the next round
+        return;
+      }
+      pending.remove(name);
+      taken.add(name);
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            annotate(name);
+          } finally {
+            taken.remove(name);
+            inFlight.release();
+            // a file of the same name dropped meanwhile was ignored
+            seen(name);
+          }
+        }
+      });
+    }
+  }
+
+  /**
+   * Annotate a document and move it to the done or failed directory.
+   */
+  private void annotate(final String name) {
+    final File input = new File(spoolDir, name);
+    final long length = input.length();
+    File target = doneDir;
+    try {
+      annotator.annotate(input, new File(outputDir, name));
+      documents.incrementAndGet();
+      totalDocuments.incrementAndGet();
+      bytes.addAndGet(length);
+    } catch (Exception e) {
+      failures.incrementAndGet();
+      target = failedDir;
+      System.err.println("ERROR: " + input + ": " + e.getMessage());
+    }
+    try {
+      java.nio.file.Files.move(input.toPath(),
+          new File(target, name).toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      System.err.println("ERROR: cannot move " + input + " to " + target + ": "
+          + e.getMessage());
+    }
+  }
+
+  /**
+   * Report the statistics since the last report; the final report covers a
+   * shorter interval, so the rates use the time actually elapsed.
+   */
+  private void report() {
+    final long now = System.currentTimeMillis();
+    final double seconds = Math.max(1, now - lastReport.getAndSet(now))
+        / 1000.0;
+    final long intervalDocuments = documents.getAndSet(0);
+    final long intervalBytes = bytes.getAndSet(0);
+    final long intervalFailures = failures.getAndSet(0);
+    System.err.println(String.format("watch: %d documents (%.2f/s, %.2f MB/s), "
+        + "%d failed in the last %.1fs; %d in flight, %d waiting, %d in total",
+        intervalDocuments, intervalDocuments / seconds,
+        intervalBytes / 1048576.0 / seconds, intervalFailures,
+        seconds, taken.size(), pending.size(), totalDocuments.get()));
+  }
+
+  private static ThreadFactory threadFactory(final String name) {
+    final AtomicLong count = new AtomicLong();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(final Runnable runnable) {
+        final Thread thread = new Thread(runnable, name + "-"
+            + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+}
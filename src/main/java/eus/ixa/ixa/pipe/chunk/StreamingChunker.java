@@ -0,0 +1,323 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import opennlp.tools.util.Span;
+
+/**
+ * Chunks sentences asynchronously, without NAF documents, for applications
+ * embedding ixa-pipe-chunk. Every sentence submitted gets a future with its
+ * chunk spans; a pool of workers, each with its own decoder sharing the
+ * model, takes the sentences waiting in micro-batches of up to batchSize.
+ * At most maxPending sentences wait or are being decoded: further
+ * submissions block until one completes, which is the backpressure of the
+ * producers. {@link #chunk(Stream)} returns the spans of a stream of
+ * sentences lazily and in order.
+ * <p>
+ * The chunker is configured with the annotation properties (model and
+ * language) plus threads (defaults to the number of cores), batchSize
+ * (defaults to 16) and maxPending (defaults to 64 per thread).
+ */
+public class StreamingChunker implements AutoCloseable {
+
+  /**
+   * A tokenized and POS tagged sentence.
+   */
+  public static final class Sentence {
+    private final String[] tokens;
+    private final String[] posTags;
+
+    /**
+     * Construct a sentence.
+     *
+     * @param tokens
+     *          the tokens
+     * @param posTags
+     *          the POS tag of every token
+     */
+    public Sentence(final String[] tokens, final String[] posTags) {
+      if (tokens.length != posTags.length) {
+        throw new IllegalArgumentException("Sentence with " + tokens.length
+            + " tokens and " + posTags.length + " POS tags");
+      }
+      this.tokens = tokens;
+      this.posTags = posTags;
+    }
+
+    public String[] getTokens() {
+      return tokens;
+    }
+
+    public String[] getPosTags() {
+      return posTags;
+    }
+  }
+
+  /**
+   * A sentence waiting to be decoded.
+   */
+  private static final class Task {
+    private final Sentence sentence;
+    private final CompletableFuture<Span[]> result = new CompletableFuture<Span[]>();
+
+    private Task(final Sentence sentence) {
+      this.sentence = sentence;
+    }
+  }
+
+  /**
+   * The sentences waiting.
+   */
+  private final BlockingQueue<Task> queue = new LinkedBlockingQueue<Task>();
+  /**
+   * Permits for sentences waiting or being decoded.
+   */
+  private final Semaphore pending;
+  /**
+   * Maximum number of sentences in a micro-batch.
+   */
+  private final int batchSize;
+  /**
+   * Maximum number of sentences waiting or being decoded.
+   */
+  private final int maxPending;
+  /**
+   * The worker threads.
+   */
+  private final List<Thread> workers = new ArrayList<Thread>();
+  /**
+   * Whether the chunker has been closed.
+   */
+  private volatile boolean closed = false;
+
+  /**
+   * Construct the chunker, load the model and start its workers.
+   *
+   * @param properties
+   *          the properties
+   */
+  public StreamingChunker(final Properties properties) {
+    final int threads = Integer.parseInt(properties.getProperty("threads",
+        Integer.toString(Runtime.getRuntime().availableProcessors())));
+    batchSize = Math.max(1, Integer.parseInt(properties.getProperty(
+        "batchSize", "16")));
+    maxPending = Math.max(1, Integer.parseInt(properties.getProperty(
+        "maxPending", Integer.toString(threads * 64))));
+    pending = new Semaphore(maxPending);
+    for (int i = 0; i < threads; i++) {
+      final ChunkTagger decoder = new ChunkTagger(properties);
+      final Thread worker = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          work(decoder);
+        }
+      }, "ixa-pipe-chunk-stream-" + i);
+      worker.setDaemon(true);
+      workers.add(worker);
+      worker.start();
+    }
+  }
+
+  /**
+   * Submit a sentence, waiting while maxPending sentences are pending.
+   *
+   * @param sentence
+   *          the sentence
+   * @return the future chunk spans, over token indexes
+   * @throws InterruptedIOException
+   *           if interrupted while waiting
+   * @throws IllegalStateException
+   *           if the chunker is closed
+   */
+  public final CompletableFuture<Span[]> submit(final Sentence sentence)
+      throws InterruptedIOException {
+    try {
+      pending.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting to submit");
+    }
+    return enqueue(sentence);
+  }
+
+  /**
+   * Submit a sentence if fewer than maxPending sentences are pending.
+   *
+   * @param sentence
+   *          the sentence
+   * @return the future chunk spans, or null if the chunker is saturated
+   * @throws IllegalStateException
+   *           if the chunker is closed
+   */
+  public final CompletableFuture<Span[]> trySubmit(final Sentence sentence) {
+    if (!pending.tryAcquire()) {
+      return null;
+    }
+    return enqueue(sentence);
+  }
+
+  private CompletableFuture<Span[]> enqueue(final Sentence sentence) {
+    if (closed) {
+      pending.release();
+      throw new IllegalStateException("The chunker is closed");
+    }
+    final Task task = new Task(sentence);
+    queue.add(task);
+    if (closed && queue.remove(task)) {
+      pending.release();
+      throw new IllegalStateException("The chunker is closed");
+    }
+    return task.result;
+  }
+
+  /**
+   * Chunk a stream of sentences. The sentences are submitted as the returned
+   * stream is consumed, keeping up to maxPending of them in flight, and the
+   * spans come out in the order of the sentences.
+   *
+   * @param sentences
+   *          the sentences
+   * @return the chunk spans of every sentence
+   */
+  public final Stream<Span[]> chunk(final Stream<Sentence> sentences) {
+    final Iterator<Sentence> source = sentences.iterator();
+    final Iterator<Span[]> results = new Iterator<Span[]>() {
+      private final Deque<CompletableFuture<Span[]>> window = new ArrayDeque<CompletableFuture<Span[]>>();
+
+      @Override
+      public boolean hasNext() {
+        fill();
+        return !window.isEmpty();
+      }
+
+      @Override
+      public Span[] next() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        return window.poll().join();
+      }
+
+      /**
+       * A sentence taken from the source but not submitted yet.
+       */
+      private Sentence held = null;
+
+      private void fill() {
+        while (window.size() < maxPending && (held != null || source.hasNext())) {
+          if (held == null) {
+            held = source.next();
+          }
+          CompletableFuture<Span[]> result = trySubmit(held);
+          if (result == null) {
+            if (!window.isEmpty()) {
+              // let the oldest sentence complete before asking for more
+              return;
+            }
+            try {
+              result = submit(held);
+            } catch (InterruptedIOException e) {
+              throw new CancellationException(e.getMessage());
+            }
+          }
+          held = null;
+          window.add(result);
+        }
+      }
+    };
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results,
+        Spliterator.ORDERED | Spliterator.NONNULL), false).onClose(
+        new Runnable() {
+          @Override
+          public void run() {
+            sentences.close();
+          }
+        });
+  }
+
+  /**
+   * Get the number of sentences waiting or being decoded.
+   *
+   * @return the number of sentences
+   */
+  public final int pending() {
+    return maxPending - pending.availablePermits();
+  }
+
+  /**
+   * Stop the workers; the sentences still waiting are cancelled.
+   */
+  @Override
+  public final void close() {
+    closed = true;
+    for (final Thread worker : workers) {
+      worker.interrupt();
+    }
+    final List<Task> waiting = new ArrayList<Task>();
+    queue.drainTo(waiting);
+    for (final Task task : waiting) {
+      task.result.cancel(false);
+      pending.release();
+    }
+  }
+
+  private void work(final ChunkTagger decoder) {
+    final List<Task> batch = new ArrayList<Task>(batchSize);
+    try {
+      while (!closed) {
+        try {
+          batch.add(queue.take());
+        } catch (InterruptedException e) {
+          return;
+        }
+        queue.drainTo(batch, batchSize - 1);
+        for (final Task task : batch) {
+          try {
+            task.result.complete(decoder.chunk(task.sentence.getTokens(),
+                task.sentence.getPosTags()));
+          } catch (RuntimeException e) {
+            task.result.completeExceptionally(e);
+          } finally {
+            pending.release();
+          }
+        }
+        batch.clear();
+      }
+    } finally {
+      decoder.close();
+    }
+  }
+
+}
@@ -0,0 +1,300 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.ProtocolFamily;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Access to the Unix domain sockets of Java 16 from code compiled for Java 8,
+ * so that pipeline stages on the same host talk to the {@link ChunkerServer}
+ * without going through the TCP stack. As with {@link VirtualThreads}, the
+ * methods are looked up when the class is loaded and the sockets reported as
+ * not available on older JVMs.
+ * <p>
+ * Connections are returned as {@link Socket}s whose streams read and write
+ * the channel directly, so the server and the clients serve them as any TCP
+ * connection; reads on them do not time out.
+ */
+public final class UnixSockets {
+
+  /**
+   * The UNIX protocol family, or null before Java 16.
+   */
+  private static final ProtocolFamily UNIX = findUnix();
+  /**
+   * UnixDomainSocketAddress.of(String), or null before Java 16.
+   */
+  private static final Method ADDRESS_OF = findMethod(
+      "java.net.UnixDomainSocketAddress", "of", String.class);
+  /**
+   * SocketChannel.open(ProtocolFamily), or null before Java 15.
+   */
+  private static final Method OPEN_CHANNEL = findMethod(
+      "java.nio.channels.SocketChannel", "open", ProtocolFamily.class);
+  /**
+   * ServerSocketChannel.open(ProtocolFamily), or null before Java 15.
+   */
+  private static final Method OPEN_SERVER_CHANNEL = findMethod(
+      "java.nio.channels.ServerSocketChannel", "open", ProtocolFamily.class);
+
+  private UnixSockets() {
+  }
+
+  private static ProtocolFamily findUnix() {
+    try {
+      return StandardProtocolFamily.valueOf("UNIX");
+    } catch (IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static Method findMethod(final String className, final String name,
+      final Class<?> parameter) {
+    try {
+      return Class.forName(className).getMethod(name, parameter);
+    } catch (ClassNotFoundException | NoSuchMethodException
+        | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Whether the JVM has Unix domain sockets.
+   *
+   * @return true on Java 16 or later
+   */
+  public static boolean isAvailable() {
+    return UNIX != null && ADDRESS_OF != null && OPEN_CHANNEL != null
+        && OPEN_SERVER_CHANNEL != null;
+  }
+
+  /**
+   * Listen on a socket file. A file left behind by a server which is no
+   * longer running is replaced.
+   *
+   * @param path
+   *          the socket file
+   * @return the server channel
+   * @throws IOException
+   *           if another server listens on the file or it cannot be bound
+   */
+  public static ServerSocketChannel bind(final String path) throws IOException {
+    final File file = new File(path);
+    if (file.exists()) {
+      boolean listening;
+      try (Socket socket = connect(path)) {
+        listening = true;
+      } catch (IOException e) {
+        listening = false;
+      }
+      if (listening) {
+        throw new IOException("A server is already listening on " + path);
+      }
+      if (!file.delete()) {
+        throw new IOException("Cannot remove the stale socket " + path);
+      }
+    }
+    final ServerSocketChannel server = (ServerSocketChannel) invoke(
+        OPEN_SERVER_CHANNEL, UNIX);
+    try {
+      server.bind(address(path));
+    } catch (IOException e) {
+      server.close();
+      throw e;
+    }
+    return server;
+  }
+
+  /**
+   * Accept a connection.
+   *
+   * @param server
+   *          the server channel
+   * @return the connection
+   * @throws IOException
+   *           if io error
+   */
+  public static Socket accept(final ServerSocketChannel server)
+      throws IOException {
+    return new ChannelSocket(server.accept());
+  }
+
+  /**
+   * Connect to a socket file.
+   *
+   * @param path
+   *          the socket file
+   * @return the connection
+   * @throws IOException
+   *           if nothing listens on the file
+   */
+  public static Socket connect(final String path) throws IOException {
+    final SocketChannel channel = (SocketChannel) invoke(OPEN_CHANNEL, UNIX);
+    try {
+      channel.connect(address(path));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+    return new ChannelSocket(channel);
+  }
+
+  private static SocketAddress address(final String path) throws IOException {
+    return (SocketAddress) invoke(ADDRESS_OF, path);
+  }
+
+  private static Object invoke(final Method method, final Object argument)
+      throws IOException {
+    if (!isAvailable()) {
+      throw new UnsupportedOperationException(
+          "Unix domain sockets require Java 16 or later");
+    }
+    try {
+      return method.invoke(null, argument);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * A connection over a socket channel, seen as a {@link Socket}. The reader
+   * and the writer of a pipelined connection use the channel concurrently,
+   * so the streams do not lock it.
+   */
+  private static final class ChannelSocket extends Socket {
+    private final SocketChannel channel;
+    private final InputStream in;
+    private final OutputStream out;
+    private int soTimeout = 0;
+
+    private ChannelSocket(final SocketChannel channel) {
+      this.channel = channel;
+      this.in = new InputStream() {
+        @Override
+        public int read() throws IOException {
+          final byte[] b = new byte[1];
+          return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len)
+            throws IOException {
+          if (len == 0) {
+            return 0;
+          }
+          return channel.read(ByteBuffer.wrap(b, off, len));
+        }
+
+        @Override
+        public void close() throws IOException {
+          ChannelSocket.this.close();
+        }
+      };
+      this.out = new OutputStream() {
+        @Override
+        public void write(final int b) throws IOException {
+          write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+            throws IOException {
+          final ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+
+        @Override
+        public void close() throws IOException {
+          ChannelSocket.this.close();
+        }
+      };
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+      return in;
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+      return out;
+    }
+
+    @Override
+    public boolean isConnected() {
+      return channel.isConnected();
+    }
+
+    @Override
+    public boolean isClosed() {
+      return !channel.isOpen();
+    }
+
+    @Override
+    public void shutdownInput() throws IOException {
+      channel.shutdownInput();
+    }
+
+    @Override
+    public void shutdownOutput() throws IOException {
+      channel.shutdownOutput();
+    }
+
+    /**
+     * The timeout is recorded but reads on the channel do not time out.
+     */
+    @Override
+    public synchronized void setSoTimeout(final int timeout) {
+      soTimeout = timeout;
+    }
+
+    @Override
+    public synchronized int getSoTimeout() {
+      return soTimeout;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      channel.close();
+    }
+
+    @Override
+    public String toString() {
+      return "UnixSocket[" + channel + "]";
+    }
+  }
+
+}
@@ -0,0 +1,78 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to the virtual threads of Java 21 from code compiled for Java 8. The
+ * executor is looked up when the class is loaded, so the same jar runs a
+ * virtual thread per task on Java 21 or later and reports them as not
+ * available on older JVMs, where the callers keep their platform threads.
+ */
+public final class VirtualThreads {
+
+  /**
+   * Executors.newVirtualThreadPerTaskExecutor, or null before Java 21.
+   */
+  private static final Method NEW_EXECUTOR = findNewExecutor();
+
+  private VirtualThreads() {
+  }
+
+  private static Method findNewExecutor() {
+    try {
+      return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+    } catch (NoSuchMethodException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Whether the JVM has virtual threads.
+   *
+   * @return true on Java 21 or later
+   */
+  public static boolean isAvailable() {
+    return NEW_EXECUTOR != null;
+  }
+
+  /**
+   * Create an executor starting a new virtual thread for every task.
+   *
+   * @return the executor
+   * @throws UnsupportedOperationException
+   *           if the JVM has no virtual threads
+   */
+  public static ExecutorService newPerTaskExecutor() {
+    if (NEW_EXECUTOR == null) {
+      throw new UnsupportedOperationException(
+          "Virtual threads require Java 21 or later");
+    }
+    try {
+      return (ExecutorService) NEW_EXECUTOR.invoke(null);
+    } catch (IllegalAccessException e) {
+      throw new IllegalStateException(e);
+    } catch (InvocationTargetException e) {
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+}
@@ -0,0 +1,515 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk.bench;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Random;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+/**
+ * Generator of synthetic corpora for load and scaling tests. Sentences are
+ * built from noun, verb, prepositional and adverbial phrases whose open class
+ * words are pseudo-words drawn with a Zipf distribution from a vocabulary of
+ * a given size, so the documents have realistic POS tags and chunks but no
+ * real text. The output is NAF, with text and terms layers with the POS tags
+ * in morphofeat, or CoNLL 2000.
+ * <p>
+ * The generator is configured with seed (defaults to 42), vocabulary (number
+ * of open class words, defaults to 10000), sentenceLength (fixed:N,
+ * uniform:MIN:MAX or lognormal:MEAN:SD tokens, defaults to lognormal:22:10),
+ * documentSize (bytes, with an optional KB, MB or GB suffix, defaults to
+ * 100KB) and language. Every document is a function of the seed and its
+ * number only, and is written as it is generated, so documents of any size
+ * take little memory: NAF documents are generated twice, once for the text
+ * layer and once for the terms layer.
+ */
+public class CorpusGenerator {
+
+  private static final String[] DETERMINERS = { "the", "a", "an", "this",
+      "every", "some", "no", "that" };
+  private static final String[] PREPOSITIONS = { "of", "in", "on", "for",
+      "with", "at", "by", "from", "into", "about" };
+  private static final String[] MODALS = { "will", "can", "may", "would",
+      "should", "must" };
+  private static final String[] CONJUNCTIONS = { "and", "but", "or" };
+  private static final String[] PRONOUNS = { "it", "he", "she", "they", "we",
+      "you" };
+  private static final String[] SYLLABLES = buildSyllables();
+
+  /**
+   * The open word classes and their share of the vocabulary.
+   */
+  private static final int NOUN = 0;
+  private static final int VERB = 1;
+  private static final int ADJECTIVE = 2;
+  private static final int PROPER = 3;
+  private static final int ADVERB = 4;
+  private static final double[] CLASS_SHARES = { 0.5, 0.2, 0.15, 0.1, 0.05 };
+
+  /**
+   * A sentence being generated, reused for every sentence.
+   */
+  private static final class Sentence {
+    private final List<String> tokens = new ArrayList<String>();
+    private final List<String> lemmas = new ArrayList<String>();
+    private final List<String> posTags = new ArrayList<String>();
+    private final List<String> chunkTags = new ArrayList<String>();
+
+    private void clear() {
+      tokens.clear();
+      lemmas.clear();
+      posTags.clear();
+      chunkTags.clear();
+    }
+
+    private void add(final String token, final String lemma,
+        final String posTag, final String chunkTag) {
+      tokens.add(token);
+      lemmas.add(lemma);
+      posTags.add(posTag);
+      chunkTags.add(chunkTag);
+    }
+
+    private int size() {
+      return tokens.size();
+    }
+  }
+
+  private final long seed;
+  private final String language;
+  private final long documentSize;
+  /**
+   * The sentence length distribution and its parameters.
+   */
+  private final String lengthDistribution;
+  private final double lengthA;
+  private final double lengthB;
+  /**
+   * The cumulative Zipf distribution of every open word class.
+   */
+  private final double[][] zipf = new double[CLASS_SHARES.length][];
+
+  /**
+   * Construct a generator.
+   *
+   * @param properties
+   *          the properties
+   */
+  public CorpusGenerator(final Properties properties) {
+    seed = Long.parseLong(properties.getProperty("seed", "42"));
+    language = properties.getProperty("language", "en");
+    documentSize = parseSize(properties.getProperty("documentSize", "100KB"));
+    final String[] length = properties.getProperty("sentenceLength",
+        "lognormal:22:10").split(":");
+    lengthDistribution = length[0].toLowerCase(Locale.ROOT);
+    if (lengthDistribution.equals("fixed") && length.length == 2) {
+      lengthA = Double.parseDouble(length[1]);
+      lengthB = lengthA;
+    } else if ((lengthDistribution.equals("uniform") || lengthDistribution
+        .equals("lognormal")) && length.length == 3) {
+      lengthA = Double.parseDouble(length[1]);
+      lengthB = Double.parseDouble(length[2]);
+    } else {
+      throw new IllegalArgumentException("Unknown sentence length distribution "
+          + properties.getProperty("sentenceLength"));
+    }
+    final int vocabulary = Integer.parseInt(properties.getProperty(
+        "vocabulary", "10000"));
+    for (int c = 0; c < CLASS_SHARES.length; c++) {
+      final int size = Math.max(1, (int) (vocabulary * CLASS_SHARES[c]));
+      final double[] cumulative = new double[size];
+      double sum = 0;
+      for (int i = 0; i < size; i++) {
+        sum += 1.0 / (i + 1);
+        cumulative[i] = sum;
+      }
+      for (int i = 0; i < size; i++) {
+        cumulative[i] /= sum;
+      }
+      zipf[c] = cumulative;
+    }
+  }
+
+  /**
+   * Parse a size such as 512, 64KB, 10MB or 1GB.
+   *
+   * @param size
+   *          the size
+   * @return the bytes
+   */
+  public static long parseSize(final String size) {
+    final String value = size.trim().toUpperCase(Locale.ROOT);
+    long unit = 1;
+    String number = value;
+    if (value.endsWith("KB")) {
+      unit = 1L << 10;
+    } else if (value.endsWith("MB")) {
+      unit = 1L << 20;
+    } else if (value.endsWith("GB")) {
+      unit = 1L << 30;
+    }
+    if (unit > 1) {
+      number = value.substring(0, value.length() - 2).trim();
+    }
+    return (long) (Double.parseDouble(number) * unit);
+  }
+
+  /**
+   * Generate documents into a directory.
+   *
+   * @param outputDir
+   *          the directory, created if needed
+   * @param documents
+   *          the number of documents
+   * @param format
+   *          naf or conll
+   * @throws IOException
+   *           if the documents cannot be written
+   */
+  public final void generate(final File outputDir, final int documents,
+      final String format) throws IOException {
+    if (!outputDir.isDirectory() && !outputDir.mkdirs()) {
+      throw new IOException("Cannot create " + outputDir + " directory");
+    }
+    final boolean conll = format.equalsIgnoreCase("conll");
+    for (int doc = 0; doc < documents; doc++) {
+      final File file = new File(outputDir, String.format("doc%05d.%s", doc,
+          conll ? "conll" : "naf"));
+      try (BufferedWriter writer = Files.newWriter(file, Charsets.UTF_8)) {
+        if (conll) {
+          writeCoNLL(doc, writer);
+        } else {
+          writeNAF(doc, writer);
+        }
+      }
+    }
+    System.err.println("Generated " + documents + " " + format
+        + " documents of " + documentSize + " bytes into " + outputDir);
+  }
+
+  /**
+   * Write a document in CoNLL 2000 format, one token per line and a blank
+   * line after every sentence.
+   *
+   * @param doc
+   *          the document number
+   * @param writer
+   *          the writer
+   * @throws IOException
+   *           if the document cannot be written
+   */
+  public final void writeCoNLL(final int doc, final Writer writer)
+      throws IOException {
+    final Random random = newRandom(doc);
+    final Sentence sentence = new Sentence();
+    final StringBuilder sb = new StringBuilder();
+    long bytes = 0;
+    do {
+      nextSentence(random, sentence);
+      sb.setLength(0);
+      for (int i = 0; i < sentence.size(); i++) {
+        sb.append(sentence.tokens.get(i)).append(' ')
+            .append(sentence.posTags.get(i)).append(' ')
+            .append(sentence.chunkTags.get(i)).append('\n');
+      }
+      sb.append('\n');
+      writer.append(sb);
+      bytes += sb.length();
+    } while (bytes < documentSize);
+  }
+
+  /**
+   * Write a document in NAF format with text and terms layers.
+   *
+   * @param doc
+   *          the document number
+   * @param writer
+   *          the writer
+   * @throws IOException
+   *           if the document cannot be written
+   */
+  public final void writeNAF(final int doc, final Writer writer)
+      throws IOException {
+    final String header = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<NAF xml:lang=\"" + escape(language) + "\" version=\"v3\">\n"
+        + "  <nafHeader />\n  <text>\n";
+    final String middle = "  </text>\n  <terms>\n";
+    final String footer = "  </terms>\n</NAF>\n";
+    final Sentence sentence = new Sentence();
+    final StringBuilder sb = new StringBuilder();
+    writer.write(header);
+    // the text layer, counting the bytes of both layers to size the document
+    Random random = newRandom(doc);
+    long bytes = header.length() + middle.length() + footer.length();
+    int sentences = 0;
+    int offset = 0;
+    int token = 0;
+    do {
+      nextSentence(random, sentence);
+      sentences++;
+      sb.setLength(0);
+      for (int i = 0; i < sentence.size(); i++) {
+        final String word = sentence.tokens.get(i);
+        token++;
+        sb.append("    <wf id=\"w").append(token).append("\" offset=\"")
+            .append(offset).append("\" length=\"").append(word.length())
+            .append("\" sent=\"").append(sentences)
+            .append("\" para=\"1\">").append(escape(word)).append("</wf>\n");
+        offset += word.length() + 1;
+      }
+      writer.append(sb);
+      bytes += sb.length() + termsLength(sentence, token - sentence.size(), sb);
+    } while (bytes < documentSize);
+    writer.write(middle);
+    // the terms layer of the same sentences
+    random = newRandom(doc);
+    token = 0;
+    for (int s = 0; s < sentences; s++) {
+      nextSentence(random, sentence);
+      appendTerms(sentence, token, sb);
+      token += sentence.size();
+      writer.append(sb);
+    }
+    writer.write(footer);
+  }
+
+  private static int termsLength(final Sentence sentence, final int firstToken,
+      final StringBuilder sb) {
+    appendTerms(sentence, firstToken, sb);
+    return sb.length();
+  }
+
+  private static void appendTerms(final Sentence sentence,
+      final int firstToken, final StringBuilder sb) {
+    sb.setLength(0);
+    for (int i = 0; i < sentence.size(); i++) {
+      final int id = firstToken + i + 1;
+      final String posTag = sentence.posTags.get(i);
+      final String pos = nafPos(posTag);
+      sb.append("    <term id=\"t").append(id).append("\" type=\"")
+          .append(pos.equals("N") || pos.equals("R") || pos.equals("V")
+              || pos.equals("G") || pos.equals("A") ? "open" : "close")
+          .append("\" lemma=\"").append(escape(sentence.lemmas.get(i)))
+          .append("\" pos=\"").append(pos).append("\" morphofeat=\"")
+          .append(escape(posTag)).append("\">\n      <span>\n")
+          .append("        <target id=\"w").append(id)
+          .append("\" />\n      </span>\n    </term>\n");
+    }
+  }
+
+  /**
+   * Map a Penn Treebank tag to the NAF part of speech.
+   */
+  private static String nafPos(final String posTag) {
+    if (posTag.startsWith("NNP")) {
+      return "R";
+    } else if (posTag.startsWith("NN")) {
+      return "N";
+    } else if (posTag.startsWith("VB") || posTag.equals("MD")) {
+      return "V";
+    } else if (posTag.startsWith("JJ")) {
+      return "G";
+    } else if (posTag.startsWith("RB")) {
+      return "A";
+    } else if (posTag.equals("IN")) {
+      return "P";
+    } else if (posTag.equals("DT")) {
+      return "D";
+    } else if (posTag.equals("CC")) {
+      return "C";
+    } else if (posTag.startsWith("PRP")) {
+      return "Q";
+    }
+    return "O";
+  }
+
+  private Random newRandom(final int doc) {
+    return new Random(seed + 0x9E3779B97F4A7C15L * (doc + 1));
+  }
+
+  /**
+   * Generate the next sentence: a clause, noun phrase and verb phrase,
+   * followed by complements until the sampled length is reached.
+   */
+  private void nextSentence(final Random random, final Sentence sentence) {
+    sentence.clear();
+    final int target = sampleLength(random);
+    clause(random, sentence);
+    while (sentence.size() < target - 1) {
+      final double r = random.nextDouble();
+      if (r < 0.4) {
+        nounPhrase(random, sentence);
+      } else if (r < 0.75) {
+        sentence.add(pick(random, PREPOSITIONS), null, "IN", "B-PP");
+        nounPhrase(random, sentence);
+      } else if (r < 0.85) {
+        final String[] adverb = word(random, ADVERB);
+        sentence.add(adverb[0], adverb[1], "RB", "B-ADVP");
+      } else {
+        if (random.nextBoolean()) {
+          sentence.add(",", null, ",", "O");
+        } else {
+          sentence.add(pick(random, CONJUNCTIONS), null, "CC", "O");
+        }
+        clause(random, sentence);
+      }
+    }
+    sentence.add(".", null, ".", "O");
+    // closed class words are their own lemmas
+    for (int i = 0; i < sentence.size(); i++) {
+      if (sentence.lemmas.get(i) == null) {
+        sentence.lemmas.set(i, sentence.tokens.get(i));
+      }
+    }
+  }
+
+  private int sampleLength(final Random random) {
+    final double length;
+    if (lengthDistribution.equals("uniform")) {
+      length = lengthA
+          + random.nextInt(Math.max(1, (int) (lengthB - lengthA) + 1));
+    } else if (lengthDistribution.equals("lognormal")) {
+      // lengthA and lengthB are the mean and deviation of the length
+      final double sigma2 = Math.log(1 + (lengthB * lengthB)
+          / (lengthA * lengthA));
+      final double mu = Math.log(lengthA) - sigma2 / 2;
+      length = Math.exp(mu + Math.sqrt(sigma2) * random.nextGaussian());
+    } else {
+      length = lengthA;
+    }
+    return Math.max(3, (int) Math.round(length));
+  }
+
+  private void clause(final Random random, final Sentence sentence) {
+    if (random.nextDouble() < 0.15) {
+      sentence.add(pick(random, PRONOUNS), null, "PRP", "B-NP");
+    } else {
+      nounPhrase(random, sentence);
+    }
+    final String[] verb = word(random, VERB);
+    final double r = random.nextDouble();
+    if (r < 0.35) {
+      sentence.add(verb[0] + "ed", verb[1], "VBD", "B-VP");
+    } else if (r < 0.65) {
+      sentence.add(verb[0] + "s", verb[1], "VBZ", "B-VP");
+    } else if (r < 0.85) {
+      sentence.add(pick(random, MODALS), null, "MD", "B-VP");
+      sentence.add(verb[0], verb[1], "VB", "I-VP");
+    } else {
+      sentence.add("is", "be", "VBZ", "B-VP");
+      sentence.add(verb[0] + "ing", verb[1], "VBG", "I-VP");
+    }
+  }
+
+  private void nounPhrase(final Random random, final Sentence sentence) {
+    String chunkTag = "B-NP";
+    if (random.nextDouble() < 0.2) {
+      final String[] proper = word(random, PROPER);
+      sentence.add(proper[0], proper[1], "NNP", chunkTag);
+      return;
+    }
+    if (random.nextDouble() < 0.7) {
+      sentence.add(pick(random, DETERMINERS), null, "DT", chunkTag);
+      chunkTag = "I-NP";
+    }
+    final int adjectives = random.nextDouble() < 0.35 ? 1 + random.nextInt(2)
+        : 0;
+    for (int i = 0; i < adjectives; i++) {
+      final String[] adjective = word(random, ADJECTIVE);
+      sentence.add(adjective[0], adjective[1], "JJ", chunkTag);
+      chunkTag = "I-NP";
+    }
+    final String[] noun = word(random, NOUN);
+    if (random.nextDouble() < 0.3) {
+      sentence.add(noun[0] + "s", noun[1], "NNS", chunkTag);
+    } else {
+      sentence.add(noun[0], noun[1], "NN", chunkTag);
+    }
+  }
+
+  /**
+   * Draw an open class word.
+   *
+   * @return the word and its lemma
+   */
+  private String[] word(final Random random, final int wordClass) {
+    final double[] cumulative = zipf[wordClass];
+    int index = Arrays.binarySearch(cumulative, random.nextDouble());
+    if (index < 0) {
+      index = Math.min(-index - 1, cumulative.length - 1);
+    }
+    // every class gets its own range of pseudo-words
+    final String stem = pseudoWord(index * CLASS_SHARES.length + wordClass);
+    if (wordClass == PROPER) {
+      final String proper = Character.toUpperCase(stem.charAt(0))
+          + stem.substring(1);
+      return new String[] { proper, proper };
+    } else if (wordClass == ADVERB) {
+      return new String[] { stem + "ly", stem + "ly" };
+    }
+    return new String[] { stem, stem };
+  }
+
+  private static String pseudoWord(final int index) {
+    final StringBuilder sb = new StringBuilder();
+    int n = index;
+    do {
+      sb.append(SYLLABLES[n % SYLLABLES.length]);
+      n /= SYLLABLES.length;
+    } while (n > 0);
+    if (sb.length() < 4) {
+      sb.append(SYLLABLES[index % 7]);
+    }
+    return sb.toString();
+  }
+
+  private static String[] buildSyllables() {
+    final String consonants = "bcdfgklmnprstvz";
+    final String vowels = "aeiou";
+    final String[] syllables = new String[consonants.length() * vowels.length()];
+    int i = 0;
+    for (final char consonant : consonants.toCharArray()) {
+      for (final char vowel : vowels.toCharArray()) {
+        syllables[i++] = "" + consonant + vowel;
+      }
+    }
+    return syllables;
+  }
+
+  private static String pick(final Random random, final String[] words) {
+    return words[random.nextInt(words.length)];
+  }
+
+  private static String escape(final String text) {
+    if (text.indexOf('&') < 0 && text.indexOf('<') < 0
+        && text.indexOf('>') < 0 && text.indexOf('"') < 0) {
+      return text;
+    }
+    return text.replace("&", "&amp;").replace("<", "&lt;")
+        .replace(">", "&gt;").replace("\"", "&quot;");
+  }
+
+}
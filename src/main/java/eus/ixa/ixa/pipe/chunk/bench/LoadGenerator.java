@@ -0,0 +1,357 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk.bench;
+
+import ixa.kaflib.KAFDocument;
+import ixa.kaflib.Term;
+import ixa.kaflib.WF;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+import opennlp.tools.chunker.ChunkSample;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.Files;
+
+import eus.ixa.ixa.pipe.chunk.ChunkerClient;
+import eus.ixa.ixa.pipe.chunk.LatencyHistogram;
+import eus.ixa.ixa.pipe.chunk.ServerBusyException;
+import eus.ixa.ixa.pipe.chunk.train.InputOutputUtils;
+
+/**
+ * Load generator for the {@link eus.ixa.ixa.pipe.chunk.ChunkerServer}. It
+ * replays a set of documents either in closed loop, with a fixed number of
+ * concurrent clients each sending a document as soon as the previous one is
+ * answered, or in open loop, sending documents at a fixed rate regardless of
+ * the responses.
+ * <p>
+ * In open loop every latency is measured from the time the document should
+ * have been sent, so that the latencies are not hidden by a slow server
+ * delaying the sending of the next documents (coordinated omission). In closed
+ * loop the same correction is applied if an expected interval between
+ * requests is given.
+ */
+public class LoadGenerator {
+
+  /**
+   * The documents to replay.
+   */
+  private final List<String> documents;
+  /**
+   * The client properties.
+   */
+  private final Properties clientProperties;
+  /**
+   * The latencies corrected for coordinated omission.
+   */
+  private final LatencyHistogram corrected = new LatencyHistogram();
+  /**
+   * The latencies from the actual sending time.
+   */
+  private final LatencyHistogram uncorrected = new LatencyHistogram();
+  /**
+   * The number of failed documents.
+   */
+  private final AtomicLong errors = new AtomicLong();
+  /**
+   * The number of documents not answered in time.
+   */
+  private final AtomicLong timeouts = new AtomicLong();
+  /**
+   * The number of documents rejected by an overloaded server.
+   */
+  private final AtomicLong busy = new AtomicLong();
+  /**
+   * Whether the results are being recorded, false during the warm up.
+   */
+  private volatile boolean recording = false;
+
+  /**
+   * Construct a load generator.
+   *
+   * @param documents
+   *          the NAF documents to replay
+   * @param clientProperties
+   *          the properties of the {@link ChunkerClient}
+   */
+  public LoadGenerator(final List<String> documents,
+      final Properties clientProperties) {
+    if (documents.isEmpty()) {
+      throw new IllegalArgumentException("No documents to send!");
+    }
+    this.documents = documents;
+    this.clientProperties = clientProperties;
+  }
+
+  /**
+   * Run in closed loop.
+   *
+   * @param concurrency
+   *          the number of concurrent clients
+   * @param warmupSeconds
+   *          seconds run before recording
+   * @param durationSeconds
+   *          seconds recorded
+   * @param expectedIntervalMillis
+   *          expected interval between the requests of every client to
+   *          correct for coordinated omission, or 0 for no correction
+   * @return the report
+   * @throws InterruptedException
+   *           if interrupted
+   */
+  public final String runClosedLoop(final int concurrency,
+      final int warmupSeconds, final int durationSeconds,
+      final long expectedIntervalMillis) throws InterruptedException {
+    final Properties properties = new Properties();
+    properties.putAll(clientProperties);
+    properties.setProperty("connections", Integer.toString(concurrency));
+    properties.setProperty("pipelineDepth", "1");
+    final long expectedIntervalMicros = expectedIntervalMillis * 1000;
+    final long warmupEnd = System.nanoTime()
+        + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    final long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+    try (final ChunkerClient client = new ChunkerClient(properties)) {
+      final List<Thread> workers = new ArrayList<Thread>();
+      for (int i = 0; i < concurrency; i++) {
+        final int offset = i;
+        final Thread worker = new Thread(new Runnable() {
+          @Override
+          public void run() {
+            int next = offset;
+            long now;
+            while ((now = System.nanoTime()) < end) {
+              final String document = documents.get(next++ % documents.size());
+              final boolean record = now >= warmupEnd;
+              try {
+                client.annotate(document);
+                final long latency = (System.nanoTime() - now) / 1000;
+                if (record) {
+                  corrected.recordWithExpectedInterval(latency,
+                      expectedIntervalMicros);
+                  uncorrected.record(latency);
+                }
+              } catch (IOException e) {
+                if (record) {
+                  countError(e instanceof ServerBusyException ? e : e
+                      .getCause());
+                }
+              }
+            }
+          }
+        }, "ixa-pipe-chunk-bench-" + i);
+        workers.add(worker);
+        worker.start();
+      }
+      for (final Thread worker : workers) {
+        worker.join();
+      }
+    }
+    final String mode = "closed loop, " + concurrency + " concurrent clients"
+        + (expectedIntervalMillis > 0 ? ", corrected for an expected interval of "
+            + expectedIntervalMillis + " ms" : "");
+    return report(mode, end - warmupEnd, expectedIntervalMillis > 0);
+  }
+
+  /**
+   * Run in open loop.
+   *
+   * @param rate
+   *          documents sent per second
+   * @param warmupSeconds
+   *          seconds run before recording
+   * @param durationSeconds
+   *          seconds recorded
+   * @return the report
+   * @throws InterruptedException
+   *           if interrupted
+   */
+  public final String runOpenLoop(final double rate, final int warmupSeconds,
+      final int durationSeconds) throws InterruptedException {
+    final long intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+    final List<CompletableFuture<String>> pending = new ArrayList<CompletableFuture<String>>();
+    final long start = System.nanoTime();
+    final long warmupEnd = start + TimeUnit.SECONDS.toNanos(warmupSeconds);
+    final long end = warmupEnd + TimeUnit.SECONDS.toNanos(durationSeconds);
+    try (final ChunkerClient client = new ChunkerClient(clientProperties)) {
+      for (long i = 0;; i++) {
+        final long intended = start + i * intervalNanos;
+        if (intended >= end) {
+          break;
+        }
+        long wait;
+        while ((wait = intended - System.nanoTime()) > 0) {
+          LockSupport.parkNanos(wait);
+        }
+        final long sent = System.nanoTime();
+        final boolean record = intended >= warmupEnd;
+        final CompletableFuture<String> future = client.submit(documents
+            .get((int) (i % documents.size())));
+        future.whenComplete(new BiConsumer<String, Throwable>() {
+          @Override
+          public void accept(final String result, final Throwable error) {
+            if (!record) {
+              return;
+            }
+            if (error != null) {
+              countError(error);
+            } else {
+              final long now = System.nanoTime();
+              corrected.record((now - intended) / 1000);
+              uncorrected.record((now - sent) / 1000);
+            }
+          }
+        });
+        if (record) {
+          pending.add(future);
+        }
+      }
+      // wait for the last documents, bounded by the client timeout
+      for (final CompletableFuture<String> future : pending) {
+        try {
+          future.get();
+        } catch (final Exception e) {
+          // already counted
+        }
+      }
+    }
+    return report("open loop, " + rate + " documents per second", end
+        - warmupEnd, true);
+  }
+
+  private void countError(final Throwable error) {
+    errors.incrementAndGet();
+    if (error instanceof TimeoutException) {
+      timeouts.incrementAndGet();
+    } else if (error instanceof ServerBusyException) {
+      busy.incrementAndGet();
+    }
+  }
+
+  /**
+   * Format the results.
+   */
+  private String report(final String mode, final long durationNanos,
+      final boolean showCorrected) {
+    final long completed = uncorrected.getTotalCount();
+    final double seconds = durationNanos / 1e9;
+    final StringBuilder sb = new StringBuilder();
+    sb.append("Mode: ").append(mode).append("\n");
+    sb.append(String.format("Duration: %.1f s%n", seconds));
+    sb.append(String.format(
+        "Documents: %d completed, %d errors (%d timeouts, %d busy)%n",
+        completed, errors.get(), timeouts.get(), busy.get()));
+    sb.append(String.format("Throughput: %.2f documents/s%n", completed
+        / seconds));
+    sb.append(String.format("%-22s%10s%10s%10s%10s%10s%n", "Latency (ms)",
+        "p50", "p90", "p99", "p99.9", "max"));
+    if (showCorrected) {
+      appendLatencies(sb, "corrected", corrected);
+    }
+    appendLatencies(sb, showCorrected ? "uncorrected" : "measured",
+        uncorrected);
+    return sb.toString();
+  }
+
+  private static void appendLatencies(final StringBuilder sb,
+      final String name, final LatencyHistogram histogram) {
+    sb.append(String.format("%-22s%10.2f%10.2f%10.2f%10.2f%10.2f%n", name,
+        histogram.getValueAtPercentile(50) / 1000.0,
+        histogram.getValueAtPercentile(90) / 1000.0,
+        histogram.getValueAtPercentile(99) / 1000.0,
+        histogram.getValueAtPercentile(99.9) / 1000.0,
+        histogram.getMaxValue() / 1000.0));
+  }
+
+  /**
+   * Read every document of a directory as NAF. CoNLL 2000 files are converted
+   * to NAF with the tokens and POS tags in the text and terms layers.
+   *
+   * @param inputDir
+   *          the directory
+   * @param inputFormat
+   *          naf or conll
+   * @param lang
+   *          the language of the documents converted from CoNLL
+   * @return the NAF documents
+   * @throws IOException
+   *           if the documents cannot be read
+   */
+  public static List<String> readDocuments(final File inputDir,
+      final String inputFormat, final String lang) throws IOException {
+    final File[] files = inputDir.listFiles();
+    if (files == null) {
+      throw new IOException(inputDir + " is not a directory!");
+    }
+    Arrays.sort(files);
+    final List<String> documents = new ArrayList<String>();
+    for (final File file : files) {
+      if (!file.isFile()) {
+        continue;
+      }
+      if (inputFormat.equalsIgnoreCase("conll")) {
+        documents.add(conllToNAF(
+            InputOutputUtils.readChunkSamples(file.getPath()), lang));
+      } else {
+        documents.add(Files.toString(file, Charsets.UTF_8));
+      }
+    }
+    return documents;
+  }
+
+  /**
+   * Convert CoNLL 2000 samples to a NAF document with text and terms layers.
+   *
+   * @param samples
+   *          the samples, one per sentence
+   * @param lang
+   *          the language
+   * @return the NAF document
+   */
+  public static String conllToNAF(final List<ChunkSample> samples,
+      final String lang) {
+    final KAFDocument kaf = new KAFDocument(lang, "v3");
+    int offset = 0;
+    int sent = 1;
+    for (final ChunkSample sample : samples) {
+      final String[] tokens = sample.getSentence();
+      final String[] posTags = sample.getTags();
+      for (int i = 0; i < tokens.length; i++) {
+        final WF wf = kaf.newWF(offset, tokens[i], sent);
+        final Term term = kaf.newTerm(KAFDocument.newWFSpan(Collections
+            .singletonList(wf)));
+        term.setType("open");
+        term.setLemma(tokens[i]);
+        term.setMorphofeat(posTags[i]);
+        offset += tokens[i].length() + 1;
+      }
+      sent++;
+    }
+    return kaf.toString();
+  }
+
+}
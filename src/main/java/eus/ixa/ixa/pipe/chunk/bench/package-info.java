@@ -0,0 +1,5 @@
+/**
+ * Package containing the load generation and benchmarking tools of
+ * ixa-pipe-chunk.
+ */
+package eus.ixa.ixa.pipe.chunk.bench;
@@ -32,6 +32,7 @@ import opennlp.tools.cmdline.chunker.ChunkEvaluationErrorListener;
 import opennlp.tools.cmdline.chunker.ChunkerDetailedFMeasureListener;
 import opennlp.tools.util.ObjectStream;
 import opennlp.tools.util.eval.EvaluationMonitor;
+import opennlp.tools.util.eval.FMeasure;
 import eus.ixa.ixa.pipe.chunk.train.InputOutputUtils;
 
 /**
@@ -90,15 +91,39 @@ public class Evaluate {
     chunkerTagger = new ChunkerME(chunkerModel);
   }
 
+  /**
+   * Construct an evaluator for a model already in memory.
+   *
+   * @param testData
+   *          the reference data to evaluate against
+   * @param model
+   *          the model to be evaluated
+   */
+  public Evaluate(final String testData, final ChunkerModel model) {
+    ObjectStream<String> testStream = InputOutputUtils.readFileIntoMarkableStreamFactory(testData);
+    testSamples = new ChunkSampleStream(testStream);
+    chunkerTagger = new ChunkerME(model);
+  }
+
   /**
    * Evaluate and print precision, recall and F measure.
    * @throws IOException
    *           if test corpus not loaded
    */
   public final void evaluate() throws IOException {
+    System.out.println(getFMeasure());
+  }
+
+  /**
+   * Evaluate and return precision, recall and F measure.
+   * @return the F measure
+   * @throws IOException
+   *           if test corpus not loaded
+   */
+  public final FMeasure getFMeasure() throws IOException {
     ChunkerEvaluator evaluator = new ChunkerEvaluator(chunkerTagger);
     evaluator.evaluate(testSamples);
-    System.out.println(evaluator.getFMeasure());
+    return evaluator.getFMeasure();
   }
 
   /**
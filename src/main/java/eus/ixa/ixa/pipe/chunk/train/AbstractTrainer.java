@@ -1,6 +1,10 @@
 package eus.ixa.ixa.pipe.chunk.train;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 
 import opennlp.tools.chunker.ChunkSample;
 import opennlp.tools.chunker.ChunkSampleStream;
@@ -8,9 +12,13 @@ import opennlp.tools.chunker.Chunker;
 import opennlp.tools.chunker.ChunkerEvaluator;
 import opennlp.tools.chunker.ChunkerFactory;
 import opennlp.tools.chunker.ChunkerME;
+import opennlp.tools.chunker.ChunkerEventStream;
 import opennlp.tools.chunker.ChunkerModel;
+import opennlp.tools.ml.model.Event;
+import opennlp.tools.ml.perceptron.PerceptronTrainer;
 import opennlp.tools.util.ObjectStream;
 import opennlp.tools.util.TrainingParameters;
+import opennlp.tools.util.model.BaseModel;
 
 /**
  * Training Chunk taggers with Apache OpenNLP Machine Learning API.
@@ -55,22 +63,34 @@ public abstract class AbstractTrainer implements Trainer {
     this.testSamples = new ChunkSampleStream(testStream);
   }
 
+  /**
+   * Construct an AbstractTrainer on samples already read, e.g., shared in
+   * memory by the jobs of the {@link Tuner}. The streams must support reset.
+   * @param params
+   *          the training parameters
+   * @param trainSamples
+   *          the training samples
+   * @param testSamples
+   *          the test samples
+   */
+  public AbstractTrainer(final TrainingParameters params,
+      final ObjectStream<ChunkSample> trainSamples,
+      final ObjectStream<ChunkSample> testSamples) {
+    this.lang = Flags.getLanguage(params);
+    this.trainSamples = trainSamples;
+    this.testSamples = testSamples;
+  }
+
   /* (non-Javadoc)
  * @see eus.ixa.ixa.pipe.chunk.train.Trainer#train(opennlp.tools.util.TrainingParameters)
  */
 public final ChunkerModel train(final TrainingParameters params) {
-    // features
-    if (getChunkerFactory() == null) {
-      throw new IllegalStateException(
-          "Classes derived from AbstractTrainer must "
-              + " create a ChunkerFactory features!");
-    }
     // training model
     ChunkerModel trainedModel = null;
     ChunkerEvaluator chunkerEvaluator = null;
     try {
-      trainedModel = ChunkerME.train(lang, trainSamples, params,
-          getChunkerFactory());
+      trainedModel = trainModel(params);
+      testSamples.reset();
       final Chunker chunker = new ChunkerME(trainedModel);
       chunkerEvaluator = new ChunkerEvaluator(chunker);
       chunkerEvaluator.evaluate(this.testSamples);
@@ -83,6 +103,230 @@ public final ChunkerModel train(final TrainingParameters params) {
     return trainedModel;
   }
 
+  /**
+   * Train a model without evaluating it, with the custom perceptron when
+   * EvalEvery or the stream TrainingMode are set and with the OpenNLP
+   * trainer otherwise. The custom perceptron has no Tolerance stop or
+   * StepSizeDecrease and does not merge duplicate events.
+   * @param params
+   *          the training parameters
+   * @return the trained model
+   * @throws IOException
+   *           if the training or test sets cannot be read
+   */
+  public final ChunkerModel trainModel(final TrainingParameters params)
+      throws IOException {
+    // features
+    if (getChunkerFactory() == null) {
+      throw new IllegalStateException(
+          "Classes derived from AbstractTrainer must "
+              + " create a ChunkerFactory features!");
+    }
+    final boolean customPerceptron = Flags.getEvalEvery(params) > 0
+        || Flags.isStreamTrainingMode(params);
+    if (customPerceptron && isPerceptron(params)) {
+      return trainPerceptron(params);
+    }
+    if (customPerceptron) {
+      System.err.println("EvalEvery and the stream TrainingMode are only supported by the PERCEPTRON algorithm; training with the default OpenNLP trainer.");
+    }
+    return ChunkerME.train(lang, trainSamples, params, getChunkerFactory());
+  }
+
+  /**
+   * Train an averaged perceptron. If EvalEvery is set, the test set is
+   * evaluated every EvalEvery iterations; training stops when the F1 has not
+   * improved for Patience evaluations and the best scoring snapshot is
+   * returned. In memory the events are encoded once the feature index is
+   * built and each event is dropped as soon as it is encoded. In the stream
+   * TrainingMode the events are generated again from the training set on
+   * disk at every iteration, so that only the feature index and the weights
+   * are kept in memory after the first pass, which counts the predicates.
+   * @param params
+   *          the training parameters
+   * @return the trained model
+   * @throws IOException
+   *           if the training or test sets cannot be read
+   */
+  private ChunkerModel trainPerceptron(final TrainingParameters params)
+      throws IOException {
+    final int iterations = Flags.getIterations(params);
+    final int cutoff = Flags.getCutoff(params);
+    final int evalEvery = Flags.getEvalEvery(params);
+    final int patience = Flags.getPatience(params);
+    final int beamSize = Flags.getBeamsize(params);
+    final boolean streaming = Flags.isStreamTrainingMode(params);
+
+    System.out.println("Indexing events using cutoff of " + cutoff);
+    final AveragedPerceptron perceptron = new AveragedPerceptron();
+    // in memory the events are kept until encoded, as OpenNLP indexers do
+    final List<Event> events = streaming ? null : new ArrayList<Event>();
+    final int numEvents = indexPredicates(perceptron, cutoff, events);
+    int[][] contexts = null;
+    float[][] values = null;
+    int[] outcomes = null;
+    if (!streaming) {
+      contexts = new int[numEvents][];
+      values = new float[numEvents][];
+      outcomes = new int[numEvents];
+      for (int i = 0; i < numEvents; i++) {
+        final Event event = events.set(i, null);
+        contexts[i] = perceptron.encode(event.getContext());
+        values[i] = event.getValues();
+        outcomes[i] = perceptron.addOutcome(event.getOutcome());
+      }
+      events.clear();
+    }
+    System.out.println("\tNumber of Event Tokens: " + numEvents);
+    System.out.println("\t  Number of Predicates: "
+        + perceptron.getNumPredicates());
+    System.out.print("Performing " + iterations + " iterations");
+    if (streaming) {
+      System.out.print(" streaming events from disk");
+    }
+    if (evalEvery > 0) {
+      System.out.print(" evaluating every " + evalEvery + " with patience "
+          + patience);
+    }
+    System.out.println(".");
+
+    ChunkerModel bestModel = null;
+    double bestF1 = -1;
+    int bestIteration = 0;
+    int evalsWithoutImprovement = 0;
+    for (int iteration = 1; iteration <= iterations; iteration++) {
+      int correct = 0;
+      if (streaming) {
+        trainSamples.reset();
+        final ObjectStream<Event> eventStream = new ChunkerEventStream(
+            trainSamples, getChunkerFactory().getContextGenerator());
+        Event event;
+        while ((event = eventStream.read()) != null) {
+          if (perceptron.update(event, false)) {
+            correct++;
+          }
+        }
+      } else {
+        for (int i = 0; i < numEvents; i++) {
+          if (perceptron.update(contexts[i], values[i], outcomes[i])) {
+            correct++;
+          }
+        }
+      }
+      System.out.println("  " + iteration + ": (" + correct + "/"
+          + numEvents + ") " + (double) correct / numEvents);
+      if (evalEvery > 0
+          && (iteration % evalEvery == 0 || iteration == iterations)) {
+        final ChunkerModel snapshot = createModel(perceptron, iteration,
+            cutoff, beamSize);
+        final double f1 = evaluate(snapshot);
+        System.out.println("  Held-out F1 at iteration " + iteration + ": "
+            + f1);
+        if (f1 > bestF1) {
+          bestF1 = f1;
+          bestModel = snapshot;
+          bestIteration = iteration;
+          evalsWithoutImprovement = 0;
+        } else if (++evalsWithoutImprovement >= patience) {
+          System.out.println("Stopping: no F1 improvement in "
+              + evalsWithoutImprovement + " evaluations.");
+          break;
+        }
+      }
+    }
+    if (bestModel == null) {
+      return createModel(perceptron, iterations, cutoff, beamSize);
+    }
+    System.out.println("Best held-out F1 " + bestF1 + " at iteration "
+        + bestIteration);
+    return bestModel;
+  }
+
+  /**
+   * Read the training events once to build the feature index of the
+   * perceptron with the predicates seen at least cutoff times.
+   * @param perceptron
+   *          the perceptron
+   * @param cutoff
+   *          the minimum number of times a predicate must be seen
+   * @param events
+   *          a list to keep the events in, or null to discard them
+   * @return the number of events
+   * @throws IOException
+   *           if the training set cannot be read
+   */
+  private int indexPredicates(final AveragedPerceptron perceptron,
+      final int cutoff, final List<Event> events) throws IOException {
+    Map<String, Integer> predicateCounts = new HashMap<String, Integer>();
+    final ObjectStream<Event> eventStream = new ChunkerEventStream(
+        trainSamples, getChunkerFactory().getContextGenerator());
+    int numEvents = 0;
+    Event event;
+    while ((event = eventStream.read()) != null) {
+      numEvents++;
+      if (events != null) {
+        events.add(event);
+      }
+      perceptron.addOutcome(event.getOutcome());
+      for (final String predicate : event.getContext()) {
+        final Integer count = predicateCounts.get(predicate);
+        predicateCounts.put(predicate, count == null ? 1 : count + 1);
+      }
+    }
+    for (final Map.Entry<String, Integer> count : predicateCounts.entrySet()) {
+      if (count.getValue() >= cutoff) {
+        perceptron.addPredicate(count.getKey());
+      }
+    }
+    predicateCounts = null;
+    return numEvents;
+  }
+
+  /**
+   * Wrap a snapshot of the perceptron weights into a chunker model.
+   * @param perceptron
+   *          the perceptron
+   * @param iterations
+   *          the iterations performed
+   * @param cutoff
+   *          the cutoff used
+   * @param beamSize
+   *          the beam size recorded in the manifest for decoding
+   * @return the chunker model
+   */
+  protected final ChunkerModel createModel(final AveragedPerceptron perceptron,
+      final int iterations, final int cutoff, final int beamSize) {
+    final Map<String, String> manifestInfoEntries = new HashMap<String, String>();
+    manifestInfoEntries.put(BaseModel.TRAINING_ITERATIONS_PROPERTY,
+        Integer.toString(iterations));
+    manifestInfoEntries.put(BaseModel.TRAINING_CUTOFF_PROPERTY,
+        Integer.toString(cutoff));
+    return new ChunkerModel(lang, perceptron.getModel(), beamSize,
+        manifestInfoEntries, getChunkerFactory());
+  }
+
+  /**
+   * Evaluate a model on the test set, decoding with the beam size of its
+   * manifest.
+   * @param model
+   *          the model
+   * @return the F1 of the model
+   * @throws IOException
+   *           if the test set cannot be read
+   */
+  protected final double evaluate(final ChunkerModel model)
+      throws IOException {
+    testSamples.reset();
+    final ChunkerEvaluator evaluator = new ChunkerEvaluator(new ChunkerME(
+        model));
+    evaluator.evaluate(testSamples);
+    return evaluator.getFMeasure().getFMeasure();
+  }
+
+  private static boolean isPerceptron(final TrainingParameters params) {
+    return PerceptronTrainer.PERCEPTRON_VALUE.equals(params.algorithm());
+  }
+
   /**
    * Get the chunkerFactory. Every extension of this class must provide an
    * implementation of the ChunkerFactory
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk.train;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Context;
+import opennlp.tools.ml.model.Event;
+import opennlp.tools.ml.model.IndexHashTable;
+import opennlp.tools.ml.perceptron.PerceptronModel;
+
+/**
+ * Averaged perceptron (Collins 2002) trained one event at a time. Unlike the
+ * OpenNLP perceptron trainer, which runs every iteration in one call, this
+ * class lets the caller drive the iterations, take a snapshot of the averaged
+ * weights at any point as a regular {@link PerceptronModel} and keep updating
+ * the weights of an existing model.
+ */
+public class AveragedPerceptron {
+
+  /**
+   * The feature (predicate) index.
+   */
+  private final Map<String, Integer> predicateIndex = new HashMap<String, Integer>();
+  /**
+   * The predicates, by index.
+   */
+  private final List<String> predicates = new ArrayList<String>();
+  /**
+   * The outcome index.
+   */
+  private final Map<String, Integer> outcomeIndex = new HashMap<String, Integer>();
+  /**
+   * The outcomes, by index.
+   */
+  private final List<String> outcomes = new ArrayList<String>();
+  /**
+   * The current weights, one array of outcome weights per predicate.
+   */
+  private final List<double[]> weights = new ArrayList<double[]>();
+  /**
+   * The updates weighted by the time they were made, used to compute the
+   * averaged weights without summing them after every event.
+   */
+  private final List<double[]> updates = new ArrayList<double[]>();
+  /**
+   * The number of events seen plus one.
+   */
+  private long counter = 1;
+  /**
+   * Reusable buffer for the outcome scores.
+   */
+  private double[] scores = new double[0];
+
+  /**
+   * Construct an empty perceptron.
+   */
+  public AveragedPerceptron() {
+  }
+
+  /**
+   * Construct a perceptron whose weights are those of a trained model. The
+   * model weights are taken as the starting point for further updates.
+   *
+   * @param model
+   *          the perceptron model
+   */
+  public AveragedPerceptron(final AbstractModel model) {
+    final Object[] data = model.getDataStructures();
+    final Context[] params = (Context[]) data[0];
+    @SuppressWarnings("unchecked")
+    final IndexHashTable<String> pmap = (IndexHashTable<String>) data[1];
+    final String[] outcomeNames = (String[]) data[2];
+    for (final String outcome : outcomeNames) {
+      addOutcome(outcome);
+    }
+    final String[] predLabels = pmap.toArray(new String[pmap.size()]);
+    for (final String predicate : predLabels) {
+      final int pid = addPredicate(predicate);
+      final Context context = params[pmap.get(predicate)];
+      final double[] predWeights = weights.get(pid);
+      final int[] activeOutcomes = context.getOutcomes();
+      final double[] activeParams = context.getParameters();
+      for (int i = 0; i < activeOutcomes.length; i++) {
+        predWeights[activeOutcomes[i]] = activeParams[i];
+      }
+    }
+  }
+
+  /**
+   * Add a predicate to the feature index if not already there.
+   *
+   * @param predicate
+   *          the predicate
+   * @return the index of the predicate
+   */
+  public final int addPredicate(final String predicate) {
+    Integer pid = predicateIndex.get(predicate);
+    if (pid == null) {
+      pid = predicates.size();
+      predicateIndex.put(predicate, pid);
+      predicates.add(predicate);
+      weights.add(new double[outcomes.size()]);
+      updates.add(new double[outcomes.size()]);
+    }
+    return pid;
+  }
+
+  /**
+   * Add an outcome if not already known.
+   *
+   * @param outcome
+   *          the outcome
+   * @return the index of the outcome
+   */
+  public final int addOutcome(final String outcome) {
+    Integer oid = outcomeIndex.get(outcome);
+    if (oid == null) {
+      oid = outcomes.size();
+      outcomeIndex.put(outcome, oid);
+      outcomes.add(outcome);
+      scores = new double[outcomes.size()];
+    }
+    return oid;
+  }
+
+  /**
+   * Get the number of predicates in the feature index.
+   *
+   * @return the number of predicates
+   */
+  public final int getNumPredicates() {
+    return predicates.size();
+  }
+
+  /**
+   * Map the context of an event to predicate indexes, dropping the predicates
+   * not in the feature index.
+   *
+   * @param context
+   *          the context predicates
+   * @return the predicate indexes
+   */
+  public final int[] encode(final String[] context) {
+    final int[] encoded = new int[context.length];
+    int length = 0;
+    for (final String predicate : context) {
+      final Integer pid = predicateIndex.get(predicate);
+      if (pid != null) {
+        encoded[length++] = pid;
+      }
+    }
+    return length == encoded.length ? encoded : Arrays.copyOf(encoded,
+        length);
+  }
+
+  /**
+   * Update the weights with one event.
+   *
+   * @param event
+   *          the event
+   * @param growFeatures
+   *          whether unknown predicates are added to the feature index
+   * @return true if the event was correctly classified before the update
+   */
+  public final boolean update(final Event event, final boolean growFeatures) {
+    final String[] context = event.getContext();
+    if (growFeatures) {
+      for (final String predicate : context) {
+        addPredicate(predicate);
+      }
+    }
+    return update(encode(context), event.getValues(),
+        addOutcome(event.getOutcome()));
+  }
+
+  /**
+   * Update the weights with one encoded event.
+   *
+   * @param context
+   *          the predicate indexes
+   * @param values
+   *          the predicate values, or null if every value is 1
+   * @param outcome
+   *          the index of the correct outcome
+   * @return true if the event was correctly classified before the update
+   */
+  public final boolean update(final int[] context, final float[] values,
+      final int outcome) {
+    final int numOutcomes = outcomes.size();
+    Arrays.fill(scores, 0);
+    for (int i = 0; i < context.length; i++) {
+      final double[] predWeights = getWeights(context[i]);
+      final double value = values == null ? 1 : values[i];
+      for (int oid = 0; oid < numOutcomes; oid++) {
+        scores[oid] += predWeights[oid] * value;
+      }
+    }
+    int best = 0;
+    for (int oid = 1; oid < numOutcomes; oid++) {
+      if (scores[oid] > scores[best]) {
+        best = oid;
+      }
+    }
+    final boolean correct = best == outcome;
+    if (!correct) {
+      for (int i = 0; i < context.length; i++) {
+        final double value = values == null ? 1 : values[i];
+        final double[] predWeights = weights.get(context[i]);
+        final double[] predUpdates = updates.get(context[i]);
+        predWeights[outcome] += value;
+        predWeights[best] -= value;
+        predUpdates[outcome] += counter * value;
+        predUpdates[best] -= counter * value;
+      }
+    }
+    counter++;
+    return correct;
+  }
+
+  /**
+   * Get the weights of a predicate, growing them if outcomes were added after
+   * the predicate.
+   */
+  private double[] getWeights(final int pid) {
+    double[] predWeights = weights.get(pid);
+    if (predWeights.length < outcomes.size()) {
+      predWeights = Arrays.copyOf(predWeights, outcomes.size());
+      weights.set(pid, predWeights);
+      updates.set(pid, Arrays.copyOf(updates.get(pid), outcomes.size()));
+    }
+    return predWeights;
+  }
+
+  /**
+   * Take a snapshot of the averaged weights as a perceptron model. Predicates
+   * without any non-zero weight are left out of the model.
+   *
+   * @return the perceptron model
+   */
+  public final PerceptronModel getModel() {
+    final List<Context> params = new ArrayList<Context>();
+    final List<String> predLabels = new ArrayList<String>();
+    final int[] activeOutcomes = new int[outcomes.size()];
+    final double[] activeParams = new double[outcomes.size()];
+    for (int pid = 0; pid < predicates.size(); pid++) {
+      final double[] predWeights = getWeights(pid);
+      final double[] predUpdates = updates.get(pid);
+      int active = 0;
+      for (int oid = 0; oid < predWeights.length; oid++) {
+        final double averaged = predWeights[oid] - predUpdates[oid] / counter;
+        if (averaged != 0) {
+          activeOutcomes[active] = oid;
+          activeParams[active] = averaged;
+          active++;
+        }
+      }
+      if (active > 0) {
+        params.add(new Context(Arrays.copyOf(activeOutcomes, active), Arrays
+            .copyOf(activeParams, active)));
+        predLabels.add(predicates.get(pid));
+      }
+    }
+    return new PerceptronModel(params.toArray(new Context[params.size()]),
+        predLabels.toArray(new String[predLabels.size()]),
+        outcomes.toArray(new String[outcomes.size()]));
+  }
+
+}
@@ -2,7 +2,9 @@ package eus.ixa.ixa.pipe.chunk.train;
 
 import java.io.IOException;
 
+import opennlp.tools.chunker.ChunkSample;
 import opennlp.tools.chunker.ChunkerFactory;
+import opennlp.tools.util.ObjectStream;
 import opennlp.tools.util.TrainingParameters;
 
 /**
@@ -18,4 +20,11 @@ public class DefaultTrainer extends AbstractTrainer {
     setChunkerFactory(new ChunkerFactory());
   }
 
+  public DefaultTrainer(final TrainingParameters params,
+      final ObjectStream<ChunkSample> trainSamples,
+      final ObjectStream<ChunkSample> testSamples) {
+    super(params, trainSamples, testSamples);
+    setChunkerFactory(new ChunkerFactory());
+  }
+
 }
@@ -29,6 +29,14 @@ public class Flags {
   public static final int DEFAULT_DICT_CUTOFF = -1;
   public static final String DEFAULT_OUTPUT_FORMAT = "naf";
   public static final String DEFAULT_HOSTNAME = "localhost";
+  public static final String DEFAULT_TUNE_SEARCH = "grid";
+  public static final int DEFAULT_TUNE_TRIALS = 10;
+  public static final int DEFAULT_ITERATIONS = 100;
+  public static final int DEFAULT_CUTOFF = 5;
+  public static final int DEFAULT_EVAL_EVERY = 0;
+  public static final int DEFAULT_PATIENCE = 3;
+  public static final String DEFAULT_TRAINING_MODE = "memory";
+  public static final int DEFAULT_UPDATE_PASSES = 5;
 
   private Flags() {
   }
@@ -77,6 +85,60 @@ public class Flags {
     return beamsize;
   }
 
+  public static Integer getIterations(final TrainingParameters params) {
+    Integer iterations = null;
+    if (params.getSettings().get("Iterations") == null) {
+      iterations = Flags.DEFAULT_ITERATIONS;
+    } else {
+      iterations = Integer.parseInt(params.getSettings().get("Iterations"));
+    }
+    return iterations;
+  }
+
+  public static Integer getCutoff(final TrainingParameters params) {
+    Integer cutoff = null;
+    if (params.getSettings().get("Cutoff") == null) {
+      cutoff = Flags.DEFAULT_CUTOFF;
+    } else {
+      cutoff = Integer.parseInt(params.getSettings().get("Cutoff"));
+    }
+    return cutoff;
+  }
+
+  public static Integer getEvalEvery(final TrainingParameters params) {
+    Integer evalEvery = null;
+    if (params.getSettings().get("EvalEvery") == null) {
+      evalEvery = Flags.DEFAULT_EVAL_EVERY;
+    } else {
+      evalEvery = Integer.parseInt(params.getSettings().get("EvalEvery"));
+    }
+    return evalEvery;
+  }
+
+  public static Integer getPatience(final TrainingParameters params) {
+    Integer patience = null;
+    if (params.getSettings().get("Patience") == null) {
+      patience = Flags.DEFAULT_PATIENCE;
+    } else {
+      patience = Integer.parseInt(params.getSettings().get("Patience"));
+    }
+    return patience;
+  }
+
+  public static String getTrainingMode(final TrainingParameters params) {
+    String trainingMode = null;
+    if (params.getSettings().get("TrainingMode") == null) {
+      trainingMode = Flags.DEFAULT_TRAINING_MODE;
+    } else {
+      trainingMode = params.getSettings().get("TrainingMode");
+    }
+    return trainingMode;
+  }
+
+  public static boolean isStreamTrainingMode(final TrainingParameters params) {
+    return getTrainingMode(params).equalsIgnoreCase("stream");
+  }
+
   public static String getFeatureSet(final TrainingParameters params) {
     String featureSet = null;
     if (params.getSettings().get("FeatureSet") != null) {
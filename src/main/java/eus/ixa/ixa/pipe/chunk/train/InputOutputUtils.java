@@ -21,7 +21,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 
+import opennlp.tools.chunker.ChunkSample;
+import opennlp.tools.chunker.ChunkSampleStream;
 import opennlp.tools.cmdline.CmdLineUtil;
 import opennlp.tools.cmdline.TerminateToolException;
 import opennlp.tools.ml.TrainerFactory;
@@ -145,4 +149,30 @@ public final class InputOutputUtils {
     return lineStream;
   }
 
+  /**
+   * Read a CoNLL 2000 formatted corpus into memory so that it can be shared
+   * by several training and evaluation jobs.
+   *
+   * @param infile
+   *          the string pointing to the file
+   * @return the list of chunk samples
+   * @throws IOException
+   *           if the corpus cannot be read
+   */
+  public static List<ChunkSample> readChunkSamples(final String infile)
+      throws IOException {
+    final List<ChunkSample> samples = new ArrayList<ChunkSample>();
+    final ObjectStream<ChunkSample> sampleStream = new ChunkSampleStream(
+        readFileIntoMarkableStreamFactory(infile));
+    try {
+      ChunkSample sample;
+      while ((sample = sampleStream.read()) != null) {
+        samples.add(sample);
+      }
+    } finally {
+      sampleStream.close();
+    }
+    return samples;
+  }
+
 }
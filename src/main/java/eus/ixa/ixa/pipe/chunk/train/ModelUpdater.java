@@ -0,0 +1,112 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk.train;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import opennlp.tools.chunker.ChunkSample;
+import opennlp.tools.chunker.ChunkerEventStream;
+import opennlp.tools.chunker.ChunkerME;
+import opennlp.tools.chunker.ChunkerModel;
+import opennlp.tools.ml.BeamSearch;
+import opennlp.tools.ml.model.AbstractModel;
+import opennlp.tools.ml.model.Event;
+import opennlp.tools.ml.model.MaxentModel;
+import opennlp.tools.ml.perceptron.PerceptronModel;
+import opennlp.tools.util.ObjectStream;
+import opennlp.tools.util.model.BaseModel;
+import eus.ixa.ixa.pipe.chunk.ModelRegistry;
+
+/**
+ * Online update of a trained perceptron chunker model with a small set of new
+ * or corrected samples. The weights of the model are the starting point of a
+ * few perceptron passes over the samples, which takes seconds instead of the
+ * hours of a full retraining.
+ */
+public class ModelUpdater {
+
+  /**
+   * The model to be updated.
+   */
+  private final ChunkerModel chunkerModel;
+
+  /**
+   * Construct an updater for a perceptron model.
+   *
+   * @param model
+   *          the model to be updated
+   */
+  public ModelUpdater(final ChunkerModel model) {
+    final MaxentModel maxentModel = ModelRegistry.getClassifier(model);
+    if (!(maxentModel instanceof PerceptronModel)) {
+      throw new IllegalArgumentException(
+          "Only models trained with the PERCEPTRON algorithm can be updated!");
+    }
+    this.chunkerModel = model;
+  }
+
+  /**
+   * Update the model with the samples. The original model is not modified.
+   *
+   * @param samples
+   *          the new or corrected samples
+   * @param passes
+   *          the number of passes over the samples
+   * @return the updated model
+   * @throws IOException
+   *           if the samples cannot be read
+   */
+  public final ChunkerModel update(final ObjectStream<ChunkSample> samples,
+      final int passes) throws IOException {
+    final AveragedPerceptron perceptron = new AveragedPerceptron(
+        (AbstractModel) ModelRegistry.getClassifier(chunkerModel));
+    for (int pass = 1; pass <= passes; pass++) {
+      samples.reset();
+      final ObjectStream<Event> events = new ChunkerEventStream(samples,
+          chunkerModel.getFactory().getContextGenerator());
+      int numEvents = 0;
+      int correct = 0;
+      Event event;
+      while ((event = events.read()) != null) {
+        numEvents++;
+        if (perceptron.update(event, true)) {
+          correct++;
+        }
+      }
+      System.err.println("  " + pass + ": (" + correct + "/" + numEvents
+          + ") " + (double) correct / Math.max(1, numEvents));
+    }
+    final Map<String, String> manifestInfoEntries = new HashMap<String, String>();
+    for (final String property : new String[] {
+        BaseModel.TRAINING_ITERATIONS_PROPERTY,
+        BaseModel.TRAINING_CUTOFF_PROPERTY }) {
+      final String value = chunkerModel.getManifestProperty(property);
+      if (value != null) {
+        manifestInfoEntries.put(property, value);
+      }
+    }
+    manifestInfoEntries.put("Update-Passes", Integer.toString(passes));
+    // the decoder reads the beam size only from the manifest
+    final String beamSize = chunkerModel
+        .getManifestProperty(BeamSearch.BEAM_SIZE_PARAMETER);
+    return new ChunkerModel(chunkerModel.getLanguage(), perceptron.getModel(),
+        beamSize == null ? ChunkerME.DEFAULT_BEAM_SIZE : Integer
+            .parseInt(beamSize), manifestInfoEntries, chunkerModel.getFactory());
+  }
+
+}
@@ -0,0 +1,377 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk.train;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import opennlp.tools.chunker.ChunkSample;
+import opennlp.tools.chunker.ChunkerEvaluator;
+import opennlp.tools.chunker.ChunkerME;
+import opennlp.tools.chunker.ChunkerModel;
+import opennlp.tools.util.CollectionObjectStream;
+import opennlp.tools.util.TrainingParameters;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+/**
+ * Hyperparameter search for chunker models. Every combination of the
+ * parameter grid (or a random sample of them) is trained and evaluated
+ * concurrently on a bounded thread pool. The training and test corpora are
+ * read only once and shared by every job.
+ */
+public class Tuner {
+
+  /**
+   * The parameters tuned by default, in the order they are printed.
+   */
+  private static final String[] TUNABLE_PARAMS = { "Algorithm", "Iterations",
+      "Cutoff", "BeamSize" };
+  /**
+   * The parameters fixed for the whole search: the corpora are read once by
+   * the constructor and no model is written per grid point.
+   */
+  private static final List<String> FIXED_PARAMS = Arrays.asList("TrainSet",
+      "TestSet", "CorpusFormat", "OutputModel");
+  /**
+   * The base training parameters, overriden by each grid point.
+   */
+  private final TrainingParameters baseParams;
+  /**
+   * The training samples shared by every job.
+   */
+  private final List<ChunkSample> trainSamples;
+  /**
+   * The test samples shared by every job.
+   */
+  private final List<ChunkSample> testSamples;
+  /**
+   * The number of tokens in the test set, used to compute decode throughput.
+   */
+  private final long testTokens;
+  /**
+   * The best model trained so far; the rest are discarded as soon as they are
+   * evaluated.
+   */
+  private ChunkerModel bestModel;
+  /**
+   * The F1 of the best model trained so far.
+   */
+  private double bestF1 = -1;
+
+  /**
+   * Construct a tuner. The TrainSet and TestSet of the params are loaded in
+   * memory.
+   *
+   * @param params
+   *          the base training parameters
+   * @throws IOException
+   *           if the corpora cannot be read
+   */
+  public Tuner(final TrainingParameters params) throws IOException {
+    this.baseParams = params;
+    this.trainSamples = InputOutputUtils.readChunkSamples(Flags.getDataSet(
+        "TrainSet", params));
+    this.testSamples = InputOutputUtils.readChunkSamples(Flags.getDataSet(
+        "TestSet", params));
+    long tokens = 0;
+    for (final ChunkSample sample : testSamples) {
+      tokens += sample.getSentence().length;
+    }
+    this.testTokens = tokens;
+  }
+
+  /**
+   * Expand the grid specification into the list of parameter combinations. Each
+   * property of the grid holds a comma separated list of values.
+   *
+   * @param grid
+   *          the grid specification
+   * @return every combination of the grid
+   */
+  public static List<Map<String, String>> expandGrid(final Properties grid) {
+    List<Map<String, String>> points = new ArrayList<Map<String, String>>();
+    points.add(new LinkedHashMap<String, String>());
+    for (final String param : orderedKeys(grid)) {
+      final List<Map<String, String>> expanded = new ArrayList<Map<String, String>>();
+      for (final Map<String, String> point : points) {
+        for (final String value : grid.getProperty(param).split(",")) {
+          final Map<String, String> newPoint = new LinkedHashMap<String, String>(
+              point);
+          newPoint.put(param, value.trim());
+          expanded.add(newPoint);
+        }
+      }
+      points = expanded;
+    }
+    return points;
+  }
+
+  /**
+   * Sample without replacement a number of combinations of the grid.
+   *
+   * @param grid
+   *          the grid specification
+   * @param trials
+   *          the number of combinations to sample
+   * @param seed
+   *          the random seed
+   * @return the sampled combinations
+   */
+  public static List<Map<String, String>> sampleGrid(final Properties grid,
+      final int trials, final long seed) {
+    final List<Map<String, String>> points = expandGrid(grid);
+    Collections.shuffle(points, new Random(seed));
+    return points.subList(0, Math.min(trials, points.size()));
+  }
+
+  /**
+   * Train and evaluate every grid point using a pool of threads.
+   *
+   * @param points
+   *          the parameter combinations
+   * @param threads
+   *          the size of the thread pool
+   * @return the results ranked by F1 and decode throughput
+   * @throws IOException
+   *           if any of the jobs failed
+   * @throws IllegalArgumentException
+   *           if a point sets a parameter fixed for the whole search
+   */
+  public final List<TuningResult> tune(final List<Map<String, String>> points,
+      final int threads) throws IOException {
+    for (final Map<String, String> point : points) {
+      for (final String param : point.keySet()) {
+        if (FIXED_PARAMS.contains(param)) {
+          throw new IllegalArgumentException(param
+              + " cannot be tuned; set it in the base parameters");
+        }
+      }
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threads);
+    final List<Future<TuningResult>> futures = new ArrayList<Future<TuningResult>>();
+    for (final Map<String, String> point : points) {
+      futures.add(executor.submit(new Callable<TuningResult>() {
+        @Override
+        public TuningResult call() throws IOException {
+          return trainAndEvaluate(point);
+        }
+      }));
+    }
+    final List<TuningResult> results = new ArrayList<TuningResult>();
+    try {
+      for (final Future<TuningResult> future : futures) {
+        results.add(future.get());
+      }
+    } catch (final InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Tuning interrupted!", e);
+    } catch (final ExecutionException e) {
+      throw new IOException("Tuning job failed: " + e.getCause().getMessage(),
+          e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+    Collections.sort(results, new Comparator<TuningResult>() {
+      @Override
+      public int compare(final TuningResult r1, final TuningResult r2) {
+        final int byF1 = Double.compare(r2.getF1(), r1.getF1());
+        return byF1 != 0 ? byF1 : Double.compare(r2.getTokensPerSecond(),
+            r1.getTokensPerSecond());
+      }
+    });
+    return results;
+  }
+
+  /**
+   * Train a model for one grid point and evaluate it on the test set.
+   *
+   * @param point
+   *          the parameters overriding the base parameters
+   * @return the result of the job
+   * @throws IOException
+   *           if training fails
+   */
+  private TuningResult trainAndEvaluate(final Map<String, String> point)
+      throws IOException {
+    final TrainingParameters params = new TrainingParameters();
+    for (final Map.Entry<String, String> entry : baseParams.getSettings()
+        .entrySet()) {
+      params.put(entry.getKey(), entry.getValue());
+    }
+    for (final Map.Entry<String, String> entry : point.entrySet()) {
+      params.put(entry.getKey(), entry.getValue());
+    }
+    final long trainStart = System.nanoTime();
+    // the same trainer as the train command, so every training parameter
+    // of the grid is applied
+    final ChunkerModel model = new DefaultTrainer(params,
+        new CollectionObjectStream<ChunkSample>(trainSamples),
+        new CollectionObjectStream<ChunkSample>(testSamples)).trainModel(params);
+    final long trainMillis = (System.nanoTime() - trainStart) / 1000000;
+
+    final CountingOutputStream modelBytes = new CountingOutputStream(
+        ByteStreams.nullOutputStream());
+    model.serialize(modelBytes);
+
+    final ChunkerEvaluator evaluator = new ChunkerEvaluator(new ChunkerME(
+        model));
+    final long decodeStart = System.nanoTime();
+    evaluator.evaluate(new CollectionObjectStream<ChunkSample>(testSamples));
+    final long decodeNanos = Math.max(1, System.nanoTime() - decodeStart);
+    final double tokensPerSecond = testTokens * 1e9 / decodeNanos;
+
+    final double f1 = evaluator.getFMeasure().getFMeasure();
+    keepIfBest(model, f1);
+    // report the base value of the tunable parameters not in the grid
+    final Map<String, String> effective = new LinkedHashMap<String, String>(
+        point);
+    for (final String param : TUNABLE_PARAMS) {
+      if (!effective.containsKey(param)
+          && params.getSettings().get(param) != null) {
+        effective.put(param, params.getSettings().get(param));
+      }
+    }
+    return new TuningResult(effective, f1, trainMillis, modelBytes.getCount(),
+        tokensPerSecond);
+  }
+
+  private synchronized void keepIfBest(final ChunkerModel model,
+      final double f1) {
+    if (f1 > bestF1) {
+      bestF1 = f1;
+      bestModel = model;
+    }
+  }
+
+  /**
+   * Get the model with the highest F1 found by the last search.
+   *
+   * @return the best model or null if no job has finished
+   */
+  public final synchronized ChunkerModel getBestModel() {
+    return bestModel;
+  }
+
+  /**
+   * Format the ranked results as a table.
+   *
+   * @param results
+   *          the ranked results
+   * @return the table
+   */
+  public static String formatResults(final List<TuningResult> results) {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("%-5s%-12s%-11s%-8s%-10s%-9s%-12s%-12s%-12s%n",
+        "Rank", "Algorithm", "Iterations", "Cutoff", "BeamSize", "F1",
+        "Train(ms)", "Size(bytes)", "Tokens/s"));
+    int rank = 1;
+    for (final TuningResult result : results) {
+      sb.append(String.format("%-5d%-12s%-11s%-8s%-10s%-9.4f%-12d%-12d%-12.0f%n",
+          rank++, getValue(result, TUNABLE_PARAMS[0]),
+          getValue(result, TUNABLE_PARAMS[1]),
+          getValue(result, TUNABLE_PARAMS[2]),
+          getValue(result, TUNABLE_PARAMS[3]), result.getF1(),
+          result.getTrainMillis(), result.getModelSize(),
+          result.getTokensPerSecond()));
+    }
+    return sb.toString();
+  }
+
+  private static String getValue(final TuningResult result, final String param) {
+    final String value = result.getParams().get(param);
+    return value == null ? "-" : value;
+  }
+
+  /**
+   * Keep the tunable parameters first and in a fixed order so that tables are
+   * comparable between runs.
+   */
+  private static List<String> orderedKeys(final Properties grid) {
+    final List<String> keys = new ArrayList<String>();
+    for (final String param : TUNABLE_PARAMS) {
+      if (grid.getProperty(param) != null) {
+        keys.add(param);
+      }
+    }
+    final List<String> others = new ArrayList<String>();
+    for (final String param : grid.stringPropertyNames()) {
+      if (!keys.contains(param)) {
+        others.add(param);
+      }
+    }
+    Collections.sort(others);
+    keys.addAll(others);
+    return keys;
+  }
+
+  /**
+   * The outcome of training and evaluating one grid point.
+   */
+  public static class TuningResult {
+
+    private final Map<String, String> params;
+    private final double f1;
+    private final long trainMillis;
+    private final long modelSize;
+    private final double tokensPerSecond;
+
+    public TuningResult(final Map<String, String> params, final double f1,
+        final long trainMillis, final long modelSize,
+        final double tokensPerSecond) {
+      this.params = params;
+      this.f1 = f1;
+      this.trainMillis = trainMillis;
+      this.modelSize = modelSize;
+      this.tokensPerSecond = tokensPerSecond;
+    }
+
+    public final Map<String, String> getParams() {
+      return params;
+    }
+
+    public final double getF1() {
+      return f1;
+    }
+
+    public final long getTrainMillis() {
+      return trainMillis;
+    }
+
+    public final long getModelSize() {
+      return modelSize;
+    }
+
+    public final double getTokensPerSecond() {
+      return tokensPerSecond;
+    }
+  }
+
+}
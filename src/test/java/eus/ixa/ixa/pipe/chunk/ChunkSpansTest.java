@@ -0,0 +1,97 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import opennlp.tools.chunker.ChunkSample;
+import opennlp.tools.util.Span;
+
+import org.junit.Test;
+
+/**
+ * Checks that the BIO grouping of {@link ChunkTagger#group} into
+ * {@link ChunkSpans} gives the same chunks as
+ * {@link ChunkSample#phrasesAsSpanList}.
+ */
+public class ChunkSpansTest {
+
+  @Test
+  public void testWellFormedSequence() {
+    assertSameChunks("B-NP", "I-NP", "B-VP", "B-PP", "B-NP", "I-NP", "O");
+  }
+
+  @Test
+  public void testInsideWithoutBegin() {
+    assertSameChunks("I-NP", "I-NP", "B-VP");
+    assertSameChunks("O", "I-NP", "I-NP");
+  }
+
+  @Test
+  public void testTypeChangeInsideChunk() {
+    assertSameChunks("B-NP", "I-NP", "I-VP", "I-VP", "I-NP");
+  }
+
+  @Test
+  public void testOutsideBetweenRuns() {
+    assertSameChunks("B-NP", "O", "I-NP", "O", "O", "B-NP", "I-NP");
+  }
+
+  @Test
+  public void testBeginAfterBeginOfSameType() {
+    assertSameChunks("B-NP", "B-NP", "I-NP", "B-NP");
+  }
+
+  @Test
+  public void testEmptyAndOutsideOnly() {
+    assertSameChunks();
+    assertSameChunks("O", "O");
+  }
+
+  @Test
+  public void testRandomSequences() {
+    final String[] tags = { "O", "B-NP", "I-NP", "B-VP", "I-VP", "B-PP",
+        "I-PP" };
+    final Random random = new Random(42);
+    for (int n = 0; n < 2000; n++) {
+      final String[] preds = new String[random.nextInt(12)];
+      for (int i = 0; i < preds.length; i++) {
+        preds[i] = tags[random.nextInt(tags.length)];
+      }
+      assertSameChunks(preds);
+    }
+  }
+
+  private static void assertSameChunks(final String... preds) {
+    final String[] tokens = new String[preds.length];
+    Arrays.fill(tokens, "w");
+    final Span[] expected = ChunkSample.phrasesAsSpanList(tokens, tokens,
+        preds);
+    final ChunkSpans chunks = new ChunkSpans(1);
+    assertEquals(Arrays.toString(preds), expected.length,
+        ChunkTagger.group(preds, chunks));
+    for (int i = 0; i < expected.length; i++) {
+      final Span actual = new Span(chunks.getStart(i), chunks.getEnd(i),
+          chunks.getTypeName(i));
+      assertEquals(Arrays.toString(preds), expected[i], actual);
+    }
+  }
+
+}
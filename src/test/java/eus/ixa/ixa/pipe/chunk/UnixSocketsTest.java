@@ -0,0 +1,73 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link UnixSockets}, which reaches the Java 16 API by
+ * reflection, reports the sockets as not available on older JVMs and carries
+ * a connection otherwise. Only the test for the running JVM is run.
+ */
+public class UnixSocketsTest {
+
+  @Test
+  public void testUnavailableBeforeJava16() throws IOException {
+    assumeTrue(VirtualThreadsTest.javaVersion() < 16);
+    assertFalse(UnixSockets.isAvailable());
+    try {
+      UnixSockets.connect("unused.sock");
+      throw new AssertionError("Connected before Java 16");
+    } catch (UnsupportedOperationException e) {
+      assertTrue(e.getMessage().contains("Java 16"));
+    }
+  }
+
+  @Test
+  public void testConnectOnJava16() throws IOException {
+    assumeTrue(VirtualThreadsTest.javaVersion() >= 16);
+    assertTrue(UnixSockets.isAvailable());
+    final File path = File.createTempFile("ixa-pipe-chunk", ".sock");
+    final ServerSocketChannel server = UnixSockets.bind(path.getPath());
+    try (Socket client = UnixSockets.connect(path.getPath());
+        Socket accepted = UnixSockets.accept(server)) {
+      final OutputStream out = client.getOutputStream();
+      out.write(42);
+      out.flush();
+      final InputStream in = accepted.getInputStream();
+      assertEquals(42, in.read());
+      client.close();
+      assertEquals(-1, in.read());
+    } finally {
+      server.close();
+      path.delete();
+    }
+  }
+
+}
@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+
+import org.junit.Test;
+
+/**
+ * Checks that {@link VirtualThreads}, which reaches the Java 21 API by
+ * reflection, reports the virtual threads as not available on older JVMs
+ * and runs tasks on them otherwise. Only the test for the running JVM is
+ * run.
+ */
+public class VirtualThreadsTest {
+
+  /**
+   * Get the feature version of the running JVM, 8 for Java 1.8.
+   */
+  static int javaVersion() {
+    final String version = System.getProperty("java.specification.version");
+    return Integer.parseInt(version.startsWith("1.") ? version.substring(2)
+        : version);
+  }
+
+  @Test
+  public void testUnavailableBeforeJava21() {
+    assumeTrue(javaVersion() < 21);
+    assertFalse(VirtualThreads.isAvailable());
+    try {
+      VirtualThreads.newPerTaskExecutor();
+      throw new AssertionError("Created virtual threads before Java 21");
+    } catch (UnsupportedOperationException e) {
+      assertTrue(e.getMessage().contains("Java 21"));
+    }
+  }
+
+  @Test
+  public void testPerTaskExecutorOnJava21() throws Exception {
+    assumeTrue(javaVersion() >= 21);
+    assertTrue(VirtualThreads.isAvailable());
+    final ExecutorService executor = VirtualThreads.newPerTaskExecutor();
+    try {
+      assertEquals("virtual", executor.submit(new Callable<String>() {
+        @Override
+        public String call() {
+          return Thread.currentThread().toString().startsWith("VirtualThread")
+              ? "virtual" : "platform";
+        }
+      }).get());
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+}
@@ -0,0 +1,251 @@
+/*
+ *  Copyright 2016 Rodrigo Agerri
+
+    Licensed under the Apache License, Version 2.0 (the "License");
+    you may not use this file except in compliance with the License.
+    You may obtain a copy of the License at
+
+        http://www.apache.org/licenses/LICENSE-2.0
+
+    Unless required by applicable law or agreed to in writing, software
+    distributed under the License is distributed on an "AS IS" BASIS,
+    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+    See the License for the specific language governing permissions and
+    limitations under the License.
+ */
+
+package eus.ixa.ixa.pipe.chunk.bench;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Properties;
+
+import net.sourceforge.argparse4j.ArgumentParsers;
+import net.sourceforge.argparse4j.inf.ArgumentParser;
+import net.sourceforge.argparse4j.inf.ArgumentParserException;
+import net.sourceforge.argparse4j.inf.Namespace;
+import net.sourceforge.argparse4j.inf.Subparser;
+import net.sourceforge.argparse4j.inf.Subparsers;
+
+/**
+ * Command line of the performance regression suite, kept out of the
+ * ixa-pipe-chunk jar. Run it from the test classpath with the perf profile:
+ *
+ * <pre>
+ * mvn verify -Pperf -Dperf.model=model.bin -Dperf.inputDir=naf/ -Dperf.testSet=test.data -Dperf.baseline=baseline.properties
+ * </pre>
+ */
+public class PerfCLI {
+
+  /**
+   * The CLI arguments.
+   */
+  private Namespace parsedArguments = null;
+  /**
+   * The argument parser.
+   */
+  private ArgumentParser argParser = ArgumentParsers.newArgumentParser(
+      "ixa-pipe-chunk-perf").description(
+      "Performance regression suite of ixa-pipe-chunk.\n");
+  /**
+   * Sub parser instance.
+   */
+  private Subparsers subParsers = argParser.addSubparsers().help(
+      "sub-command help");
+  /**
+   * Runs the performance regression suite.
+   */
+  private Subparser perfParser;
+
+  /**
+   * Construct a CLI object with the sub-parser of the suite.
+   */
+  public PerfCLI() {
+    perfParser = subParsers.addParser("perf").help("Performance regression suite");
+    loadPerfParameters();
+  }
+
+  /**
+   * The main method.
+   *
+   * @param args
+   *          the arguments
+   * @throws IOException
+   *           if a tool fails
+   */
+  public static void main(final String[] args) throws IOException {
+    PerfCLI cmdLine = new PerfCLI();
+    cmdLine.parseCLI(args);
+  }
+
+  /**
+   * Parse the command interface parameters with the argParser.
+   *
+   * @param args
+   *          the arguments passed through the CLI
+   * @throws IOException
+   *           if a tool fails
+   */
+  public final void parseCLI(final String[] args) throws IOException {
+    try {
+      parsedArguments = argParser.parseArgs(args);
+      System.err.println("CLI options: " + parsedArguments);
+      if (args[0].equals("perf")) {
+        perf();
+      }
+    } catch (ArgumentParserException e) {
+      argParser.handleError(e);
+      System.out.println("Run perf -help for details");
+      System.exit(1);
+    }
+  }
+
+  /**
+   * Run the performance regression suite and compare it with the baseline,
+   * exiting with an error if there are regressions.
+   *
+   * @throws IOException
+   *           if the suite cannot be run
+   */
+  public final void perf() throws IOException {
+    final File modelFile = requiredFile("model", "perf.model");
+    final File inputDir = requiredFile("inputDir", "perf.inputDir");
+    final File testSet = requiredFile("testSet", "perf.testSet");
+    final String baselinePath = parsedArguments.getString("baseline");
+    if (baselinePath.isEmpty() || baselinePath.startsWith("${")) {
+      fail("set the baseline file with -Dperf.baseline");
+    }
+    final File baselineFile = new File(baselinePath);
+    final boolean updateBaseline = Boolean.parseBoolean(parsedArguments
+        .getString("updateBaseline"));
+    if (!updateBaseline && !baselineFile.isFile()) {
+      fail("no baseline in " + baselineFile
+          + "; record one with --updateBaseline true (-Dperf.updateBaseline=true)");
+    }
+    Properties properties = setAnnotateProperties(
+        modelFile.getPath(), parsedArguments.getString("language"));
+    properties.setProperty("warmup", parsedArguments.getString("warmup"));
+    properties.setProperty("iterations", parsedArguments.getString("iterations"));
+    List<String> documents = LoadGenerator.readDocuments(
+        inputDir, "naf",
+        parsedArguments.getString("language"));
+    Properties results = new PerfSuite(properties, documents,
+        testSet.getPath()).run();
+    System.out.print(PerfSuite.report(results));
+    if (updateBaseline) {
+      try (OutputStream out = new FileOutputStream(baselineFile)) {
+        results.store(out, "ixa-pipe-chunk performance baseline");
+      }
+      System.err.println("Baseline written to " + baselineFile);
+    } else {
+      Properties baseline = new Properties();
+      try (InputStream in = new FileInputStream(baselineFile)) {
+        baseline.load(in);
+      }
+      List<String> regressions = PerfSuite.compare(baseline, results,
+          Double.parseDouble(parsedArguments.getString("tolerance")),
+          Double.parseDouble(parsedArguments.getString("allocationTolerance")));
+      for (String regression : regressions) {
+        System.err.println("REGRESSION: " + regression);
+      }
+      if (!regressions.isEmpty()) {
+        System.exit(1);
+      }
+      System.err.println("No regressions against " + baselineFile);
+    }
+    // the threads of the server started by the suite would keep the JVM alive
+    System.exit(0);
+  }
+
+  /**
+   * Load the perf parameters.
+   */
+  private void loadPerfParameters() {
+    perfParser.addArgument("-m", "--model")
+        .required(true)
+        .help("Model to be measured.\n");
+    perfParser.addArgument("-l", "--language")
+        .required(false)
+        .setDefault("en")
+        .help("Language of the model.\n");
+    perfParser.addArgument("--inputDir")
+        .required(true)
+        .help("Directory of NAF documents run through tag and the server.\n");
+    perfParser.addArgument("--testSet")
+        .required(true)
+        .help("CoNLL 2000 test set run through the evaluation.\n");
+    perfParser.addArgument("--baseline")
+        .required(true)
+        .help("Baseline results; it is only written with --updateBaseline.\n");
+    perfParser.addArgument("--updateBaseline")
+        .required(false)
+        .choices("true", "false")
+        .setDefault("false")
+        .help("Write the results as the new baseline instead of comparing them.\n");
+    perfParser.addArgument("--tolerance")
+        .required(false)
+        .setDefault("0.25")
+        .help("Fraction of the baseline throughput that may be lost.\n");
+    perfParser.addArgument("--allocationTolerance")
+        .required(false)
+        .setDefault("0.10")
+        .help("Fraction of the baseline bytes per token that may be added.\n");
+    perfParser.addArgument("--warmup")
+        .required(false)
+        .setDefault("1")
+        .help("Passes over the corpus before measuring.\n");
+    perfParser.addArgument("--iterations")
+        .required(false)
+        .setDefault("3")
+        .help("Passes over the corpus measured.\n");
+  }
+
+  /**
+   * Get an input of the suite, exiting if it is not set or does not exist.
+   *
+   * @param argument
+   *          the argument
+   * @param property
+   *          the property of the perf profile setting it
+   * @return the file
+   */
+  private File requiredFile(final String argument, final String property) {
+    final String path = parsedArguments.getString(argument);
+    if (path.isEmpty() || path.startsWith("${")) {
+      fail("set the " + argument + " of the suite with -D" + property);
+    }
+    final File file = new File(path);
+    if (!file.exists()) {
+      fail(file + " does not exist");
+    }
+    return file;
+  }
+
+  private static void fail(final String message) {
+    System.err.println("ERROR: " + message);
+    System.exit(1);
+  }
+
+  /**
+   * Generate Properties objects for CLI usage.
+   *
+   * @param model
+   *          the model to perform the annotation
+   * @param language
+   *          the language
+   * @return a properties object
+   */
+  private Properties setAnnotateProperties(final String model,
+      final String language) {
+    final Properties annotateProperties = new Properties();
+    annotateProperties.setProperty("model", model);
+    annotateProperties.setProperty("language", language);
+    return annotateProperties;
+  }
+
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright 2016 Rodrigo Agerri
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License.
+ */
+package eus.ixa.ixa.pipe.chunk.bench;
+
+import ixa.kaflib.KAFDocument;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import opennlp.tools.chunker.ChunkSample;
+import opennlp.tools.chunker.ChunkerModel;
+
+import org.jdom2.JDOMException;
+
+import eus.ixa.ixa.pipe.chunk.Annotate;
+import eus.ixa.ixa.pipe.chunk.ChunkerClient;
+import eus.ixa.ixa.pipe.chunk.ChunkerServer;
+import eus.ixa.ixa.pipe.chunk.ModelRegistry;
+import eus.ixa.ixa.pipe.chunk.NAFWriter;
+import eus.ixa.ixa.pipe.chunk.eval.Evaluate;
+import eus.ixa.ixa.pipe.chunk.train.InputOutputUtils;
+
+/**
+ * Performance regression suite. It runs a corpus of NAF documents through
+ * the tag pipeline and through a server started in the same JVM, and a CoNLL
+ * 2000 test set through the evaluation, measuring the throughput (documents
+ * or sentences per second, of the fastest pass) and the bytes allocated per
+ * token by every live thread, as counted by the allocation counters of the
+ * {@link ThreadMXBean}. The evaluation also reports its F1.
+ * <p>
+ * The results are compared with a baseline recorded on the same machine:
+ * a throughput lower than the baseline by more than tolerance, an allocation
+ * per token higher than the baseline by more than allocationTolerance, or a
+ * different F1 are regressions.
+ */
+public class PerfSuite {
+
+  /**
+   * A measured pass over the corpus of a stage.
+   */
+  private interface Pass {
+    /**
+     * Run the pass.
+     *
+     * @return the number of tokens processed
+     * @throws Exception
+     *           if the pass fails
+     */
+    long run() throws Exception;
+  }
+
+  /**
+   * The annotation properties, model and language.
+   */
+  private final Properties properties;
+  /**
+   * The NAF documents.
+   */
+  private final List<String> documents;
+  /**
+   * The CoNLL 2000 test set.
+   */
+  private final String testSet;
+  /**
+   * Number of passes run before measuring.
+   */
+  private final int warmup;
+  /**
+   * Number of passes measured.
+   */
+  private final int iterations;
+  /**
+   * The number of tokens of the documents.
+   */
+  private long documentTokens = 0;
+
+  /**
+   * Construct a suite.
+   *
+   * @param properties
+   *          the annotation properties plus warmup (defaults to 1) and
+   *          iterations (defaults to 3)
+   * @param documents
+   *          the NAF documents
+   * @param testSet
+   *          the CoNLL 2000 test set
+   * @throws IOException
+   *           if a document is not valid NAF
+   */
+  public PerfSuite(final Properties properties, final List<String> documents,
+      final String testSet) throws IOException {
+    this.properties = properties;
+    this.documents = documents;
+    this.testSet = testSet;
+    this.warmup = Integer.parseInt(properties.getProperty("warmup", "1"));
+    this.iterations = Math.max(1,
+        Integer.parseInt(properties.getProperty("iterations", "3")));
+    for (final String document : documents) {
+      documentTokens += parse(document).getWFs().size();
+    }
+  }
+
+  /**
+   * Run every stage.
+   *
+   * @return the results, stage.throughput and stage.bytesPerToken for the
+   *         tag, eval and server stages, and eval.f1
+   * @throws IOException
+   *           if a stage fails
+   */
+  public final Properties run() throws IOException {
+    final Properties results = new Properties();
+    tag(results);
+    eval(results);
+    server(results);
+    return results;
+  }
+
+  private void tag(final Properties results) throws IOException {
+    final Annotate annotator = new Annotate(properties);
+    try {
+      measure("tag", documents.size(), new Pass() {
+        @Override
+        public long run() throws Exception {
+          for (final String document : documents) {
+            final KAFDocument kaf = parse(document);
+            annotator.addChunksToKAF(kaf);
+            NAFWriter.write(kaf, new StringWriter());
+          }
+          return documentTokens;
+        }
+      }, results);
+    } finally {
+      annotator.close();
+    }
+  }
+
+  private void eval(final Properties results) throws IOException {
+    final List<ChunkSample> samples = InputOutputUtils.readChunkSamples(testSet);
+    long tokens = 0;
+    for (final ChunkSample sample : samples) {
+      tokens += sample.getSentence().length;
+    }
+    final long testTokens = tokens;
+    final String model = properties.getProperty("model");
+    final ChunkerModel chunkerModel = ModelRegistry.getInstance().acquire(model);
+    final double[] f1 = new double[1];
+    try {
+      measure("eval", samples.size(), new Pass() {
+        @Override
+        public long run() throws Exception {
+          f1[0] = new Evaluate(testSet, chunkerModel).getFMeasure()
+              .getFMeasure();
+          return testTokens;
+        }
+      }, results);
+    } finally {
+      ModelRegistry.getInstance().release(model);
+    }
+    results.setProperty("eval.f1", Double.toString(f1[0]));
+  }
+
+  private void server(final Properties results) throws IOException {
+    final int port;
+    try (ServerSocket socket = new ServerSocket(0)) {
+      port = socket.getLocalPort();
+    }
+    final Properties serverProperties = new Properties();
+    serverProperties.putAll(properties);
+    serverProperties.setProperty("port", Integer.toString(port));
+    serverProperties.setProperty("outputFormat", "naf");
+    final Thread server = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        new ChunkerServer(serverProperties);
+      }
+    }, "ixa-pipe-chunk-perf-server");
+    // the server runs until the JVM exits
+    server.setDaemon(true);
+    server.start();
+    awaitServer(port);
+    final Properties clientProperties = new Properties();
+    clientProperties.setProperty("servers", "localhost:" + port);
+    clientProperties.setProperty("connections", "1");
+    try (ChunkerClient client = new ChunkerClient(clientProperties)) {
+      measure("server", documents.size(), new Pass() {
+        @Override
+        public long run() throws Exception {
+          for (final String document : documents) {
+            client.annotate(document);
+          }
+          return documentTokens;
+        }
+      }, results);
+    }
+  }
+
+  /**
+   * Wait until the server accepts connections, which it does once the model
+   * is loaded.
+   */
+  private static void awaitServer(final int port) throws IOException {
+    final long deadline = System.currentTimeMillis() + 60000;
+    while (true) {
+      try (Socket socket = new Socket("localhost", port)) {
+        return;
+      } catch (IOException e) {
+        if (System.currentTimeMillis() > deadline) {
+          throw new IOException("The server did not start on port " + port);
+        }
+      }
+      try {
+        Thread.sleep(100);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for the server");
+      }
+    }
+  }
+
+  /**
+   * Run the warm up and measured passes of a stage.
+   */
+  private void measure(final String stage, final int units, final Pass pass,
+      final Properties results) throws IOException {
+    try {
+      for (int i = 0; i < warmup; i++) {
+        pass.run();
+      }
+      long bestNanos = Long.MAX_VALUE;
+      long bytes = 0;
+      long tokens = 0;
+      for (int i = 0; i < iterations; i++) {
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final long passTokens = pass.run();
+        final long elapsed = System.nanoTime() - start;
+        final long allocatedAfter = allocatedBytes();
+        bestNanos = Math.min(bestNanos, elapsed);
+        if (allocatedBefore >= 0 && allocatedAfter >= allocatedBefore) {
+          bytes += allocatedAfter - allocatedBefore;
+        }
+        tokens += passTokens;
+      }
+      results.setProperty(stage + ".throughput",
+          Double.toString(units / (bestNanos / 1e9)));
+      if (allocatedBytes() >= 0) {
+        results.setProperty(stage + ".bytesPerToken",
+            Double.toString(tokens == 0 ? 0 : (double) bytes / tokens));
+      }
+    } catch (IOException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new IOException("The " + stage + " stage failed: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Get the bytes allocated by the live threads of the JVM.
+   *
+   * @return the bytes, or -1 if the JVM does not count them
+   */
+  private static long allocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+      return -1;
+    }
+    final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+    if (!threads.isThreadAllocatedMemorySupported()) {
+      return -1;
+    }
+    if (!threads.isThreadAllocatedMemoryEnabled()) {
+      threads.setThreadAllocatedMemoryEnabled(true);
+    }
+    long bytes = 0;
+    for (final long threadBytes : threads.getThreadAllocatedBytes(threads
+        .getAllThreadIds())) {
+      if (threadBytes > 0) {
+        bytes += threadBytes;
+      }
+    }
+    return bytes;
+  }
+
+  private static KAFDocument parse(final String document) throws IOException {
+    try {
+      return KAFDocument.createFromStream(new StringReader(document));
+    } catch (JDOMException e) {
+      throw new IOException("Invalid NAF document: " + e.getMessage(), e);
+    }
+  }
+
+  /**
+   * Compare results with a baseline.
+   *
+   * @param baseline
+   *          the baseline results
+   * @param results
+   *          the results
+   * @param tolerance
+   *          the fraction of the baseline throughput that may be lost
+   * @param allocationTolerance
+   *          the fraction of the baseline bytes per token that may be added
+   * @return the regressions, empty if none
+   */
+  public static List<String> compare(final Properties baseline,
+      final Properties results, final double tolerance,
+      final double allocationTolerance) {
+    final List<String> regressions = new ArrayList<String>();
+    for (final String key : results.stringPropertyNames()) {
+      final String expected = baseline.getProperty(key);
+      if (expected == null) {
+        continue;
+      }
+      final double base = Double.parseDouble(expected);
+      final double value = Double.parseDouble(results.getProperty(key));
+      if (key.endsWith(".throughput") && value < base * (1 - tolerance)) {
+        regressions.add(String.format("%s %.1f is below the baseline %.1f",
+            key, value, base));
+      } else if (key.endsWith(".bytesPerToken")
+          && value > base * (1 + allocationTolerance)) {
+        regressions.add(String.format("%s %.1f is above the baseline %.1f",
+            key, value, base));
+      } else if (key.endsWith(".f1") && Math.abs(value - base) > 1e-9) {
+        regressions.add(String.format("%s %.6f differs from the baseline %.6f",
+            key, value, base));
+      }
+    }
+    return regressions;
+  }
+
+  /**
+   * Format results, one per line.
+   *
+   * @param results
+   *          the results
+   * @return the formatted results
+   */
+  public static String report(final Properties results) {
+    final StringBuilder sb = new StringBuilder();
+    final List<String> keys = new ArrayList<String>(results.stringPropertyNames());
+    Collections.sort(keys);
+    for (final String key : keys) {
+      sb.append(String.format("%-22s %.3f%n", key,
+          Double.parseDouble(results.getProperty(key))));
+    }
+    return sb.toString();
+  }
+
+}